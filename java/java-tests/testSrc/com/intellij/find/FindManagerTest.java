@@ -28,6 +28,7 @@ import com.intellij.openapi.projectRoots.Sdk;
 import com.intellij.openapi.projectRoots.impl.JavaSdkImpl;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.PersistentFSConstants;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.*;
 import com.intellij.psi.search.GlobalSearchScope;
@@ -49,6 +50,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 /*
  * @author: MYakovlev
@@ -434,5 +436,76 @@ public class FindManagerTest extends DaemonAnalyzerTestCase {
     }
   }
 
+  public void testFindInFilesTooLargeToBeIndexed() throws Exception {
+    final int maxIntellisenseFileSize = PersistentFSConstants.getMaxIntellisenseFileSize();
+    PersistentFSConstants.setMaxIntellisenseFileSize(1000);
+    TempDirTestFixture fixture = new LightTempDirTestFixtureImpl();
+    fixture.setUp();
+
+    try {
+      fixture.createFile("small.txt", "zoo TargetWord foo\n");
+      fixture.createFile("large.txt", StringUtil.repeat("zoo bar goo\n", 200) + "zoo TargetWord foo\n");
+      fixture.createFile("other.txt", "zoo bar goo\n");
+      PsiTestUtil.addSourceContentToRoots(myModule, fixture.getFile(""));
+
+      FindModel findModel = new FindModel();
+      findModel.setStringToFind("TargetWord");
+      findModel.setFromCursor(false);
+      findModel.setGlobal(true);
+      findModel.setMultipleFiles(true);
+      assertSize(2, findUsages(findModel));
+
+      findModel.setStringToFind("Target\\w+d");
+      findModel.setRegularExpressions(true);
+      assertSize(2, findUsages(findModel));
+    }
+    finally {
+      fixture.tearDown();
+      PersistentFSConstants.setMaxIntellisenseFileSize(maxIntellisenseFileSize);
+    }
+  }
+
+  public void testFindInCommentsAndLiteralsConcurrently() throws Exception {
+    TempDirTestFixture fixture = new LightTempDirTestFixtureImpl();
+    fixture.setUp();
+
+    try {
+      final int filesCount = 30;
+      for (int i = 0; i < filesCount; i++) {
+        fixture.createFile("A" + i + ".java", "class A" + i + " {\n" +
+                                              "  // TargetWord in comment\n" +
+                                              "  int TargetWord = 0;\n" +
+                                              "  String s = \"TargetWord in literal\";\n" +
+                                              "}\n");
+      }
+      PsiTestUtil.addSourceContentToRoots(myModule, fixture.getFile(""));
+
+      final FindModel findModel = new FindModel();
+      findModel.setStringToFind("TargetWord");
+      findModel.setFromCursor(false);
+      findModel.setGlobal(true);
+      findModel.setMultipleFiles(true);
+      findModel.setInCommentsOnly(true);
+      assertSize(filesCount, findUsagesInPooledThread(findModel));
+
+      findModel.setInCommentsOnly(false);
+      findModel.setInStringLiteralsOnly(true);
+      assertSize(filesCount, findUsagesInPooledThread(findModel));
+    }
+    finally {
+      fixture.tearDown();
+    }
+  }
+
+  // the files are searched concurrently when the search is not started in the EDT
+  private List<UsageInfo> findUsagesInPooledThread(final FindModel findModel) throws Exception {
+    return ApplicationManager.getApplication().executeOnPooledThread(new Callable<List<UsageInfo>>() {
+      @Override
+      public List<UsageInfo> call() throws Exception {
+        return findUsages(findModel);
+      }
+    }).get();
+  }
+
 
 }
@@ -17,15 +17,12 @@ package com.intellij.psi.stubs;
 
 import com.intellij.openapi.diagnostic.LogUtil;
 import com.intellij.openapi.diagnostic.Logger;
-import com.intellij.openapi.util.LowMemoryWatcher;
 import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
-import com.intellij.util.containers.SLRUCache;
 import com.intellij.util.io.AbstractStringEnumerator;
 import com.intellij.util.io.DataInputOutputUtil;
 import com.intellij.util.io.IOUtil;
 import gnu.trove.TIntObjectHashMap;
 import gnu.trove.TObjectIntHashMap;
-import jsr166e.SequenceLock;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -35,7 +32,6 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.locks.Lock;
 
 /**
  * Author: dmitrylomov
@@ -62,10 +58,15 @@ public class StubSerializationHelper {
   }
 
   private int persistentId(@NotNull final ObjectStubSerializer serializer) throws IOException {
+    return getNameStorage().enumerate(serializer.getExternalId());
+  }
+
+  @NotNull
+  private AbstractStringEnumerator getNameStorage() throws IOException {
     if (myNameStorage == null) {
       throw new IOException("SerializationManager's name storage failed to initialize");
     }
-    return myNameStorage.enumerate(serializer.getExternalId());
+    return myNameStorage;
   }
 
   private void doSerialize(final Stub rootStub, final StubOutputStream stream) throws IOException {
@@ -89,84 +90,62 @@ public class StubSerializationHelper {
 
     doSerialize(rootStub, stubOutputStream);
     DataOutputStream resultStream = new DataOutputStream(stream);
+    // names like String or getName occur in lots of files, so the file table refers to them by their ids in the shared name storage;
+    // the storage is append-only, so other strings (literals, texts) are written inline and 0 id precedes them
+    final AbstractStringEnumerator nameStorage = getNameStorage();
     DataInputOutputUtil.writeINT(resultStream, storage.myStrings.size());
-    byte[] buffer = IOUtil.allocReadWriteUTFBuffer();
+    byte[] buffer = null;
     for(String s:storage.myStrings) {
-      IOUtil.writeUTFFast(buffer, resultStream, s);
+      if (isSharedName(s)) {
+        DataInputOutputUtil.writeINT(resultStream, nameStorage.enumerate(s));
+      }
+      else {
+        if (buffer == null) buffer = IOUtil.allocReadWriteUTFBuffer();
+        DataInputOutputUtil.writeINT(resultStream, 0);
+        IOUtil.writeUTFFast(buffer, resultStream, s);
+      }
     }
     resultStream.write(out.getInternalBuffer(), 0, out.size());
   }
 
+  private static final int MAX_SHARED_NAME_LENGTH = 64;
+
+  private static boolean isSharedName(@NotNull String s) {
+    final int length = s.length();
+    if (length == 0 || length > MAX_SHARED_NAME_LENGTH) return false;
+    for (int i = 0; i < length; i++) {
+      final char c = s.charAt(i);
+      if (c != '.' && !Character.isJavaIdentifierPart(c)) return false;
+    }
+    return true;
+  }
+
   private int getClassId(final ObjectStubSerializer serializer) {
     final int idValue = mySerializerToId.get(serializer);
     assert idValue != 0: "No ID found for serializer " + LogUtil.objectAndClass(serializer);
     return idValue;
   }
 
-  private static class RecentStringInterner {
-    private final int myStripeMask;
-    private final SLRUCache<String, String>[] myInterns;
-    private final Lock[] myStripeLocks;
-    private final LowMemoryWatcher myClearingCallback;
-
-    private RecentStringInterner(int capacity) {
-      final int stripes = 16;
-      myInterns = new SLRUCache[stripes];
-      myStripeLocks = new Lock[myInterns.length];
-      for(int i = 0; i < myInterns.length; ++i) {
-        myInterns[i] = new SLRUCache<String, String>(capacity / stripes, capacity / stripes) {
-          @NotNull
-          @Override
-          public String createValue(String key) {
-            return key;
-          }
-        };
-        myStripeLocks[i] = new SequenceLock();
-      }
-
-      assert Integer.highestOneBit(stripes) == stripes;
-      myStripeMask = stripes - 1;
-      myClearingCallback = LowMemoryWatcher.register(new Runnable() {
-        @Override
-        public void run() {
-          clear();
-        };
-      });
-    }
-
-    String get(String s) {
-      final int stripe = Math.abs(s.hashCode()) & myStripeMask;
-      try {
-        myStripeLocks[stripe].lock();
-        return myInterns[stripe].get(s);
-      } finally {
-        myStripeLocks[stripe].unlock();
-      }
-    }
-
-    void clear() {
-      for(int i = 0; i < myInterns.length; ++i) {
-        myStripeLocks[i].lock();
-        myInterns[i].clear();
-        myStripeLocks[i].unlock();
-      }
-    }
-  }
-
-  private final RecentStringInterner myStringInterner = new RecentStringInterner(8192);
-
   public Stub deserialize(InputStream stream) throws IOException, SerializerNotFoundException {
     FileLocalStringEnumerator storage = new FileLocalStringEnumerator();
     StubInputStream inputStream = new StubInputStream(stream, storage);
     final int size = DataInputOutputUtil.readINT(inputStream);
-    byte[] buffer = IOUtil.allocReadWriteUTFBuffer();
-
-    int i = 1;
-    while(i <= size) {
-      String s = myStringInterner.get(IOUtil.readUTFFast(buffer, inputStream));
-      storage.myStrings.add(s);
-      storage.myEnumerates.put(s, i);
-      ++i;
+    final AbstractStringEnumerator nameStorage = getNameStorage();
+
+    // the stubs are only read, so the strings needn't be enumerated back;
+    // the name storage caches recently used names, so the stubs of different files share the String instances
+    storage.myStrings.ensureCapacity(size);
+    byte[] buffer = null;
+    for (int i = 0; i < size; ++i) {
+      final int id = DataInputOutputUtil.readINT(inputStream);
+      if (id == 0) {
+        if (buffer == null) buffer = IOUtil.allocReadWriteUTFBuffer();
+        storage.myStrings.add(IOUtil.readUTFFast(buffer, inputStream));
+        continue;
+      }
+      final String name = nameStorage.valueOf(id);
+      if (name == null) throw new IOException("No name with id " + id + " in the name storage");
+      storage.myStrings.add(name);
     }
     return deserialize(inputStream, null);
   }
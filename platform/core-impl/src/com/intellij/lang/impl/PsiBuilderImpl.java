@@ -47,6 +47,7 @@ import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.lang.ref.SoftReference;
 import java.lang.reflect.Field;
 import java.util.AbstractList;
 import java.util.ArrayList;
@@ -92,29 +93,60 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
 
   private Map<Key, Object> myUserData = null;
 
-  private final LimitedPool<StartMarker> START_MARKERS = new LimitedPool<StartMarker>(2000, new LimitedPool.ObjectFactory<StartMarker>() {
-    @Override
-    public StartMarker create() {
-      return new StartMarker();
-    }
+  // markers and lexeme arrays released by builders after the tree is built are reused by the next builders of the same thread,
+  // so parsing files one after another (indexing) doesn't allocate them anew for every file;
+  // they are softly reachable, so idle pooled threads don't retain them when memory is needed
+  private static final ThreadLocal<SoftReference<ReusedObjects>> ourReusedObjects = new ThreadLocal<SoftReference<ReusedObjects>>();
+  private static final int MAX_REUSED_LEXEMES = 0x4000;
+  private static final int MAX_REUSED_MARKERS = 2000;
+
+  private static class ReusedObjects {
+    private final LimitedPool<StartMarker> myStartMarkers = new LimitedPool<StartMarker>(MAX_REUSED_MARKERS, new LimitedPool.ObjectFactory<StartMarker>() {
+      @Override
+      public StartMarker create() {
+        return new StartMarker();
+      }
 
-    @Override
-    public void cleanup(final StartMarker startMarker) {
-      startMarker.clean();
-    }
-  });
+      @Override
+      public void cleanup(final StartMarker startMarker) {
+        startMarker.clean();
+      }
+    });
 
-  private final LimitedPool<DoneMarker> DONE_MARKERS = new LimitedPool<DoneMarker>(2000, new LimitedPool.ObjectFactory<DoneMarker>() {
-    @Override
-    public DoneMarker create() {
-      return new DoneMarker();
-    }
+    private final LimitedPool<DoneMarker> myDoneMarkers = new LimitedPool<DoneMarker>(MAX_REUSED_MARKERS, new LimitedPool.ObjectFactory<DoneMarker>() {
+      @Override
+      public DoneMarker create() {
+        return new DoneMarker();
+      }
 
-    @Override
-    public void cleanup(final DoneMarker doneMarker) {
-      doneMarker.clean();
+      @Override
+      public void cleanup(final DoneMarker doneMarker) {
+        doneMarker.clean();
+      }
+    });
+
+    private int[] myLexStarts;
+    private IElementType[] myLexTypes;
+  }
+
+  @NotNull
+  private static ReusedObjects reusedObjects() {
+    final SoftReference<ReusedObjects> reference = ourReusedObjects.get();
+    ReusedObjects reused = reference != null ? reference.get() : null;
+    if (reused == null) {
+      reused = new ReusedObjects();
+      ourReusedObjects.set(new SoftReference<ReusedObjects>(reused));
     }
-  });
+    return reused;
+  }
+
+  private static LimitedPool<StartMarker> startMarkers() {
+    return reusedObjects().myStartMarkers;
+  }
+
+  private static LimitedPool<DoneMarker> doneMarkers() {
+    return reusedObjects().myDoneMarkers;
+  }
 
   private static final WhitespacesAndCommentsBinder DEFAULT_LEFT_EDGE_TOKEN_BINDER = new WhitespacesAndCommentsBinder() {
     @Override
@@ -192,8 +224,17 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
   private void cacheLexemes() {
     int approxLexCount = Math.max(10, myText.length() / 5);
 
-    myLexStarts = new int[approxLexCount];
-    myLexTypes = new IElementType[approxLexCount];
+    final ReusedObjects reused = reusedObjects();
+    if (reused.myLexTypes != null && reused.myLexTypes.length >= approxLexCount) {
+      myLexStarts = reused.myLexStarts;
+      myLexTypes = reused.myLexTypes;
+      reused.myLexStarts = null;
+      reused.myLexTypes = null;
+    }
+    else {
+      myLexStarts = new int[approxLexCount];
+      myLexTypes = new IElementType[approxLexCount];
+    }
 
     myLexer.start(myText);
     int i = 0;
@@ -580,6 +621,7 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
       super.clean();
       myStart = null;
       myEdgeTokenBinder = DEFAULT_RIGHT_EDGE_TOKEN_BINDER;
+      myCollapse = false;
     }
 
     @Override
@@ -795,7 +837,7 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
   }
 
   private StartMarker createMarker(final int lexemeIndex) {
-    StartMarker marker = START_MARKERS.alloc();
+    StartMarker marker = startMarkers().alloc();
     marker.myLexemeIndex = lexemeIndex;
     marker.myBuilder = this;
 
@@ -823,7 +865,7 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
       LOG.error("The marker must be added before rolled back to.");
     }
     myProduction.removeRange(idx, myProduction.size());
-    START_MARKERS.recycle((StartMarker)marker);
+    startMarkers().recycle((StartMarker)marker);
   }
 
   @SuppressWarnings({"SuspiciousMethodCalls"})
@@ -831,13 +873,13 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
     final DoneMarker doneMarker = ((StartMarker)marker).myDoneMarker;
     if (doneMarker != null) {
       myProduction.remove(myProduction.lastIndexOf(doneMarker));
-      DONE_MARKERS.recycle(doneMarker);
+      doneMarkers().recycle(doneMarker);
     }
     final boolean removed = myProduction.remove(myProduction.lastIndexOf(marker)) == marker;
     if (!removed) {
       LOG.error("The marker must be added before it is dropped.");
     }
-    START_MARKERS.recycle((StartMarker)marker);
+    startMarkers().recycle((StartMarker)marker);
   }
 
   public void error(Marker marker, String message) {
@@ -868,7 +910,7 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
   public void done(final Marker marker) {
     doValidityChecks(marker, null);
 
-    DoneMarker doneMarker = DONE_MARKERS.alloc();
+    DoneMarker doneMarker = doneMarkers().alloc();
     doneMarker.myStart = (StartMarker)marker;
     doneMarker.myLexemeIndex = myCurrentLexeme;
     boolean tieToTheLeft = doneMarker.myStart.myType.isLeftBound() &&
@@ -885,7 +927,7 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
 
     int beforeIndex = myProduction.lastIndexOf(before);
 
-    DoneMarker doneMarker = DONE_MARKERS.alloc();
+    DoneMarker doneMarker = doneMarkers().alloc();
     doneMarker.myLexemeIndex = ((StartMarker)before).myLexemeIndex;
     doneMarker.myStart = (StartMarker)marker;
     boolean tieToTheLeft = doneMarker.myStart.myType.isLeftBound() &&
@@ -967,14 +1009,23 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
       return buildTree();
     }
     finally {
+      final ReusedObjects reused = reusedObjects();
       for (ProductionMarker marker : myProduction) {
         if (marker instanceof StartMarker) {
-          START_MARKERS.recycle((StartMarker)marker);
+          reused.myStartMarkers.recycle((StartMarker)marker);
         }
         else if (marker instanceof DoneMarker) {
-          DONE_MARKERS.recycle((DoneMarker)marker);
+          reused.myDoneMarkers.recycle((DoneMarker)marker);
         }
       }
+      // the builder is not used once the tree is built, so the next one may take its lexemes
+      if (myLexTypes != null && myLexTypes.length <= MAX_REUSED_LEXEMES &&
+          (reused.myLexTypes == null || reused.myLexTypes.length < myLexTypes.length)) {
+        reused.myLexStarts = myLexStarts;
+        reused.myLexTypes = myLexTypes;
+        myLexStarts = null;
+        myLexTypes = null;
+      }
     }
   }
 
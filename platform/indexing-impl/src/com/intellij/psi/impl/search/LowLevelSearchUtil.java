@@ -30,6 +30,7 @@ import com.intellij.psi.impl.source.tree.TreeElement;
 import com.intellij.psi.search.TextOccurenceProcessor;
 import com.intellij.psi.util.PsiTreeUtil;
 import com.intellij.util.text.CharArrayUtil;
+import com.intellij.util.text.MultiStringSearcher;
 import com.intellij.util.text.StringSearcher;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -176,6 +177,46 @@ public class LowLevelSearchUtil {
     return true;
   }
 
+  /**
+   * Same as {@link #processElementsContainingWordInElement} for several words at once, the text of the scope is scanned only once.
+   * Occurrences of the pattern of the i-th searcher are passed to the i-th processor.
+   */
+  //@RequiresReadAction
+  public static boolean processElementsContainingWordsInElement(@NotNull final List<? extends TextOccurenceProcessor> processors,
+                                                                @NotNull final PsiElement scope,
+                                                                @NotNull final MultiStringSearcher searcher,
+                                                                final boolean processInjectedPsi,
+                                                                final ProgressIndicator progress) {
+    LOG.assertTrue(processors.size() == searcher.getSearchersCount());
+    if (progress != null) progress.checkCanceled();
+
+    PsiFile file = scope.getContainingFile();
+    final CharSequence buffer = file.getViewProvider().getContents();
+
+    TextRange range = scope.getTextRange();
+    if (range == null) {
+      throw new AssertionError("Element " + scope + " of class " + scope.getClass() + " has null range");
+    }
+
+    final int scopeStart = range.getStartOffset();
+    final int endOffset = range.getEndOffset();
+    if (endOffset > buffer.length()) {
+      LOG.error("Range for element: '"+scope+"' = "+range+" is out of file '" + file + "' range: " + file.getTextLength());
+    }
+
+    final char[] bufferArray = CharArrayUtil.fromSequenceWithoutCopying(buffer);
+
+    return searcher.processOccurrences(buffer, bufferArray, scopeStart, endOffset, new MultiStringSearcher.OccurrenceProcessor() {
+      @Override
+      public boolean execute(int searcherIndex, int offset) {
+        if (progress != null) progress.checkCanceled();
+        final StringSearcher wordSearcher = searcher.getSearcher(searcherIndex);
+        if (!isWordOccurrence(buffer, bufferArray, offset, scopeStart, endOffset, wordSearcher)) return true;
+        return processTreeUp(processors.get(searcherIndex), scope, wordSearcher, offset - scopeStart, processInjectedPsi, progress);
+      }
+    });
+  }
+
   public static int searchWord(@NotNull CharSequence text,
                                int startOffset,
                                int endOffset,
@@ -197,28 +238,42 @@ public class LowLevelSearchUtil {
       //noinspection AssignmentToForLoopParameter
       index = searcher.scan(text, textArray, index, endOffset);
       if (index < 0) return -1;
-      if (!searcher.isJavaIdentifier()) {
+      if (isWordOccurrence(text, textArray, index, startOffset, endOffset, searcher)) {
         return index;
       }
+    }
+    return -1;
+  }
 
-      if (index > startOffset) {
-        char c = textArray != null ? textArray[index - 1]:text.charAt(index - 1);
-        if (Character.isJavaIdentifierPart(c) && c != '$') {
-          if (index < 2 || (textArray != null ? textArray[index - 2]:text.charAt(index - 2)) != '\\') { //escape sequence
-            continue;
-          }
+  /**
+   * @return false if the pattern of the searcher is an identifier and its occurrence at the index is a part of a longer identifier
+   */
+  private static boolean isWordOccurrence(@NotNull CharSequence text,
+                                          @Nullable char[] textArray,
+                                          int index,
+                                          int startOffset,
+                                          int endOffset,
+                                          @NotNull StringSearcher searcher) {
+    if (!searcher.isJavaIdentifier()) {
+      return true;
+    }
+
+    if (index > startOffset) {
+      char c = textArray != null ? textArray[index - 1]:text.charAt(index - 1);
+      if (Character.isJavaIdentifierPart(c) && c != '$') {
+        if (index < 2 || (textArray != null ? textArray[index - 2]:text.charAt(index - 2)) != '\\') { //escape sequence
+          return false;
         }
       }
+    }
 
-      final int patternLength = searcher.getPattern().length();
-      if (index + patternLength < endOffset) {
-        char c = textArray != null ? textArray[index + patternLength]:text.charAt(index + patternLength);
-        if (Character.isJavaIdentifierPart(c) && c != '$') {
-          continue;
-        }
+    final int patternLength = searcher.getPattern().length();
+    if (index + patternLength < endOffset) {
+      char c = textArray != null ? textArray[index + patternLength]:text.charAt(index + patternLength);
+      if (Character.isJavaIdentifierPart(c) && c != '$') {
+        return false;
       }
-      return index;
     }
-    return -1;
+    return true;
   }
 }
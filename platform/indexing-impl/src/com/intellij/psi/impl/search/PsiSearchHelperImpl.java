@@ -43,6 +43,7 @@ import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.containers.MultiMap;
 import com.intellij.util.indexing.FileBasedIndex;
 import com.intellij.util.text.CharArrayUtil;
+import com.intellij.util.text.MultiStringSearcher;
 import com.intellij.util.text.StringSearcher;
 import gnu.trove.THashSet;
 import org.jetbrains.annotations.NotNull;
@@ -623,19 +624,34 @@ public class PsiSearchHelperImpl implements PsiSearchHelper {
       progress.setText(PsiBundle.message("psi.search.for.word.progress", getPresentableWordsDescription(allWords)));
     }
 
+    // files containing the same words share the searcher, so the automaton is built once per such set of words
+    final Map<Collection<RequestWithProcessor>, MultiStringSearcher> multiSearchers = ContainerUtil.newConcurrentMap();
+
     final AsyncFuture<Boolean> result =
       processPsiFileRootsAsync(new ArrayList<VirtualFile>(candidateFiles.keySet()), new Processor<PsiElement>() {
         @Override
         public boolean process(PsiElement psiRoot) {
           final VirtualFile vfile = psiRoot.getContainingFile().getVirtualFile();
-          for (final RequestWithProcessor singleRequest : candidateFiles.get(vfile)) {
+          final Collection<RequestWithProcessor> requests = candidateFiles.get(vfile);
+          if (requests.size() == 1) {
+            final RequestWithProcessor singleRequest = requests.iterator().next();
             StringSearcher searcher = searchers.get(singleRequest);
             TextOccurenceProcessor adapted = adaptProcessor(singleRequest.request, singleRequest.refProcessor);
-            if (!LowLevelSearchUtil.processElementsContainingWordInElement(adapted, psiRoot, searcher, true, progress)) {
-              return false;
-            }
+            return LowLevelSearchUtil.processElementsContainingWordInElement(adapted, psiRoot, searcher, true, progress);
+          }
+
+          MultiStringSearcher searcher = multiSearchers.get(requests);
+          final List<TextOccurenceProcessor> processors = new ArrayList<TextOccurenceProcessor>(requests.size());
+          final List<StringSearcher> wordSearchers = searcher == null ? new ArrayList<StringSearcher>(requests.size()) : null;
+          for (RequestWithProcessor singleRequest : requests) {
+            processors.add(adaptProcessor(singleRequest.request, singleRequest.refProcessor));
+            if (wordSearchers != null) wordSearchers.add(searchers.get(singleRequest));
+          }
+          if (searcher == null) {
+            searcher = new MultiStringSearcher(wordSearchers);
+            multiSearchers.put(requests, searcher);
           }
-          return true;
+          return LowLevelSearchUtil.processElementsContainingWordsInElement(processors, psiRoot, searcher, true, progress);
         }
       }, progress);
 
@@ -17,6 +17,7 @@
 package com.intellij.find.impl;
 
 import com.intellij.BundleBase;
+import com.intellij.concurrency.JobLauncher;
 import com.intellij.find.*;
 import com.intellij.find.ngrams.TrigramIndex;
 import com.intellij.navigation.ItemPresentation;
@@ -75,6 +76,9 @@ import org.jetbrains.annotations.Nullable;
 import javax.swing.*;
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 public class FindInProjectUtil {
@@ -201,48 +205,73 @@ public class FindInProjectUtil {
 
     final Collection<PsiFile> psiFiles = getFilesToSearchIn(findModel, project, psiDirectory);
     try {
-      final Set<PsiFile> largeFiles = new THashSet<PsiFile>();
+      final Set<PsiFile> largeFiles = Collections.synchronizedSet(new THashSet<PsiFile>());
+      final AtomicInteger processedFiles = new AtomicInteger();
+      final AtomicInteger count = new AtomicInteger();
+      final AtomicLong totalFilesSize = new AtomicLong();
+      final AtomicBoolean warningShown = new AtomicBoolean();
+
+      // the size warning is shown from the searching thread, which must not block the EDT waiting for it
+      final boolean parallel = Registry.is("find.in.path.parallel") && psiFiles.size() > 1 &&
+                               !ApplicationManager.getApplication().isDispatchThread();
+      // files are searched concurrently, but usages are reported to the consumer one by one as soon as they are found
+      final Processor<UsageInfo> usageConsumer = !parallel ? consumer : new Processor<UsageInfo>() {
+        @Override
+        public synchronized boolean process(UsageInfo info) {
+          return consumer.process(info);
+        }
+      };
 
-      int i = 0;
-      long totalFilesSize = 0;
-      int count = 0;
-      final boolean[] warningShown = {false};
+      final Processor<PsiFile> fileProcessor = new Processor<PsiFile>() {
+        @Override
+        public boolean process(PsiFile psiFile) {
+          final VirtualFile virtualFile = psiFile.getVirtualFile();
+          final int index = processedFiles.getAndIncrement();
+          if (virtualFile == null) return true;
 
-      for (final PsiFile psiFile : psiFiles) {
-        final VirtualFile virtualFile = psiFile.getVirtualFile();
-        final int index = i++;
-        if (virtualFile == null) continue;
+          long fileLength = getFileLength(virtualFile);
+          if (fileLength == -1) return true; // Binary or invalid
 
-        long fileLength = getFileLength(virtualFile);
-        if (fileLength == -1) continue; // Binary or invalid
+          if (ProjectCoreUtil.isProjectOrWorkspaceFile(virtualFile) && !Registry.is("find.search.in.project.files")) return true;
 
-        if (ProjectCoreUtil.isProjectOrWorkspaceFile(virtualFile) && !Registry.is("find.search.in.project.files")) continue;
+          if (fileLength > SINGLE_FILE_SIZE_LIMIT) {
+            largeFiles.add(psiFile);
+            return true;
+          }
 
-        if (fileLength > SINGLE_FILE_SIZE_LIMIT) {
-          largeFiles.add(psiFile);
-          continue;
-        }
+          if (progress != null) {
+            progress.checkCanceled();
+            progress.setFraction((double)index / psiFiles.size());
+            String text = FindBundle.message("find.searching.for.string.in.file.progress",
+                                             findModel.getStringToFind(), virtualFile.getPresentableUrl());
+            progress.setText(text);
+            progress.setText2(FindBundle.message("find.searching.for.string.in.file.occurrences.progress", count.get()));
+          }
 
-        if (progress != null) {
-          progress.checkCanceled();
-          progress.setFraction((double)index / psiFiles.size());
-          String text = FindBundle.message("find.searching.for.string.in.file.progress",
-                                           findModel.getStringToFind(), virtualFile.getPresentableUrl());
-          progress.setText(text);
-          progress.setText2(FindBundle.message("find.searching.for.string.in.file.occurrences.progress", count));
+          // the model keeps the search state of the file being searched in its user data (e.g. in comments or literals),
+          // so the files searched concurrently get their own copies of it
+          final FindModel model = parallel ? (FindModel)findModel.clone() : findModel;
+          int countInFile = processUsagesInFile(psiFile, model, usageConsumer);
+
+          count.addAndGet(countInFile);
+          if (countInFile > 0) {
+            long size = totalFilesSize.addAndGet(fileLength);
+            if (size > FILES_SIZE_LIMIT && warningShown.compareAndSet(false, true)) {
+              String message = FindBundle.message("find.excessive.total.size.prompt", presentableSize(size),
+                                                  ApplicationNamesInfo.getInstance().getProductName());
+              UsageLimitUtil.showAndCancelIfAborted(project, message);
+            }
+          }
+          return true;
         }
+      };
 
-        int countInFile = processUsagesInFile(psiFile, findModel, consumer);
-
-        count += countInFile;
-        if (countInFile > 0) {
-          totalFilesSize += fileLength;
-          if (totalFilesSize > FILES_SIZE_LIMIT && !warningShown[0]) {
-            warningShown[0] = true;
-            String message = FindBundle.message("find.excessive.total.size.prompt", presentableSize(totalFilesSize),
-                                                ApplicationNamesInfo.getInstance().getProductName());
-            UsageLimitUtil.showAndCancelIfAborted(project, message);
-          }
+      if (parallel) {
+        JobLauncher.getInstance().invokeConcurrentlyUnderProgress(new ArrayList<PsiFile>(psiFiles), progress, false, fileProcessor);
+      }
+      else {
+        for (PsiFile psiFile : psiFiles) {
+          fileProcessor.process(psiFile);
         }
       }
 
@@ -387,7 +416,9 @@ public class FindInProjectUtil {
       Pair<Boolean, Collection<PsiFile>> fastWords = getFilesForFastWordSearch(findModel, project, psiDirectory, fileMaskRegExp, module, fileIndex);
       final Collection<PsiFile> filesForFastWordSearch = fastWords.getSecond();
 
-      if (fastWords.getFirst() && canOptimizeForFastWordSearch(findModel)) return filesForFastWordSearch;
+      // the indices have found all the files containing the text except the ones too large to be indexed,
+      // which are still searched, so only those are looked for among the rest of the files
+      final boolean tooLargeFilesOnly = fastWords.getFirst() && canOptimizeForFastWordSearch(findModel);
 
       final GlobalSearchScope customScope = toGlobal(project, findModel.getCustomScope());
 
@@ -399,6 +430,7 @@ public class FindInProjectUtil {
         public boolean processFile(@NotNull VirtualFile virtualFile) {
           ProgressManager.checkCanceled();
           if (!virtualFile.isDirectory() &&
+              (!tooLargeFilesOnly || SingleRootFileViewProvider.isTooLargeForIntelligence(virtualFile)) &&
               (fileMaskRegExp == null || fileMaskRegExp.matcher(virtualFile.getName()).matches()) &&
               (customScope == null || customScope.contains(virtualFile))) {
             final PsiFile psiFile = psiManager.findFile(virtualFile);
@@ -495,12 +527,21 @@ public class FindInProjectUtil {
     final Set<PsiFile> resultFiles = new THashSet<PsiFile>();
     boolean fast = false;
 
-    String stringToFind = findModel.getStringToFind();
+    final String literalToFind = getLiteralToFind(findModel);
+    String stringToFind = literalToFind != null ? literalToFind : findModel.getStringToFind();
     if (TrigramIndex.ENABLED) {
-      TIntHashSet trigrams = TrigramBuilder.buildTrigram(stringToFind);
-      TIntIterator it = trigrams.iterator();
-      while (it.hasNext()) {
-        keys.add(it.next());
+      final List<String> requiredFragments = literalToFind != null
+                                             ? Collections.singletonList(literalToFind)
+                                             : RegExpRequiredText.getRequiredFragments(stringToFind);
+      for (String fragment : requiredFragments) {
+        // line separators of the file may differ, so only the lines of a multiline fragment are looked up
+        for (String line : StringUtil.tokenize(fragment, "\r\n")) {
+          TIntHashSet trigrams = TrigramBuilder.buildTrigram(line);
+          TIntIterator it = trigrams.iterator();
+          while (it.hasNext()) {
+            keys.add(it.next());
+          }
+        }
       }
 
       if (!keys.isEmpty()) {
@@ -509,7 +550,7 @@ public class FindInProjectUtil {
         FileBasedIndex.getInstance().getFilesWithKey(TrigramIndex.INDEX_ID, keys, new CommonProcessors.CollectProcessor<VirtualFile>(hits), scope);
 
         for (VirtualFile hit : hits) {
-          resultFiles.add(pm.findFile(hit));
+          ContainerUtil.addIfNotNull(resultFiles, pm.findFile(hit));
         }
 
         filterMaskedFiles(resultFiles, fileMaskRegExp);
@@ -517,6 +558,11 @@ public class FindInProjectUtil {
       }
     }
 
+    if (literalToFind == null) {
+      // words of a regular expression are not the words of the text it matches
+      return new Pair<Boolean, Collection<PsiFile>>(fast, resultFiles);
+    }
+
 
     // $ is used to separate words when indexing plain-text files but not when indexing
     // Java identifiers, so we can't consistently break a string containing $ characters into words
@@ -585,10 +631,38 @@ public class FindInProjectUtil {
   }
 
   private static boolean canOptimizeForFastWordSearch(@NotNull final FindModel findModel) {
-    return !findModel.isRegularExpressions()
-           && (findModel.getCustomScope() == null || findModel.getCustomScope() instanceof GlobalSearchScope);
+    // files for regular expressions are found only by the literal fragments every match contains, see RegExpRequiredText
+    return findModel.getCustomScope() == null || findModel.getCustomScope() instanceof GlobalSearchScope;
+  }
+
+  /**
+   * @return the text every occurrence consists of: the string to find itself or the regular expression matching only it,
+   * null for other regular expressions
+   */
+  @Nullable
+  private static String getLiteralToFind(@NotNull FindModel findModel) {
+    final String stringToFind = findModel.getStringToFind();
+    if (!findModel.isRegularExpressions()) return stringToFind;
+
+    final StringBuilder literal = new StringBuilder(stringToFind.length());
+    for (int i = 0; i < stringToFind.length(); i++) {
+      char c = stringToFind.charAt(i);
+      if (c == '\\') {
+        if (++i == stringToFind.length()) return null;
+        c = stringToFind.charAt(i);
+        // escaped letters and digits are classes, back references, anchors etc.
+        if (Character.isLetterOrDigit(c)) return null;
+      }
+      else if (REGEXP_META_CHARS.indexOf(c) >= 0) {
+        return null;
+      }
+      literal.append(c);
+    }
+    return literal.toString();
   }
 
+  private static final String REGEXP_META_CHARS = ".$^|?*+()[]{}";
+
   private static int addToUsages(@NotNull Document document, @NotNull Processor<UsageInfo> consumer, @NotNull FindModel findModel,
                                  @NotNull final PsiFile psiFile, int[] offsetRef, int maxUsages) {
     int count = 0;
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.find.impl;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Finds out literal fragments of text every match of a {@link java.util.regex.Pattern} contains, so the files to search in
+ * can be narrowed with indices before running the matcher. Anything not understood (alternatives, optional parts, classes,
+ * lookarounds) just doesn't contribute fragments, so the result may be incomplete but never requires text a match can lack.
+ */
+final class RegExpRequiredText {
+  private static final String META_CHARS = ".^$|?*+()[]{}";
+
+  private RegExpRequiredText() {
+  }
+
+  @NotNull
+  static List<String> getRequiredFragments(@NotNull String regExp) {
+    if (regExp.contains("(?") && hasCommentsFlag(regExp)) {
+      return Collections.emptyList(); // whitespace in the pattern doesn't stand for itself
+    }
+    final List<String> result = new ArrayList<String>();
+    try {
+      collect(regExp, 0, regExp.length(), result);
+    }
+    catch (MalformedRegExpException e) {
+      return Collections.emptyList();
+    }
+    return result;
+  }
+
+  private static void collect(@NotNull String re, int start, int end, @NotNull List<String> result) throws MalformedRegExpException {
+    if (hasTopLevelAlternation(re, start, end)) return;
+
+    final StringBuilder fragment = new StringBuilder();
+    int i = start;
+    while (i < end) {
+      final char c = re.charAt(i);
+      String literal = null;
+      int groupContentStart = -1;
+      int next;
+      if (c == '\\') {
+        if (i + 1 >= end) throw new MalformedRegExpException();
+        final char escaped = re.charAt(i + 1);
+        if (escaped == 'Q') {
+          int quoteEnd = re.indexOf("\\E", i + 2);
+          if (quoteEnd < 0 || quoteEnd > end) quoteEnd = end;
+          literal = re.substring(i + 2, quoteEnd);
+          next = Math.min(quoteEnd + 2, end);
+        }
+        else if (!Character.isLetterOrDigit(escaped)) {
+          literal = String.valueOf(escaped);
+          next = i + 2;
+        }
+        else {
+          next = skipEscape(re, i, end);
+        }
+      }
+      else if (c == '[') {
+        next = skipClass(re, i, end);
+      }
+      else if (c == '(') {
+        final int close = findGroupEnd(re, i, end);
+        groupContentStart = getGroupContentStart(re, i, close);
+        next = close + 1;
+      }
+      else if (META_CHARS.indexOf(c) >= 0) {
+        next = i + 1;
+      }
+      else {
+        literal = String.valueOf(c);
+        next = i + 1;
+      }
+
+      boolean optional = false;
+      int quantifierEnd = next;
+      if (next < end) {
+        final char q = re.charAt(next);
+        if (q == '?' || q == '*') {
+          optional = true;
+          quantifierEnd = next + 1;
+        }
+        else if (q == '+') {
+          quantifierEnd = next + 1;
+        }
+        else if (q == '{') {
+          final int close = re.indexOf('}', next);
+          if (close < 0 || close >= end) throw new MalformedRegExpException();
+          final String min = re.substring(next + 1, close).split(",", -1)[0].trim();
+          optional = min.isEmpty() || isZero(min);
+          quantifierEnd = close + 1;
+        }
+        if (quantifierEnd > next && quantifierEnd < end && (re.charAt(quantifierEnd) == '?' || re.charAt(quantifierEnd) == '+')) {
+          quantifierEnd++; // reluctant or possessive
+        }
+      }
+      final boolean quantified = quantifierEnd > next;
+
+      if (literal != null) {
+        if (optional) {
+          // the quantifier applies to the last char only
+          fragment.append(literal, 0, Math.max(0, literal.length() - 1));
+          flush(fragment, result);
+        }
+        else {
+          fragment.append(literal);
+          if (quantified) flush(fragment, result);
+        }
+      }
+      else {
+        flush(fragment, result);
+        if (groupContentStart >= 0 && !optional) {
+          collect(re, groupContentStart, next - 1, result);
+        }
+      }
+      i = quantifierEnd;
+    }
+    flush(fragment, result);
+  }
+
+  private static void flush(@NotNull StringBuilder fragment, @NotNull List<String> result) {
+    if (fragment.length() > 0) {
+      result.add(fragment.toString());
+      fragment.setLength(0);
+    }
+  }
+
+  private static boolean isZero(@NotNull String number) {
+    for (int i = 0; i < number.length(); i++) {
+      if (number.charAt(i) != '0') return false;
+    }
+    return true;
+  }
+
+  private static boolean hasTopLevelAlternation(@NotNull String re, int start, int end) throws MalformedRegExpException {
+    int i = start;
+    while (i < end) {
+      final char c = re.charAt(i);
+      if (c == '|') return true;
+      if (c == '\\') {
+        i = skipEscapeOrQuote(re, i, end);
+      }
+      else if (c == '[') {
+        i = skipClass(re, i, end);
+      }
+      else if (c == '(') {
+        i = findGroupEnd(re, i, end) + 1;
+      }
+      else {
+        i++;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the index of the first char of the group content, -1 if the group doesn't have to match text itself
+   * (lookarounds, flags)
+   */
+  private static int getGroupContentStart(@NotNull String re, int open, int close) {
+    if (open + 1 >= close || re.charAt(open + 1) != '?') return open + 1;
+    if (open + 2 < close && re.charAt(open + 2) == ':') return open + 3;
+    if (open + 3 < close && re.charAt(open + 2) == '<' && Character.isLetter(re.charAt(open + 3))) {
+      final int nameEnd = re.indexOf('>', open + 3);
+      return nameEnd > 0 && nameEnd < close ? nameEnd + 1 : -1; // named group
+    }
+    return -1;
+  }
+
+  private static int findGroupEnd(@NotNull String re, int open, int end) throws MalformedRegExpException {
+    int depth = 0;
+    int i = open;
+    while (i < end) {
+      final char c = re.charAt(i);
+      if (c == '\\') {
+        i = skipEscapeOrQuote(re, i, end);
+        continue;
+      }
+      if (c == '[') {
+        i = skipClass(re, i, end);
+        continue;
+      }
+      if (c == '(') {
+        depth++;
+      }
+      else if (c == ')' && --depth == 0) {
+        return i;
+      }
+      i++;
+    }
+    throw new MalformedRegExpException();
+  }
+
+  private static int skipClass(@NotNull String re, int open, int end) throws MalformedRegExpException {
+    int i = open + 1;
+    if (i < end && re.charAt(i) == '^') i++;
+    if (i < end && re.charAt(i) == ']') i++; // the first ']' stands for itself
+    int depth = 1;
+    while (i < end) {
+      final char c = re.charAt(i);
+      if (c == '\\') {
+        i = skipEscapeOrQuote(re, i, end);
+        continue;
+      }
+      if (c == '[') {
+        depth++;
+      }
+      else if (c == ']' && --depth == 0) {
+        return i + 1;
+      }
+      i++;
+    }
+    throw new MalformedRegExpException();
+  }
+
+  private static int skipEscapeOrQuote(@NotNull String re, int backslash, int end) throws MalformedRegExpException {
+    if (backslash + 1 < end && re.charAt(backslash + 1) == 'Q') {
+      final int quoteEnd = re.indexOf("\\E", backslash + 2);
+      return quoteEnd < 0 || quoteEnd + 2 > end ? end : quoteEnd + 2;
+    }
+    return skipEscape(re, backslash, end);
+  }
+
+  private static int skipEscape(@NotNull String re, int backslash, int end) throws MalformedRegExpException {
+    if (backslash + 1 >= end) throw new MalformedRegExpException();
+    final int i = backslash + 2;
+    switch (re.charAt(backslash + 1)) {
+      case 'x':
+        return i < end && re.charAt(i) == '{' ? skipTo(re, '}', i, end) : Math.min(i + 2, end);
+      case 'u':
+        return Math.min(i + 4, end);
+      case 'c':
+        return Math.min(i + 1, end);
+      case 'p':
+      case 'P':
+        return i < end && re.charAt(i) == '{' ? skipTo(re, '}', i, end) : Math.min(i + 1, end);
+      case 'k':
+        return skipTo(re, '>', i, end);
+      default:
+        // octal escapes and back references take all the following digits
+        int j = i;
+        if (Character.isDigit(re.charAt(backslash + 1))) {
+          while (j < end && Character.isDigit(re.charAt(j))) j++;
+        }
+        return j;
+    }
+  }
+
+  private static int skipTo(@NotNull String re, char c, int from, int end) throws MalformedRegExpException {
+    final int index = re.indexOf(c, from);
+    if (index < 0 || index >= end) throw new MalformedRegExpException();
+    return index + 1;
+  }
+
+  private static boolean hasCommentsFlag(@NotNull String re) {
+    for (int i = re.indexOf("(?"); i >= 0; i = re.indexOf("(?", i + 2)) {
+      for (int j = i + 2; j < re.length(); j++) {
+        final char c = re.charAt(j);
+        if (c == 'x') return true;
+        if (!Character.isLetter(c) && c != '-') break;
+      }
+    }
+    return false;
+  }
+
+  private static class MalformedRegExpException extends Exception {
+  }
+}
@@ -47,6 +47,7 @@ import com.intellij.openapi.wm.IdeFocusManager;
 import com.intellij.openapi.wm.WindowManager;
 import com.intellij.openapi.wm.ex.WindowManagerEx;
 import com.intellij.psi.PsiElement;
+import com.intellij.psi.codeStyle.CamelHumpNameIndex;
 import com.intellij.psi.codeStyle.MinusculeMatcher;
 import com.intellij.psi.codeStyle.NameUtil;
 import com.intellij.psi.statistics.StatisticsInfo;
@@ -122,6 +123,7 @@ public abstract class ChooseByNameBase {
   private ActionCallback myPostponedOkAction;
 
   private final String[][] myNames = new String[2][];
+  private final CamelHumpNameIndex[] myNameIndices = new CamelHumpNameIndex[2];
   private volatile CalcElementsThread myCalcElementsThread;
   private static int VISIBLE_LIST_SIZE_LIMIT = 10;
   private int myListSizeIncreasing = 30;
@@ -154,6 +156,7 @@ public abstract class ChooseByNameBase {
     myDisposedFlag = disposedFlag;
     if (disposedFlag) {
       myNames[0] = myNames[1] = null;
+      myNameIndices[0] = myNameIndices[1] = null;
     }
   }
 
@@ -818,6 +821,21 @@ public abstract class ChooseByNameBase {
     return checkboxState ? myNames[1] : myNames[0];
   }
 
+  /**
+   * @return the index of the names loaded for the checkbox state, null if the names are not loaded
+   */
+  @Nullable
+  public synchronized CamelHumpNameIndex getNameIndex(boolean checkboxState) {
+    int index = checkboxState ? 1 : 0;
+    String[] names = myNames[index];
+    if (names == null) return null;
+    CamelHumpNameIndex nameIndex = myNameIndices[index];
+    if (nameIndex == null || nameIndex.getNames() != names) {
+      myNameIndices[index] = nameIndex = new CamelHumpNameIndex(names);
+    }
+    return nameIndex;
+  }
+
 
   @NotNull
   protected Set<Object> filter(@NotNull Set<Object> elements) {
@@ -23,6 +23,7 @@ import com.intellij.openapi.util.Comparing;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.psi.PsiElement;
+import com.intellij.psi.codeStyle.CamelHumpNameIndex;
 import com.intellij.psi.codeStyle.MinusculeMatcher;
 import com.intellij.psi.codeStyle.NameUtil;
 import com.intellij.psi.util.proximity.PsiProximityComparator;
@@ -66,26 +67,31 @@ public class DefaultChooseByNameItemProvider implements ChooseByNameItemProvider
                     namePattern.equals("@") && model instanceof GotoClassModel2;    // TODO[yole]: remove implicit dependency
     if (empty && !base.canShowListForEmptyPattern()) return true;
 
-    Set<String> names = new THashSet<String>(Arrays.asList(base.getNames(everywhere)));
+    // the names which may match the pattern by prefix or camel humps, null if all names may match
+    List<String> candidates = getCandidateNames(base, everywhere, namePattern, false);
+    boolean middleMatch = base.isSearchInAnyPlace() && !namePattern.trim().isEmpty();
+    // the middle matched names contain all the chars of the pattern, the names matched by prefix are among them too
+    List<String> middleMatchCandidates = middleMatch ? getCandidateNames(base, everywhere, namePattern, true) : candidates;
+    Set<String> names = new THashSet<String>(middleMatchCandidates == null ? Arrays.asList(base.getNames(everywhere)) : middleMatchCandidates);
 
-    if (base.isSearchInAnyPlace() && !namePattern.trim().isEmpty()) {
+    if (middleMatch) {
       String middleMatchPattern = "*" + namePattern + (namePattern.charAt(namePattern.length() - 1) == ' ' ? "" : "*");
 
       // consume elements matching by prefix case-sensitively
       Integer elementsConsumed = consumeElements(base, everywhere, indicator, consumer, namePattern, qualifierPattern, names,
-                                                 MatchingMode.CASE_SENSITIVE, false);
+                                                 candidates, MatchingMode.CASE_SENSITIVE, false);
       if (elementsConsumed == null) return false;
 
       if (elementsConsumed == 0) {
         // search for strict prefixes case-insensitively
         elementsConsumed = consumeElements(base, everywhere, indicator, consumer, namePattern,
-                                           qualifierPattern, names, MatchingMode.STRICT_CASE_INSENSITIVE, false);
+                                           qualifierPattern, names, candidates, MatchingMode.STRICT_CASE_INSENSITIVE, false);
         if (elementsConsumed == null) return false;
 
         // search with original pattern without case sensitivity, don't add separator before found items
         // result: items matched by prefix will always be above middle-matched items
         Integer elementsConsumed2 = consumeElements(base, everywhere, indicator, consumer, namePattern,
-                                                    qualifierPattern, names, MatchingMode.CASE_INSENSITIVE, false);
+                                                    qualifierPattern, names, candidates, MatchingMode.CASE_INSENSITIVE, false);
         if (elementsConsumed2 == null) return false;
 
         elementsConsumed += elementsConsumed2;
@@ -93,12 +99,12 @@ public class DefaultChooseByNameItemProvider implements ChooseByNameItemProvider
 
       // search with broadest criteria - middle match pattern, without case sensitivity
       elementsConsumed = consumeElements(base, everywhere, indicator, consumer, middleMatchPattern,
-                                         qualifierPattern, names, MatchingMode.CASE_INSENSITIVE, elementsConsumed > 0);
+                                         qualifierPattern, names, null, MatchingMode.CASE_INSENSITIVE, elementsConsumed > 0);
       return elementsConsumed != null;
     }
     else {
       Integer elementsConsumed = consumeElements(base, everywhere, indicator, consumer, namePattern, qualifierPattern, names,
-                                                 MatchingMode.CASE_INSENSITIVE, false);
+                                                 null, MatchingMode.CASE_INSENSITIVE, false);
       return elementsConsumed != null;
     }
   }
@@ -114,11 +120,24 @@ public class DefaultChooseByNameItemProvider implements ChooseByNameItemProvider
                                   @NotNull String namePattern,
                                   @NotNull String qualifierPattern,
                                   @NotNull Set<String> allNames,
+                                  @Nullable List<String> candidates,
                                   @NotNull MatchingMode matchingMode,
                                   boolean needSeparator) {
     ChooseByNameModel model = base.getModel();
+    List<String> namesToMatch;
+    if (candidates == null) {
+      namesToMatch = new ArrayList<String>(allNames);
+    }
+    else {
+      namesToMatch = new ArrayList<String>(candidates.size());
+      for (String candidate : candidates) {
+        if (allNames.contains(candidate)) {
+          namesToMatch.add(candidate);
+        }
+      }
+    }
     List<String> namesList = new ArrayList<String>();
-    getNamesByPattern(base, new ArrayList<String>(allNames), indicator, namesList, namePattern, matchingMode);
+    getNamesByPattern(base, namesToMatch, indicator, namesList, namePattern, matchingMode);
     allNames.removeAll(namesList);
     sortNamesList(namePattern, namesList);
 
@@ -161,6 +180,24 @@ public class DefaultChooseByNameItemProvider implements ChooseByNameItemProvider
     return elementsConsumed;
   }
 
+  /**
+   * @return the names the pattern may match by prefix or camel humps, or anywhere in the name for the middle matching
+   * (see {@link CamelHumpNameIndex}), null if the index can't narrow them
+   */
+  @Nullable
+  private static List<String> getCandidateNames(@NotNull ChooseByNameBase base,
+                                                boolean everywhere,
+                                                @NotNull String namePattern,
+                                                boolean middleMatch) {
+    if (base.getModel() instanceof CustomMatcherModel) return null;
+    if (StringUtil.startsWithChar(namePattern, '@') && base.getModel() instanceof GotoClassModel2) {
+      namePattern = namePattern.substring(1);
+    }
+    CamelHumpNameIndex index = base.getNameIndex(everywhere);
+    if (index == null) return null;
+    return middleMatch ? index.getMiddleMatchCandidates(namePattern) : index.getCandidates(namePattern);
+  }
+
   protected void sortNamesList(@NotNull String namePattern, @NotNull List<String> namesList) {
     // Here we sort using namePattern to have similar logic with empty qualified patten case
     Collections.sort(namesList, new MatchesComparator(namePattern));
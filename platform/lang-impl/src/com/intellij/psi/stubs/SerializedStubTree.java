@@ -20,33 +20,62 @@
 package com.intellij.psi.stubs;
 
 import com.intellij.util.CompressionUtil;
+import com.intellij.util.io.DataInputOutputUtil;
 import com.intellij.util.io.UnsyncByteArrayInputStream;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Arrays;
 
 public class SerializedStubTree {
-  private final byte[] myBytes;
-  private final int myLength;
+  // the tree as it is stored in the index: the size written by CompressionUtil.writeCompressed and the bytes after it,
+  // kept until the tree is really needed, so reading values of the index doesn't unpack them
+  private final byte[] myStoredBytes;
+  private final int myStoredSize;
+  private volatile byte[] myBytes;
+  private volatile int myLength;
   private Stub myStubElement;
 
   public SerializedStubTree(final byte[] bytes, int length, @Nullable Stub stubElement) {
     myBytes = bytes;
     myLength = length;
     myStubElement = stubElement;
+    myStoredBytes = null;
+    myStoredSize = 0;
   }
   
   public SerializedStubTree(DataInput in) throws IOException {
-    myBytes = CompressionUtil.readCompressed(in);
-    myLength = myBytes.length;
+    myStoredSize = DataInputOutputUtil.readINT(in);
+    myStoredBytes = new byte[Math.abs(myStoredSize)];
+    in.readFully(myStoredBytes);
   }
 
   public void write(DataOutput out) throws IOException {
+    if (myBytes == null) {
+      DataInputOutputUtil.writeINT(out, myStoredSize);
+      out.write(myStoredBytes);
+      return;
+    }
     CompressionUtil.writeCompressed(out, myBytes, myLength);
   }
 
+  private byte[] getBytes() {
+    byte[] bytes = myBytes;
+    if (bytes == null) {
+      try {
+        bytes = CompressionUtil.uncompress(myStoredBytes, myStoredSize);
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      myLength = bytes.length;
+      myBytes = bytes;
+    }
+    return bytes;
+  }
+
   // willIndexStub is one time optimization hint, once can safely pass false
   public Stub getStub(boolean willIndexStub) throws SerializerNotFoundException {
     Stub stubElement = myStubElement;
@@ -56,7 +85,18 @@ public class SerializedStubTree {
       myStubElement = null;
       if (willIndexStub) return stubElement;
     }
-    return SerializationManagerEx.getInstanceEx().deserialize(new UnsyncByteArrayInputStream(myBytes));
+    final byte[] bytes = getBytes();
+    return SerializationManagerEx.getInstanceEx().deserialize(new UnsyncByteArrayInputStream(bytes, 0, myLength));
+  }
+
+  private int getLength() {
+    if (myBytes != null) return myLength;
+    try {
+      return CompressionUtil.uncompressedLength(myStoredBytes, myStoredSize);
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
   }
 
   public boolean equals(final Object that) {
@@ -67,13 +107,17 @@ public class SerializedStubTree {
       return false;
     }
     final SerializedStubTree thatTree = (SerializedStubTree)that;
-    final int length = myLength;
-    if (length != thatTree.myLength) {
+    if (myBytes == null && thatTree.myBytes == null && myStoredSize == thatTree.myStoredSize &&
+        Arrays.equals(myStoredBytes, thatTree.myStoredBytes)) {
+      return true;
+    }
+    if (getLength() != thatTree.getLength()) {
       return false;
     }
 
-    final byte[] thisBytes = myBytes;
-    final byte[] thatBytes = thatTree.myBytes;
+    final byte[] thisBytes = getBytes();
+    final byte[] thatBytes = thatTree.getBytes();
+    final int length = myLength;
     for (int i=0; i< length; i++) {
       if (thisBytes[i] != thatBytes[i]) {
         return false;
@@ -84,15 +128,9 @@ public class SerializedStubTree {
   }
 
   public int hashCode() {
-    if (myBytes == null)
-        return 0;
-
-    int result = 1;
-    for (int i = 0; i < myLength; i++) {
-      result = 31 * result + myBytes[i];
-    }
-
-    return result;
+    // the same tree may be stored packed or not, or packed by another version of the compressor, so only the length of the unpacked
+    // bytes is hashed: it's known without unpacking them
+    return getLength();
   }
 
-}
\ No newline at end of file
+}
@@ -99,6 +99,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   private final TObjectIntHashMap<ID<?, ?>> myIndexIdToVersionMap = new TObjectIntHashMap<ID<?, ?>>();
   private final Set<ID<?, ?>> myNotRequiringContentIndices = new THashSet<ID<?, ?>>();
   private final Set<ID<?, ?>> myRequiringContentIndices = new THashSet<ID<?, ?>>();
+  private final Set<ID<?, ?>> myBatchUpdatableIndices = new THashSet<ID<?, ?>>();
   private final Set<FileType> myNoLimitCheckTypes = new THashSet<FileType>();
 
   private final PerIndexDocumentVersionMap myLastIndexedDocStamps = new PerIndexDocumentVersionMap();
@@ -127,6 +128,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   private volatile int myLocalModCount;
   private volatile int myFilesModCount;
   private final AtomicInteger myUpdatingFiles = new AtomicInteger();
+  private final AtomicInteger myBatchUpdaters = new AtomicInteger();
   @SuppressWarnings({"FieldCanBeLocal", "UnusedDeclaration"}) private volatile boolean myInitialized;
     // need this variable for memory barrier
 
@@ -261,12 +263,12 @@ public class FileBasedIndexImpl extends FileBasedIndex {
 
   @Override
   public void requestReindex(@NotNull final VirtualFile file) {
-    myChangedFilesCollector.invalidateIndices(file, true);
+    myChangedFilesCollector.invalidateIndices(file, true, false);
   }
 
   @Override
   public void requestReindexExcluded(@NotNull final VirtualFile file) {
-    myChangedFilesCollector.invalidateIndices(file, false);
+    myChangedFilesCollector.invalidateIndices(file, false, false);
   }
 
   private void initExtensions() {
@@ -381,17 +383,11 @@ public class FileBasedIndexImpl extends FileBasedIndex {
       IndexInfrastructure.rewriteVersion(versionFile, version);
     }
 
-    MapIndexStorage<K, V> storage = null;
+    IndexStorage<K, V> storage = null;
 
     for (int attempt = 0; attempt < 2; attempt++) {
       try {
-        storage = new MapIndexStorage<K, V>(
-          IndexInfrastructure.getStorageFile(name),
-          extension.getKeyDescriptor(),
-          extension.getValueExternalizer(),
-          extension.getCacheSize(),
-          extension.isKeyHighlySelective()
-        );
+        storage = createIndexStorage(name, extension);
         final MemoryIndexStorage<K, V> memStorage = new MemoryIndexStorage<K, V>(storage);
         final UpdatableIndex<K, V, FileContent> index = createIndex(name, extension, memStorage);
         final InputFilter inputFilter = extension.getInputFilter();
@@ -426,6 +422,28 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     return versionChanged;
   }
 
+  @NotNull
+  private static <K, V> IndexStorage<K, V> createIndexStorage(@NotNull ID<K, V> name, @NotNull FileBasedIndexExtension<K, V> extension)
+    throws IOException {
+    if (IndexInfrastructure.STORAGE_SHARDS_COUNT > 1) {
+      return new ShardedIndexStorage<K, V>(
+        IndexInfrastructure.getStorageFile(name),
+        extension.getKeyDescriptor(),
+        extension.getValueExternalizer(),
+        extension.getCacheSize(),
+        extension.isKeyHighlySelective(),
+        IndexInfrastructure.STORAGE_SHARDS_COUNT
+      );
+    }
+    return new MapIndexStorage<K, V>(
+      IndexInfrastructure.getStorageFile(name),
+      extension.getKeyDescriptor(),
+      extension.getValueExternalizer(),
+      extension.getCacheSize(),
+      extension.isKeyHighlySelective()
+    );
+  }
+
   private static void saveRegisteredIndices(@NotNull Collection<ID<?, ?>> ids) {
     final File file = getRegisteredIndicesFile();
     try {
@@ -486,6 +504,8 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     }
     else {
       index = new MapReduceIndex<K, V, FileContent>(indexId, extension.getIndexer(), storage);
+      // custom implementations may read their storage directly while updating, so only plain indices accumulate updates in batches
+      myBatchUpdatableIndices.add(indexId);
     }
 
     final KeyDescriptor<K> keyDescriptor = extension.getKeyDescriptor();
@@ -762,6 +782,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
                                     @Nullable GlobalSearchScope filter,
                                     @Nullable VirtualFile restrictedFile) {
     if (!needsFileContentLoading(indexId)) {
+      applyBatchedUpdates(indexId);
       return; //indexed eagerly in foreground while building unindexed file list
     }
     if (filter == GlobalSearchScope.EMPTY_SCOPE) {
@@ -773,6 +794,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
 
     if (myReentrancyGuard.get().booleanValue()) {
       //assert false : "ensureUpToDate() is not reentrant!";
+      applyBatchedUpdates(indexId);
       return;
     }
     myReentrancyGuard.set(Boolean.TRUE);
@@ -802,6 +824,47 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     finally {
       myReentrancyGuard.set(Boolean.FALSE);
     }
+    applyBatchedUpdates(indexId);
+  }
+
+  private void applyBatchedUpdates(@NotNull ID<?, ?> indexId) {
+    if (!myBatchUpdatableIndices.contains(indexId)) {
+      return;
+    }
+    try {
+      ((MapReduceIndex<?, ?, FileContent>)getIndex(indexId)).applyBatchedUpdates();
+    }
+    catch (StorageException e) {
+      scheduleRebuild(indexId, e);
+    }
+  }
+
+  /**
+   * Switches plain indices to batch update mode for the time of bulk indexing, see {@link MapReduceIndex#setBatchUpdatesEnabled(boolean)}.
+   * Calls may be nested, batch mode is turned off with the last {@link #finishBatchUpdates()}.
+   */
+  void startBatchUpdates() {
+    if (myBatchUpdaters.getAndIncrement() == 0) {
+      setBatchUpdatesEnabled(true);
+    }
+  }
+
+  void finishBatchUpdates() {
+    if (myBatchUpdaters.decrementAndGet() == 0) {
+      setBatchUpdatesEnabled(false);
+    }
+  }
+
+  private void setBatchUpdatesEnabled(boolean enabled) {
+    for (ID<?, ?> indexId : myBatchUpdatableIndices) {
+      try {
+        ((MapReduceIndex<?, ?, FileContent>)getIndex(indexId)).setBatchUpdatesEnabled(enabled);
+      }
+      catch (StorageException e) {
+        requestRebuild(indexId);
+        LOG.info(e);
+      }
+    }
   }
 
   private static void handleDumbMode(@Nullable Project project) {
@@ -973,52 +1036,29 @@ public class FileBasedIndexImpl extends FileBasedIndex {
                                                       @Nullable Condition<V> valueChecker,
                                                       @NotNull final Processor<VirtualFile> processor) {
     ProjectIndexableFilesFilter filesSet = projectIndexableFiles(filter.getProject());
-    final TIntHashSet set = collectFileIdsContainingAllKeys(indexId, dataKeys, filter, valueChecker, filesSet);
+    final IdBitSet set = collectFileIdsContainingAllKeys(indexId, dataKeys, filter, valueChecker, filesSet);
     return set != null && processVirtualFiles(set, filter, processor);
   }
 
   private static final Key<SoftReference<ProjectIndexableFilesFilter>> ourProjectFilesSetKey = Key.create("projectFiles");
 
   public static final class ProjectIndexableFilesFilter {
-    private static final int SHIFT = 6;
-    private static final int MASK = (1 << SHIFT) - 1;
-    private final long[] myBitMask;
+    private final IdBitSet myIds = new IdBitSet();
     private final int myModificationCount;
-    private final int myMinId;
-    private final int myMaxId;
 
     private ProjectIndexableFilesFilter(@NotNull TIntArrayList set, int modificationCount) {
       myModificationCount = modificationCount;
-      final int[] minMax = new int[2];
-      if (!set.isEmpty()) {
-        minMax[0] = minMax[1] = set.get(0);
-      }
       set.forEach(new TIntProcedure() {
         @Override
         public boolean execute(int value) {
-          minMax[0] = Math.min(minMax[0], value);
-          minMax[1] = Math.max(minMax[1], value);
-          return true;
-        }
-      });
-      myMaxId = minMax[1];
-      myMinId = minMax[0];
-      myBitMask = new long[((myMaxId - myMinId) >> SHIFT) + 1];
-      set.forEach(new TIntProcedure() {
-        @Override
-        public boolean execute(int value) {
-          value -= myMinId;
-          myBitMask[value >> SHIFT] |= (1L << (value & MASK));
+          myIds.add(value);
           return true;
         }
       });
     }
 
     public boolean contains(int id) {
-      if (id < myMinId) return false;
-      if (id > myMaxId) return false;
-      id -= myMinId;
-      return (myBitMask[id >> SHIFT] & (1L << (id & MASK))) != 0;
+      return myIds.contains(id);
     }
   }
 
@@ -1072,22 +1112,23 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   }
 
   @Nullable
-  private <K, V> TIntHashSet collectFileIdsContainingAllKeys(@NotNull final ID<K, V> indexId,
-                                                             @NotNull final Collection<K> dataKeys,
-                                                             @NotNull final GlobalSearchScope filter,
-                                                             @Nullable final Condition<V> valueChecker,
-                                                             @Nullable final ProjectIndexableFilesFilter projectFilesFilter) {
-    final ThrowableConvertor<UpdatableIndex<K, V, FileContent>, TIntHashSet, StorageException> convertor =
-      new ThrowableConvertor<UpdatableIndex<K, V, FileContent>, TIntHashSet, StorageException>() {
+  private <K, V> IdBitSet collectFileIdsContainingAllKeys(@NotNull final ID<K, V> indexId,
+                                                          @NotNull final Collection<K> dataKeys,
+                                                          @NotNull final GlobalSearchScope filter,
+                                                          @Nullable final Condition<V> valueChecker,
+                                                          @Nullable final ProjectIndexableFilesFilter projectFilesFilter) {
+    final ThrowableConvertor<UpdatableIndex<K, V, FileContent>, IdBitSet, StorageException> convertor =
+      new ThrowableConvertor<UpdatableIndex<K, V, FileContent>, IdBitSet, StorageException>() {
         @Nullable
         @Override
-        public TIntHashSet convert(@NotNull UpdatableIndex<K, V, FileContent> index) throws StorageException {
-          TIntHashSet mainIntersection = null;
+        public IdBitSet convert(@NotNull UpdatableIndex<K, V, FileContent> index) throws StorageException {
+          IdBitSet mainIntersection = null;
+          IdBitSet keyIds = new IdBitSet();
 
           for (K dataKey : dataKeys) {
             ProgressManager.checkCanceled();
-            final TIntHashSet copy = new TIntHashSet();
             final ValueContainer<V> container = index.getData(dataKey);
+            keyIds.clear();
 
             for (final Iterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
               final V value = valueIt.next();
@@ -1103,26 +1144,30 @@ public class FileBasedIndexImpl extends FileBasedIndex {
                   if (mainIntersection == null && (projectFilesFilter == null || projectFilesFilter.contains(id)) ||
                       mainIntersection != null && mainIntersection.contains(id)
                     ) {
-                    copy.add(id);
+                    keyIds.add(id);
                   }
                 }
               }
               else {
+                final IdBitSet finalKeyIds = keyIds;
                 mainIntersection.forEach(new TIntProcedure() {
                   final ValueContainer.IntPredicate predicate = container.getValueAssociationPredicate(value);
 
                   @Override
                   public boolean execute(int id) {
-                    if (predicate.contains(id)) copy.add(id);
+                    if (predicate.contains(id)) finalKeyIds.add(id);
                     return true;
                   }
                 });
               }
             }
 
-            mainIntersection = copy;
+            // keyIds contains only ids from mainIntersection, so it is the intersection now, reuse the previous one for the next key
+            final IdBitSet previous = mainIntersection;
+            mainIntersection = keyIds;
+            keyIds = previous != null ? previous : new IdBitSet();
             if (mainIntersection.isEmpty()) {
-              return new TIntHashSet();
+              return mainIntersection;
             }
           }
 
@@ -1134,7 +1179,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     return processExceptions(indexId, null, filter, convertor);
   }
 
-  private static boolean processVirtualFiles(@NotNull TIntHashSet ids,
+  private static boolean processVirtualFiles(@NotNull IdBitSet ids,
                                              @NotNull final GlobalSearchScope filter,
                                              @NotNull final Processor<VirtualFile> processor) {
     final PersistentFS fs = (PersistentFS)ManagingFS.getInstance();
@@ -1175,46 +1220,50 @@ public class FileBasedIndexImpl extends FileBasedIndex {
 
       try {
         index.getReadLock().lock();
-        final List<TIntHashSet> locals = new ArrayList<TIntHashSet>();
+        final ProjectIndexableFilesFilter projectIndexableFilesFilter = projectIndexableFiles(project);
+        final List<ValueContainer<V>> containers = new ArrayList<ValueContainer<V>>(dataKeys.size());
         for (K dataKey : dataKeys) {
-          TIntHashSet local = new TIntHashSet();
-          locals.add(local);
           final ValueContainer<V> container = index.getData(dataKey);
+          if (container.size() == 0) {
+            return true;
+          }
+          containers.add(container);
+        }
+        if (containers.size() > 1) {
+          // the rarest keys first, so the intersection shrinks as early as possible
+          sortByInputIdsCount(containers);
+        }
+
+        // ids of every next key are collected only if they are in the intersection of the previous keys
+        IdBitSet intersection = null;
+        IdBitSet keyIds = new IdBitSet();
+        for (ValueContainer<V> container : containers) {
+          keyIds.clear();
 
           for (final Iterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
             final V value = valueIt.next();
             for (final ValueContainer.IntIterator inputIdsIterator = container.getInputIdsIterator(value); inputIdsIterator.hasNext(); ) {
               final int id = inputIdsIterator.next();
-              local.add(id);
+              if (intersection == null ? projectIndexableFilesFilter == null || projectIndexableFilesFilter.contains(id)
+                                       : intersection.contains(id)) {
+                keyIds.add(id);
+              }
             }
           }
+
+          final IdBitSet previous = intersection;
+          intersection = keyIds;
+          keyIds = previous != null ? previous : new IdBitSet();
+          if (intersection.isEmpty()) {
+            return true;
+          }
         }
 
-        if (locals.isEmpty()) {
+        if (intersection == null) {
           return true;
         }
 
-        Collections.sort(locals, new Comparator<TIntHashSet>() {
-          @Override
-          public int compare(TIntHashSet o1, TIntHashSet o2) {
-            return o1.size() - o2.size();
-          }
-        });
-
-        final PersistentFS fs = (PersistentFS)ManagingFS.getInstance();
-        TIntIterator ids = join(locals).iterator();
-        ProjectIndexableFilesFilter projectIndexableFilesFilter = projectIndexableFiles(project);
-        while (ids.hasNext()) {
-          int id = ids.next();
-          if (projectIndexableFilesFilter != null && !projectIndexableFilesFilter.contains(id)) continue;
-          //VirtualFile file = IndexInfrastructure.findFileById(fs, id);
-          VirtualFile file = IndexInfrastructure.findFileByIdIfCached(fs, id);
-          if (file != null && filter.accept(file)) {
-            if (!processor.process(file)) {
-              return false;
-            }
-          }
-        }
+        return processVirtualFiles(intersection, filter, processor);
       }
       finally {
         index.getReadLock().unlock();
@@ -1235,23 +1284,31 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     return true;
   }
 
-  @NotNull
-  private static TIntHashSet join(@NotNull List<TIntHashSet> locals) {
-    TIntHashSet result = locals.get(0);
-    if (locals.size() > 1) {
-      TIntIterator it = result.iterator();
-
-      while (it.hasNext()) {
-        int id = it.next();
-        for (int i = 1; i < locals.size(); i++) {
-          if (!locals.get(i).contains(id)) {
-            it.remove();
-            break;
-          }
-        }
+  private static <V> void sortByInputIdsCount(@NotNull List<ValueContainer<V>> containers) {
+    // counting the ids iterates over them, so every container is counted once; there are as many containers as keys queried
+    final int[] counts = new int[containers.size()];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = getInputIdsCount(containers.get(i));
+    }
+    for (int i = 1; i < counts.length; i++) {
+      final int count = counts[i];
+      final ValueContainer<V> container = containers.get(i);
+      int j = i - 1;
+      for (; j >= 0 && counts[j] > count; j--) {
+        counts[j + 1] = counts[j];
+        containers.set(j + 1, containers.get(j));
       }
+      counts[j + 1] = count;
+      containers.set(j + 1, container);
     }
-    return result;
+  }
+
+  private static <V> int getInputIdsCount(@NotNull ValueContainer<V> container) {
+    int count = 0;
+    for (final Iterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
+      count += container.getInputIdsIterator(valueIt.next()).size();
+    }
+    return count;
   }
 
   @Override
@@ -1551,6 +1608,12 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   @NotNull
   private StorageGuard.Holder setDataBufferingEnabled(final boolean enabled) {
     final StorageGuard.Holder holder = myStorageLock.enter(enabled);
+    if (enabled) {
+      // batched updates belong to the on-disk data and must reach the storage before it starts buffering in memory
+      for (ID<?, ?> indexId : myBatchUpdatableIndices) {
+        applyBatchedUpdates(indexId);
+      }
+    }
     for (ID<?, ?> indexId : myIndices.keySet()) {
       final MapReduceIndex index = (MapReduceIndex)getIndex(indexId);
       assert index != null;
@@ -1647,6 +1710,9 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     try {
       PsiFile psiFile = null;
       FileContentImpl fc = null;
+      byte[] contentHash = null;
+      Set<ID<?, ?>> reusableIndices = null;
+      boolean indexedContentDropped = false;
       for (final ID<?, ?> indexId : myIndices.keySet()) {
         if (shouldIndexFile(file, indexId)) {
           if (fc == null) {
@@ -1658,6 +1724,8 @@ public class FileBasedIndexImpl extends FileBasedIndex {
               currentBytes = ArrayUtil.EMPTY_BYTE_ARRAY;
             }
             fc = new FileContentImpl(file, currentBytes);
+            contentHash = IndexingStamp.calculateContentHash(currentBytes);
+            reusableIndices = IndexingStamp.getReusableIndices(file, contentHash);
 
             psiFile = content.getUserData(IndexingDataKeys.PSI_FILE);
             if (psiFile != null) {
@@ -1670,6 +1738,18 @@ public class FileBasedIndexImpl extends FileBasedIndex {
             fc.putUserData(IndexingDataKeys.PROJECT, project);
           }
 
+          if (reusableIndices.contains(indexId)) {
+            // the content is the same as the index data has been built from
+            reuseIndexedContent(indexId, file);
+            continue;
+          }
+
+          if (!indexedContentDropped) {
+            // the index is about to get the data of the new content; if the indexing is cancelled, the indices hold data of
+            // different contents, so none of them may be reused until the file is indexed completely
+            IndexingStamp.dropIndexedContent(file);
+            indexedContentDropped = true;
+          }
           try {
             ProgressManager.checkCanceled();
             updateSingleIndex(indexId, file, fc);
@@ -1688,12 +1768,31 @@ public class FileBasedIndexImpl extends FileBasedIndex {
       if (psiFile != null) {
         psiFile.putUserData(PsiFileImpl.BUILDING_STUB, null);
       }
+      if (contentHash != null) {
+        IndexingStamp.setIndexedContentHash(file, contentHash);
+      }
     }
     finally {
       FileTypeManagerImpl.cacheFileType(file, null);
     }
   }
 
+  private void reuseIndexedContent(final ID<?, ?> indexId, @NotNull final VirtualFile file) {
+    if (ourRebuildStatus.get(indexId).get() == REQUIRES_REBUILD) {
+      return; // the index is scheduled for rebuild, no need to update
+    }
+    myLocalModCount++;
+
+    ApplicationManager.getApplication().runReadAction(new Runnable() {
+      @Override
+      public void run() {
+        if (file.isValid()) {
+          IndexingStamp.update(file, indexId, IndexInfrastructure.getIndexCreationStamp(indexId));
+        }
+      }
+    });
+  }
+
   private void updateSingleIndex(final ID<?, ?> indexId, @NotNull final VirtualFile file, @Nullable final FileContent currentFC)
     throws StorageException {
     if (ourRebuildStatus.get(indexId).get() == REQUIRES_REBUILD) {
@@ -1817,12 +1916,12 @@ public class FileBasedIndexImpl extends FileBasedIndex {
 
     @Override
     public void beforeFileDeletion(@NotNull final VirtualFileEvent event) {
-      invalidateIndices(event.getFile(), false);
+      invalidateIndices(event.getFile(), false, false);
     }
 
     @Override
     public void beforeContentsChange(@NotNull final VirtualFileEvent event) {
-      invalidateIndices(event.getFile(), true);
+      invalidateIndices(event.getFile(), true, true);
     }
 
     @Override
@@ -1838,7 +1937,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
         if (!file.isDirectory()) {
           // name change may lead to filetype change so the file might become not indexable
           // in general case have to 'unindex' the file and index it again if needed after the name has been changed
-          invalidateIndices(file, false);
+          invalidateIndices(file, false, false);
         }
       }
     }
@@ -1902,7 +2001,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
       myFilesToUpdate.add(file);
     }
 
-    private void invalidateIndices(@NotNull final VirtualFile file, final boolean markForReindex) {
+    private void invalidateIndices(@NotNull final VirtualFile file, final boolean markForReindex, final boolean contentChange) {
       VfsUtilCore.visitChildrenRecursively(file, new VirtualFileVisitor() {
         @Override
         public boolean visitFile(@NotNull VirtualFile file) {
@@ -1915,7 +2014,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
             }
           }
           else {
-            invalidateIndicesForFile(file, markForReindex);
+            invalidateIndicesForFile(file, markForReindex, contentChange);
           }
           return true;
         }
@@ -1927,7 +2026,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
       });
     }
 
-    private void invalidateIndicesForFile(final VirtualFile file, boolean markForReindex) {
+    private void invalidateIndicesForFile(final VirtualFile file, boolean markForReindex, boolean contentChange) {
       cleanProcessedFlag(file);
       IndexingStamp.flushCache(file);
       final List<ID<?, ?>> affectedIndices = new ArrayList<ID<?, ?>>(myIndices.size());
@@ -1951,6 +2050,15 @@ public class FileBasedIndexImpl extends FileBasedIndex {
         }
       }
 
+      final boolean keepIndexedContent = contentChange && !affectedIndices.isEmpty() && !isTooLarge(file);
+      if (keepIndexedContent) {
+        // the data stays in the indices until they are updated, so it may turn out to be valid for the new content as well
+        IndexingStamp.markIndexedContentReusable(file, affectedIndices);
+      }
+      else if (!contentChange) {
+        IndexingStamp.dropIndexedContent(file);
+      }
+
       if (!affectedIndices.isEmpty()) {
         if (markForReindex && !isTooLarge(file)) {
           // only mark the file as unindexed, reindex will be done lazily
@@ -2011,6 +2119,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
           }
         }
       }
+      IndexingStamp.dropIndexedContent(file);
       IndexingStamp.flushCache(file);
       if (unexpectedError != null) {
         LOG.error(unexpectedError);
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import gnu.trove.TIntProcedure;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Set of non-negative ids (file ids) kept as bitmap split into blocks of 64K ids, blocks without ids are not allocated.
+ * {@link #clear()} keeps allocated blocks so the set may be reused for the next query.
+ * Not thread-safe.
+ */
+final class IdBitSet {
+  private static final int BLOCK_SHIFT = 16;
+  private static final int WORD_SHIFT = 6;
+  private static final int WORDS_IN_BLOCK = 1 << (BLOCK_SHIFT - WORD_SHIFT);
+  private static final int ID_IN_BLOCK_MASK = (1 << BLOCK_SHIFT) - 1;
+  private static final long[][] EMPTY_BLOCKS = new long[0][];
+
+  private long[][] myBlocks = EMPTY_BLOCKS;
+  private int mySize;
+
+  public void add(int id) {
+    assert id >= 0 : id;
+    final int blockIndex = id >>> BLOCK_SHIFT;
+    if (blockIndex >= myBlocks.length) {
+      myBlocks = Arrays.copyOf(myBlocks, Math.max(blockIndex + 1, myBlocks.length * 3 / 2));
+    }
+    long[] block = myBlocks[blockIndex];
+    if (block == null) {
+      myBlocks[blockIndex] = block = new long[WORDS_IN_BLOCK];
+    }
+    final int wordIndex = (id & ID_IN_BLOCK_MASK) >>> WORD_SHIFT;
+    final long bit = 1L << id; // shift distance is taken modulo 64
+    if ((block[wordIndex] & bit) == 0) {
+      block[wordIndex] |= bit;
+      mySize++;
+    }
+  }
+
+  public boolean contains(int id) {
+    if (id < 0) return false;
+    final int blockIndex = id >>> BLOCK_SHIFT;
+    if (blockIndex >= myBlocks.length) return false;
+    final long[] block = myBlocks[blockIndex];
+    return block != null && (block[(id & ID_IN_BLOCK_MASK) >>> WORD_SHIFT] & (1L << id)) != 0;
+  }
+
+  public int size() {
+    return mySize;
+  }
+
+  public boolean isEmpty() {
+    return mySize == 0;
+  }
+
+  public void clear() {
+    if (mySize == 0) return;
+    for (long[] block : myBlocks) {
+      if (block != null) Arrays.fill(block, 0);
+    }
+    mySize = 0;
+  }
+
+  /**
+   * Processes ids in ascending order.
+   */
+  public boolean forEach(@NotNull TIntProcedure procedure) {
+    for (int i = 0; i < myBlocks.length; i++) {
+      final long[] block = myBlocks[i];
+      if (block == null) continue;
+      for (int j = 0; j < WORDS_IN_BLOCK; j++) {
+        long word = block[j];
+        while (word != 0) {
+          final int bit = Long.numberOfTrailingZeros(word);
+          if (!procedure.execute((i << BLOCK_SHIFT) | (j << WORD_SHIFT) | bit)) return false;
+          word &= word - 1;
+        }
+      }
+    }
+    return true;
+  }
+}
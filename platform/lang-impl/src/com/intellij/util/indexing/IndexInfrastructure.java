@@ -27,6 +27,7 @@ import com.intellij.openapi.vfs.ex.dummy.DummyFileSystem;
 import com.intellij.openapi.vfs.newvfs.persistent.PersistentFS;
 import com.intellij.psi.stubs.StubIndexKey;
 import com.intellij.psi.stubs.StubUpdatingIndex;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.ConcurrentHashMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -36,7 +37,12 @@ import java.util.Locale;
 
 @SuppressWarnings({"HardCodedStringLiteral"})
 public class IndexInfrastructure {
-  private static final int VERSION = 9;
+  private static final int VERSION = 10;
+  /**
+   * Number of key-hash shards the storage of every file-based index is split into, see {@link ShardedIndexStorage}.
+   * Changing the value makes all indices rebuilt.
+   */
+  public static final int STORAGE_SHARDS_COUNT = Math.max(1, SystemProperties.getIntProperty("idea.index.storage.shards", 1));
   private static final ConcurrentHashMap<ID<?, ?>, Long> ourIndexIdToCreationStamp = new ConcurrentHashMap<ID<?, ?>, Long>();
   private static final boolean ourUnitTestMode = ApplicationManager.getApplication().isUnitTestMode();
   public static final long INVALID_STAMP = -1L;
@@ -80,6 +86,7 @@ public class IndexInfrastructure {
     try {
       os.writeInt(version);
       os.writeInt(VERSION);
+      os.writeInt(STORAGE_SHARDS_COUNT);
     }
     finally {
       ourIndexIdToCreationStamp.clear();
@@ -107,7 +114,8 @@ public class IndexInfrastructure {
       try {
         final int savedIndexVersion = in.readInt();
         final int commonVersion = in.readInt();
-        return savedIndexVersion != currentIndexVersion || commonVersion != VERSION;
+        final int shardsCount = in.available() >= 4 ? in.readInt() : 1; // not written by older versions
+        return savedIndexVersion != currentIndexVersion || commonVersion != VERSION || shardsCount != STORAGE_SHARDS_COUNT;
       }
       finally {
         in.close();
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.util.Processor;
+import gnu.trove.THashMap;
+import gnu.trove.TIntArrayList;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Accumulates storage modifications produced by many inputs and applies them grouped by key.
+ * Per key the modifications are replayed in the order they were recorded, so the result is the same as applying them one by one,
+ * but every key is touched only once per batch and keys are visited in a stable sorted order.
+ * Not thread-safe: the owner is expected to modify it under the index write lock and to read it under the read lock.
+ */
+final class IndexUpdateBatch<Key, Value> {
+  private static final Object REMOVED = new Object();
+  private static final int MIN_KEYS_TO_APPLY_CONCURRENTLY = 1000;
+
+  private final THashMap<Key, KeyUpdates> myUpdates = new THashMap<Key, KeyUpdates>();
+  private int myOperationCount;
+
+  private static final class KeyUpdates {
+    final TIntArrayList inputIds = new TIntArrayList(2);
+    final List<Object> values = new ArrayList<Object>(2);
+
+    boolean hasAddedValues() {
+      for (Object value : values) {
+        if (value != REMOVED) return true;
+      }
+      return false;
+    }
+  }
+
+  void addValue(Key key, int inputId, Value value) {
+    KeyUpdates updates = getUpdates(key);
+    updates.inputIds.add(inputId);
+    updates.values.add(value);
+    myOperationCount++;
+  }
+
+  void removeAllValues(Key key, int inputId) {
+    KeyUpdates updates = getUpdates(key);
+    updates.inputIds.add(inputId);
+    updates.values.add(REMOVED);
+    myOperationCount++;
+  }
+
+  @NotNull
+  private KeyUpdates getUpdates(Key key) {
+    KeyUpdates updates = myUpdates.get(key);
+    if (updates == null) {
+      updates = new KeyUpdates();
+      myUpdates.put(key, updates);
+    }
+    return updates;
+  }
+
+  int getOperationCount() {
+    return myOperationCount;
+  }
+
+  boolean isEmpty() {
+    return myOperationCount == 0;
+  }
+
+  /**
+   * @return the data of the key as it is going to be after the batch is applied to the storage, the stored data is not modified
+   */
+  @NotNull
+  ValueContainer<Value> getData(Key key, @NotNull ValueContainer<Value> stored) {
+    final KeyUpdates updates = myUpdates.get(key);
+    if (updates == null) return stored;
+
+    final ValueContainerImpl<Value> result = new ValueContainerImpl<Value>();
+    for (Iterator<Value> valueIt = stored.getValueIterator(); valueIt.hasNext(); ) {
+      final Value value = valueIt.next();
+      for (ValueContainer.IntIterator idIt = stored.getInputIdsIterator(value); idIt.hasNext(); ) {
+        result.addValue(idIt.next(), value);
+      }
+    }
+    final TIntArrayList inputIds = updates.inputIds;
+    for (int i = 0, size = inputIds.size(); i < size; i++) {
+      final Object value = updates.values.get(i);
+      if (value == REMOVED) {
+        result.removeAssociatedValue(inputIds.get(i));
+      }
+      else {
+        //noinspection unchecked
+        result.addValue(inputIds.get(i), (Value)value);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Processes the keys values are added to by the batch, and then the keys of the storage not processed yet.
+   */
+  boolean processKeys(@NotNull IndexStorage<Key, Value> storage, @NotNull final Processor<Key> processor) throws StorageException {
+    final Set<Key> processed = new HashSet<Key>();
+    for (Map.Entry<Key, KeyUpdates> entry : myUpdates.entrySet()) {
+      if (entry.getValue().hasAddedValues()) {
+        if (!processor.process(entry.getKey())) return false;
+        processed.add(entry.getKey());
+      }
+    }
+    return storage.processKeys(new Processor<Key>() {
+      @Override
+      public boolean process(Key key) {
+        return processed.contains(key) || processor.process(key);
+      }
+    });
+  }
+
+  /**
+   * Replays all recorded modifications against the storage and empties the batch, even if the storage fails
+   * (the index is going to be rebuilt in that case anyway).
+   * If the storage is backed by several shards, keys of different shards are replayed concurrently, one thread per shard.
+   */
+  void applyTo(@NotNull IndexStorage<Key, Value> storage, @Nullable ShardedIndexStorage<Key, Value> shards) throws StorageException {
+    try {
+      if (shards == null || myUpdates.size() < MIN_KEYS_TO_APPLY_CONCURRENTLY) {
+        final List<Key> keys = new ArrayList<Key>(myUpdates.keySet());
+        sortKeys(keys);
+        applyTo(storage, keys);
+      }
+      else {
+        applyConcurrently(storage, shards);
+      }
+    }
+    finally {
+      myUpdates.clear();
+      myOperationCount = 0;
+    }
+  }
+
+  private void applyConcurrently(@NotNull final IndexStorage<Key, Value> storage, @NotNull ShardedIndexStorage<Key, Value> shards)
+    throws StorageException {
+    final List<List<Key>> keysByShard = new ArrayList<List<Key>>(shards.getShardsCount());
+    for (int i = 0; i < shards.getShardsCount(); i++) {
+      keysByShard.add(new ArrayList<Key>());
+    }
+    for (Key key : myUpdates.keySet()) {
+      keysByShard.get(shards.getShardIndex(key)).add(key);
+    }
+
+    final List<Future<?>> futures = new ArrayList<Future<?>>(keysByShard.size() - 1);
+    for (int i = 1; i < keysByShard.size(); i++) {
+      final List<Key> keys = keysByShard.get(i);
+      if (keys.isEmpty()) continue;
+      futures.add(ApplicationManager.getApplication().executeOnPooledThread(new Callable<Object>() {
+        @Override
+        public Object call() throws StorageException {
+          sortKeys(keys);
+          applyTo(storage, keys);
+          return null;
+        }
+      }));
+    }
+
+    StorageException exception = null;
+    try {
+      final List<Key> keys = keysByShard.get(0);
+      sortKeys(keys);
+      applyTo(storage, keys);
+    }
+    catch (StorageException e) {
+      exception = e;
+    }
+    // wait for all shards even if some have failed or the thread is interrupted: the storage must not be modified after the batch is applied
+    boolean interrupted = false;
+    for (Future<?> future : futures) {
+      while (true) {
+        try {
+          future.get();
+          break;
+        }
+        catch (InterruptedException e) {
+          interrupted = true;
+        }
+        catch (ExecutionException e) {
+          if (exception == null) {
+            final Throwable cause = e.getCause();
+            exception = cause instanceof StorageException ? (StorageException)cause : new StorageException(cause);
+          }
+          break;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (exception != null) throw exception;
+  }
+
+  private void applyTo(@NotNull IndexStorage<Key, Value> storage, @NotNull List<Key> keys) throws StorageException {
+    for (Key key : keys) {
+      final KeyUpdates updates = myUpdates.get(key);
+      final TIntArrayList inputIds = updates.inputIds;
+      for (int i = 0, size = inputIds.size(); i < size; i++) {
+        final Object value = updates.values.get(i);
+        if (value == REMOVED) {
+          storage.removeAllValues(key, inputIds.get(i));
+        }
+        else {
+          //noinspection unchecked
+          storage.addValue(key, inputIds.get(i), (Value)value);
+        }
+      }
+    }
+  }
+
+  private static <Key> void sortKeys(@NotNull List<Key> keys) {
+    if (keys.size() < 2) return;
+    for (Key key : keys) {
+      if (!(key instanceof Comparable)) {
+        Collections.sort(keys, HASH_CODE_COMPARATOR);
+        return;
+      }
+    }
+    try {
+      //noinspection unchecked
+      Collections.sort((List)keys);
+    }
+    catch (ClassCastException e) {
+      // keys of mutually incomparable types
+      Collections.sort(keys, HASH_CODE_COMPARATOR);
+    }
+  }
+
+  private static final Comparator<Object> HASH_CODE_COMPARATOR = new Comparator<Object>() {
+    @Override
+    public int compare(Object o1, Object o2) {
+      final int h1 = o1 == null ? 0 : o1.hashCode();
+      final int h2 = o2 == null ? 0 : o2.hashCode();
+      return h1 < h2 ? -1 : h1 == h2 ? 0 : 1;
+    }
+  };
+}
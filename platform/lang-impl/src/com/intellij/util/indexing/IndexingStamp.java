@@ -22,13 +22,21 @@ import com.intellij.openapi.vfs.newvfs.FileAttribute;
 import com.intellij.openapi.vfs.newvfs.NewVirtualFile;
 import com.intellij.util.containers.ConcurrentHashMap;
 import com.intellij.util.io.DataInputOutputUtil;
+import gnu.trove.THashSet;
 import gnu.trove.TObjectLongHashMap;
 import gnu.trove.TObjectLongProcedure;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 
 /**
@@ -216,4 +224,152 @@ public class IndexingStamp {
       if (finishedFile != null) myFinishedFiles.offer(finishedFile);
     }
   }
+
+  /**
+   * Hash of the content the content-requiring indices of the file were built from. When the content changes the indices whose data
+   * is still built from it are remembered along with their creation stamps, and if the new content turns out to have the same hash
+   * (e.g. after switching to another branch and back) the data is valid again, so the indices need not be updated.
+   */
+  private static final FileAttribute INDEXED_CONTENT = new FileAttribute("__indexed_content__", 1, false);
+  private static final int CONTENT_HASH_SIZE = 20;
+  private static final Object ourIndexedContentLock = new Object();
+  private static final ThreadLocal<MessageDigest> ourContentDigest = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("SHA-1");
+      }
+      catch (NoSuchAlgorithmException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  };
+
+  @NotNull
+  public static byte[] calculateContentHash(@NotNull byte[] content) {
+    final MessageDigest digest = ourContentDigest.get();
+    digest.reset();
+    return digest.digest(content);
+  }
+
+  /**
+   * Remembers the hash of the content all content-requiring indices of the file have just been built from.
+   */
+  public static void setIndexedContentHash(@NotNull VirtualFile file, @NotNull byte[] hash) {
+    synchronized (ourIndexedContentLock) {
+      if (!(file instanceof NewVirtualFile) || !file.isValid()) return;
+      writeIndexedContent(file, hash, null);
+    }
+  }
+
+  /**
+   * Called before the content of the file changes: the indices keep the data built from the current content until they are updated.
+   */
+  public static void markIndexedContentReusable(@NotNull VirtualFile file, @NotNull Collection<ID<?, ?>> indices) {
+    synchronized (ourIndexedContentLock) {
+      if (!(file instanceof NewVirtualFile) || !file.isValid()) return;
+      final TObjectLongHashMap<ID<?, ?>> reusable = new TObjectLongHashMap<ID<?, ?>>();
+      final byte[] hash = readIndexedContent(file, reusable);
+      if (hash == null) return;
+      for (ID<?, ?> indexId : indices) {
+        reusable.put(indexId, IndexInfrastructure.getIndexCreationStamp(indexId));
+      }
+      writeIndexedContent(file, hash, reusable);
+    }
+  }
+
+  /**
+   * @return the indices of the file whose data has been built from the content with the given hash and is still there
+   */
+  @NotNull
+  public static Set<ID<?, ?>> getReusableIndices(@NotNull VirtualFile file, @NotNull byte[] hash) {
+    synchronized (ourIndexedContentLock) {
+      if (!(file instanceof NewVirtualFile) || !file.isValid()) return Collections.emptySet();
+      final TObjectLongHashMap<ID<?, ?>> reusable = new TObjectLongHashMap<ID<?, ?>>();
+      final byte[] indexedHash = readIndexedContent(file, reusable);
+      if (indexedHash == null || reusable.isEmpty() || !Arrays.equals(hash, indexedHash)) return Collections.emptySet();
+
+      final Set<ID<?, ?>> result = new THashSet<ID<?, ?>>();
+      reusable.forEachEntry(new TObjectLongProcedure<ID<?, ?>>() {
+        @Override
+        public boolean execute(ID<?, ?> indexId, long creationStamp) {
+          // the index has been rebuilt since then
+          if (creationStamp == IndexInfrastructure.getIndexCreationStamp(indexId)) result.add(indexId);
+          return true;
+        }
+      });
+      return result;
+    }
+  }
+
+  /**
+   * Called when the data of the indices may not correspond to the content of the file anymore (e.g. it is removed from the indices).
+   */
+  public static void dropIndexedContent(@NotNull VirtualFile file) {
+    synchronized (ourIndexedContentLock) {
+      if (!(file instanceof NewVirtualFile) || !file.isValid()) return;
+      if (readIndexedContent(file, null) != null) {
+        writeIndexedContent(file, null, null);
+      }
+    }
+  }
+
+  @Nullable
+  private static byte[] readIndexedContent(@NotNull VirtualFile file, @Nullable TObjectLongHashMap<ID<?, ?>> reusable) {
+    final DataInputStream stream = INDEXED_CONTENT.readAttribute(file);
+    if (stream == null) return null;
+    try {
+      try {
+        if (stream.available() < CONTENT_HASH_SIZE) return null;
+        final byte[] hash = new byte[CONTENT_HASH_SIZE];
+        stream.readFully(hash);
+        while (reusable != null && stream.available() > 0) {
+          final ID<?, ?> id = ID.findById(DataInputOutputUtil.readINT(stream));
+          final long creationStamp = DataInputOutputUtil.readTIME(stream);
+          if (id != null) reusable.put(id, creationStamp);
+        }
+        return hash;
+      }
+      finally {
+        stream.close();
+      }
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static void writeIndexedContent(@NotNull VirtualFile file,
+                                          @Nullable byte[] hash,
+                                          @Nullable TObjectLongHashMap<ID<?, ?>> reusable) {
+    final DataOutputStream stream = INDEXED_CONTENT.writeAttribute(file);
+    try {
+      try {
+        if (hash != null) {
+          stream.write(hash);
+          if (reusable != null) {
+            reusable.forEachEntry(new TObjectLongProcedure<ID<?, ?>>() {
+              @Override
+              public boolean execute(ID<?, ?> id, long creationStamp) {
+                try {
+                  DataInputOutputUtil.writeINT(stream, id.getUniqueId());
+                  DataInputOutputUtil.writeTIME(stream, creationStamp);
+                  return true;
+                }
+                catch (IOException e) {
+                  throw new RuntimeException(e);
+                }
+              }
+            });
+          }
+        }
+      }
+      finally {
+        stream.close();
+      }
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
 }
@@ -22,6 +22,7 @@ import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.CommonProcessors;
 import com.intellij.util.Processor;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.io.PersistentHashMap;
 import gnu.trove.THashMap;
 import gnu.trove.TObjectObjectProcedure;
@@ -41,13 +42,17 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  */
 public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Value, Input> {
   private static final Logger LOG = Logger.getInstance("#com.intellij.util.indexing.MapReduceIndex");
+  private static final int MAX_BATCHED_OPERATIONS = SystemProperties.getIntProperty("idea.indexing.max.batched.operations", 200000);
   @Nullable private final ID<Key, Value> myIndexId;
   private final DataIndexer<Key, Value, Input> myIndexer;
   @NotNull protected final IndexStorage<Key, Value> myStorage;
   @Nullable private PersistentHashMap<Integer, Collection<Key>> myInputsIndex;
 
   private final ReentrantReadWriteLock myLock = new ReentrantReadWriteLock();
-  
+  // guarded by myLock.writeLock(); non-null when updates are accumulated and applied to the storage in batches
+  @Nullable private IndexUpdateBatch<Key, Value> myBatch;
+  private volatile boolean myHasBatchedUpdates;
+
   private Factory<PersistentHashMap<Integer, Collection<Key>>> myInputsIndexFactory;
 
 
@@ -66,6 +71,10 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
   public void clear() throws StorageException {
     try {
       getWriteLock().lock();
+      if (myBatch != null) {
+        myBatch = new IndexUpdateBatch<Key, Value>();
+        myHasBatchedUpdates = false;
+      }
       myStorage.clear();
       if (myInputsIndex != null) {
         final File baseFile = myInputsIndex.getBaseFile();
@@ -122,6 +131,7 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
     try {
       lock.lock();
       try {
+        doApplyBatchedUpdates();
         myStorage.close();
       }
       finally {
@@ -166,7 +176,8 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
     final Lock lock = getReadLock();
     try {
       lock.lock();
-      return myStorage.processKeys(processor);
+      final IndexUpdateBatch<Key, Value> batch = myBatch;
+      return batch != null && !batch.isEmpty() ? batch.processKeys(myStorage, processor) : myStorage.processKeys(processor);
     }
     finally {
       lock.unlock();
@@ -179,7 +190,9 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
     final Lock lock = getReadLock();
     try {
       lock.lock();
-      return myStorage.read(key);
+      final IndexUpdateBatch<Key, Value> batch = myBatch;
+      final ValueContainer<Value> data = myStorage.read(key);
+      return batch != null && !batch.isEmpty() ? batch.getData(key, data) : data;
     }
     finally {
       lock.unlock();
@@ -191,6 +204,81 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
     myInputsIndex = createInputsIndex();
   }
 
+  /**
+   * In batch mode storage modifications made by {@link #update(int, Object)} are accumulated in memory and applied
+   * grouped and sorted by key, which considerably reduces random writes into the storage during bulk indexing.
+   * Pending modifications are applied when the batch grows too large, when batch mode is turned off and by {@link #applyBatchedUpdates()}.
+   * Reads never apply them, which would need the write lock, but see them on top of the stored data.
+   * Modifications made while in-memory buffering of the storage is enabled are never batched.
+   */
+  public void setBatchUpdatesEnabled(boolean enabled) throws StorageException {
+    final Lock lock = getWriteLock();
+    lock.lock();
+    try {
+      if (enabled) {
+        if (myBatch == null) {
+          myBatch = new IndexUpdateBatch<Key, Value>();
+        }
+      }
+      else if (myBatch != null) {
+        try {
+          doApplyBatchedUpdates();
+        }
+        finally {
+          myBatch = null;
+        }
+      }
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Applies accumulated batch modifications, if any, to the storage.
+   * Does nothing if the current thread holds the read lock of the index, since the lock can't be upgraded:
+   * the pending modifications stay visible to the reads anyway.
+   */
+  public void applyBatchedUpdates() throws StorageException {
+    if (!myHasBatchedUpdates || myLock.getReadHoldCount() > 0) {
+      return;
+    }
+    final Lock lock = getWriteLock();
+    lock.lock();
+    try {
+      doApplyBatchedUpdates();
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /*MUST be called under the WriteLock*/
+  private void doApplyBatchedUpdates() throws StorageException {
+    final IndexUpdateBatch<Key, Value> batch = myBatch;
+    if (batch != null && !batch.isEmpty()) {
+      try {
+        batch.applyTo(myStorage, getShardedStorage());
+      }
+      finally {
+        myHasBatchedUpdates = false;
+      }
+    }
+  }
+
+  @Nullable
+  private ShardedIndexStorage<Key, Value> getShardedStorage() {
+    IndexStorage<Key, Value> storage = myStorage;
+    if (storage instanceof MemoryIndexStorage) {
+      storage = ((MemoryIndexStorage<Key, Value>)storage).getBackendStorage();
+    }
+    return storage instanceof ShardedIndexStorage ? (ShardedIndexStorage<Key, Value>)storage : null;
+  }
+
+  private boolean isBatchingApplicable() {
+    return myBatch != null && !(myStorage instanceof MemoryIndexStorage && ((MemoryIndexStorage)myStorage).isBufferingEnabled());
+  }
+
   @Nullable
   private PersistentHashMap<Integer, Collection<Key>> createInputsIndex() throws IOException {
     Factory<PersistentHashMap<Integer, Collection<Key>>> factory = myInputsIndexFactory;
@@ -226,9 +314,15 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
   protected void updateWithMap(final int inputId, @NotNull Map<Key, Value> newData, @NotNull Callable<Collection<Key>> oldKeysGetter) throws StorageException {
     getWriteLock().lock();
     try {
+      final IndexUpdateBatch<Key, Value> batch = isBatchingApplicable() ? myBatch : null;
       try {
         for (Key key : oldKeysGetter.call()) {
-          myStorage.removeAllValues(key, inputId);
+          if (batch != null) {
+            batch.removeAllValues(key, inputId);
+          }
+          else {
+            myStorage.removeAllValues(key, inputId);
+          }
         }
       }
       catch (Exception e) {
@@ -241,6 +335,10 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
         final boolean b = ((THashMap<Key, Value>)newData).forEachEntry(new TObjectObjectProcedure<Key, Value>() {
           @Override
           public boolean execute(Key key, Value value) {
+            if (batch != null) {
+              batch.addValue(key, inputId, value);
+              return true;
+            }
             try {
               myStorage.addValue(key, inputId, value);
             }
@@ -254,7 +352,18 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
         if (!b) throw exceptionRef.get();
       } else {
         for (Map.Entry<Key, Value> entry : newData.entrySet()) {
-          myStorage.addValue(entry.getKey(), inputId, entry.getValue());
+          if (batch != null) {
+            batch.addValue(entry.getKey(), inputId, entry.getValue());
+          }
+          else {
+            myStorage.addValue(entry.getKey(), inputId, entry.getValue());
+          }
+        }
+      }
+      if (batch != null) {
+        myHasBatchedUpdates = !batch.isEmpty();
+        if (batch.getOperationCount() > MAX_BATCHED_OPERATIONS) {
+          doApplyBatchedUpdates();
         }
       }
       if (myInputsIndex != null) {
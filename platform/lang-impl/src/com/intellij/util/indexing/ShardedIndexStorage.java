@@ -0,0 +1,185 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.util.CommonProcessors;
+import com.intellij.util.Processor;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.KeyDescriptor;
+import com.intellij.util.io.PagedFileStorage;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Index storage split into several {@link MapIndexStorage}s by key hash. Every shard has its own files, its own cache
+ * and its own paged storage lock, shared by the shards with the same number of all indices, so modifications of keys
+ * from different shards may be applied by different threads without contending with each other (see {@link IndexUpdateBatch}).
+ * A key always lives in exactly one shard, so reads are routed to that shard and only key enumeration visits all of them.
+ */
+public final class ShardedIndexStorage<Key, Value> implements IndexStorage<Key, Value> {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.util.indexing.ShardedIndexStorage");
+  private final KeyDescriptor<Key> myKeyDescriptor;
+  private final MapIndexStorage<Key, Value>[] myShards;
+  private static final Object ourShardLocksLock = new Object();
+  // guarded by ourShardLocksLock
+  private static PagedFileStorage.StorageLock[] ourShardLocks = new PagedFileStorage.StorageLock[0];
+
+  public ShardedIndexStorage(@NotNull File storageFile,
+                             @NotNull KeyDescriptor<Key> keyDescriptor,
+                             @NotNull DataExternalizer<Value> valueExternalizer,
+                             final int cacheSize,
+                             boolean highKeySelectivity,
+                             int shardsCount) throws IOException {
+    assert shardsCount > 1 : shardsCount;
+    myKeyDescriptor = keyDescriptor;
+    //noinspection unchecked
+    myShards = new MapIndexStorage[shardsCount];
+    final int shardCacheSize = Math.max(16, cacheSize / shardsCount);
+    try {
+      for (int i = 0; i < shardsCount; i++) {
+        myShards[i] = new MapIndexStorage<Key, Value>(getShardFile(storageFile, i), keyDescriptor, valueExternalizer, shardCacheSize,
+                                                      highKeySelectivity,
+                                                      new PagedFileStorage.StorageLockContext(getShardLock(i, shardsCount), true));
+      }
+    }
+    catch (IOException e) {
+      closeOpenedShards();
+      throw e;
+    }
+    catch (RuntimeException e) {
+      closeOpenedShards();
+      throw e;
+    }
+  }
+
+  @NotNull
+  private static PagedFileStorage.StorageLock getShardLock(int shard, int shardsCount) {
+    synchronized (ourShardLocksLock) {
+      if (ourShardLocks.length < shardsCount) {
+        ourShardLocks = PagedFileStorage.StorageLock.createConcurrentLocks(shardsCount, true);
+      }
+      return ourShardLocks[shard];
+    }
+  }
+
+  @NotNull
+  private static File getShardFile(@NotNull File storageFile, int shard) {
+    return new File(storageFile.getPath() + ".shard" + shard);
+  }
+
+  private void closeOpenedShards() {
+    for (MapIndexStorage<Key, Value> shard : myShards) {
+      if (shard == null) continue;
+      try {
+        shard.close();
+      }
+      catch (Throwable ignored) {
+      }
+    }
+  }
+
+  public int getShardsCount() {
+    return myShards.length;
+  }
+
+  public int getShardIndex(Key key) {
+    int hash = myKeyDescriptor.getHashCode(key);
+    hash ^= (hash >>> 20) ^ (hash >>> 12);
+    hash ^= (hash >>> 7) ^ (hash >>> 4);
+    return (hash & Integer.MAX_VALUE) % myShards.length;
+  }
+
+  @NotNull
+  private MapIndexStorage<Key, Value> getShard(Key key) {
+    return myShards[getShardIndex(key)];
+  }
+
+  @Override
+  public void addValue(Key key, int inputId, Value value) throws StorageException {
+    getShard(key).addValue(key, inputId, value);
+  }
+
+  @Override
+  public void removeAllValues(Key key, int inputId) throws StorageException {
+    getShard(key).removeAllValues(key, inputId);
+  }
+
+  @NotNull
+  @Override
+  public ValueContainer<Value> read(Key key) throws StorageException {
+    return getShard(key).read(key);
+  }
+
+  @Override
+  public boolean processKeys(Processor<Key> processor) throws StorageException {
+    for (MapIndexStorage<Key, Value> shard : myShards) {
+      if (!shard.processKeys(processor)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public Collection<Key> getKeys() throws StorageException {
+    List<Key> keys = new ArrayList<Key>();
+    processKeys(new CommonProcessors.CollectProcessor<Key>(keys));
+    return keys;
+  }
+
+  @Override
+  public void clear() throws StorageException {
+    StorageException exception = null;
+    for (MapIndexStorage<Key, Value> shard : myShards) {
+      try {
+        shard.clear();
+      }
+      catch (StorageException e) {
+        LOG.info(e);
+        exception = e;
+      }
+    }
+    if (exception != null) throw exception;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    for (MapIndexStorage<Key, Value> shard : myShards) {
+      shard.flush();
+    }
+  }
+
+  @Override
+  public void close() throws StorageException {
+    StorageException exception = null;
+    for (MapIndexStorage<Key, Value> shard : myShards) {
+      try {
+        shard.close();
+      }
+      catch (StorageException e) {
+        LOG.info(e);
+        exception = e;
+      }
+    }
+    if (exception != null) throw exception;
+  }
+}
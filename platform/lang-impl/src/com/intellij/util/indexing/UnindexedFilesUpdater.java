@@ -59,6 +59,7 @@ public class UnindexedFilesUpdater implements CacheUpdater {
 
     LOG.info("Unindexed files update started: " + files.size() + " files to update");
     myFinishedUpdate.set(false);
+    myIndex.startBatchUpdates();
     myStarted = System.currentTimeMillis();
     return VfsUtilCore.toVirtualFileArray(files);
   }
@@ -72,6 +73,7 @@ public class UnindexedFilesUpdater implements CacheUpdater {
   @Override
   public void updatingDone() {
     if (myFinishedUpdate.compareAndSet(false, true)) {
+      myIndex.finishBatchUpdates();
       myIndex.filesUpdateFinished();
       LOG.info("Unindexed files update done in " + (System.currentTimeMillis() - myStarted) + " ms");
     }
@@ -80,6 +82,7 @@ public class UnindexedFilesUpdater implements CacheUpdater {
   @Override
   public void canceled() {
     if (myFinishedUpdate.compareAndSet(false, true)) {
+      myIndex.finishBatchUpdates();
       myIndex.filesUpdateFinished();
       LOG.info("Unindexed files update canceled");
     }
@@ -37,6 +37,8 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
   // there is no volatile as we modify under write lock and read under read lock
   // Most often (80%) we store 0 or one mapping, then we store them in two fields: myInputIdMapping, myInputIdMappingValue
   // when there are several value mapped, myInputIdMapping is THashMap<Value, Data>, myInputIdMappingValue = null
+  // Data is Integer for single input id, int[] of sorted ids as read from storage (never modified in place as copies share it,
+  // replaced with a shorter array on removal from a short array and with IdSet on other modifications) or IdSet
   private Object myInputIdMapping;
   private Object myInputIdMappingValue;
 
@@ -63,8 +65,11 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
       if (input instanceof Integer) {
         idSet = new IdSet(3, 0.98f);
         idSet.add(((Integer)input).intValue());
-        if (!(myInputIdMapping instanceof THashMap)) myInputIdMappingValue = idSet;
-        else ((THashMap<Value, Object>)myInputIdMapping).put(value, idSet);
+        setInput(value, idSet);
+      }
+      else if (input instanceof int[]) {
+        idSet = toIdSet((int[])input);
+        setInput(value, idSet);
       }
       else {
         idSet = (TIntHashSet)input;
@@ -73,6 +78,82 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     }
   }
 
+  /**
+   * Associates the value with the ids which are sorted in ascending order and unique, the ids array is owned by the container after the call.
+   */
+  void addSortedValues(int[] sortedIds, Value value) {
+    if (sortedIds.length == 0) return;
+    if (sortedIds.length == 1) {
+      addValue(sortedIds[0], value);
+      return;
+    }
+    final Object input = getInput(value);
+    if (input == null) {
+      addValue(sortedIds[0], value); // creates the mapping for the value
+      setInput(value, sortedIds);
+    }
+    else if (input instanceof Integer) {
+      setInput(value, merge(new int[]{((Integer)input).intValue()}, sortedIds));
+    }
+    else if (input instanceof int[] && ((int[])input).length <= sortedIds.length * MAX_MERGED_LENGTH_RATIO) {
+      setInput(value, merge((int[])input, sortedIds));
+    }
+    else {
+      // merging small delta into large sorted array is too expensive, fall back to hash set
+      final TIntHashSet idSet = input instanceof int[] ? toIdSet((int[])input) : (TIntHashSet)input;
+      idSet.ensureCapacity(sortedIds.length);
+      for (int id : sortedIds) {
+        idSet.add(id);
+      }
+      if (idSet != input) setInput(value, idSet);
+    }
+  }
+
+  private static final int MAX_MERGED_LENGTH_RATIO = 8;
+  private static final int MAX_ARRAY_LENGTH_TO_COPY_ON_REMOVAL = 16;
+
+  private void setInput(Value value, Object input) {
+    if (!(myInputIdMapping instanceof THashMap)) myInputIdMappingValue = input;
+    else ((THashMap<Value, Object>)myInputIdMapping).put(value, input);
+  }
+
+  private static TIntHashSet toIdSet(int[] ids) {
+    final IdSet idSet = new IdSet(ids.length + 1, 0.98f);
+    for (int id : ids) {
+      idSet.add(id);
+    }
+    return idSet;
+  }
+
+  private static int[] remove(int[] ids, int index) {
+    // the array may be shared with the copies of the container, so it is not modified
+    final int[] result = new int[ids.length - 1];
+    System.arraycopy(ids, 0, result, 0, index);
+    System.arraycopy(ids, index + 1, result, index, result.length - index);
+    return result;
+  }
+
+  private static int[] merge(int[] ids1, int[] ids2) {
+    final int[] result = new int[ids1.length + ids2.length];
+    int i = 0, j = 0, size = 0;
+    while (i < ids1.length && j < ids2.length) {
+      final int id1 = ids1[i];
+      final int id2 = ids2[j];
+      if (id1 < id2) {
+        result[size++] = id1;
+        ++i;
+      }
+      else {
+        result[size++] = id2;
+        ++j;
+        if (id1 == id2) ++i;
+      }
+    }
+    while (i < ids1.length) result[size++] = ids1[i++];
+    while (j < ids2.length) result[size++] = ids2[j++];
+    return size == result.length ? result : Arrays.copyOf(result, size);
+  }
+
   @Override
   public int size() {
     return myInputIdMapping != null ? myInputIdMapping instanceof THashMap ? ((THashMap)myInputIdMapping).size(): 1 : 0;
@@ -106,7 +187,25 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
       return false;
     }
 
-    if (input instanceof TIntHashSet) {
+    if (input instanceof int[]) {
+      final int[] ids = (int[])input;
+      final int index = Arrays.binarySearch(ids, inputId);
+      if (index < 0) {
+        return false;
+      }
+      // more than one id is stored in array
+      if (ids.length > MAX_ARRAY_LENGTH_TO_COPY_ON_REMOVAL) {
+        // more removals are likely to follow (e.g. replaying invalidations), copying the array on each one is too expensive
+        final TIntHashSet idSet = toIdSet(ids);
+        idSet.remove(inputId);
+        setInput(value, idSet);
+      }
+      else {
+        setInput(value, ids.length == 2 ? (Object)ids[1 - index] : remove(ids, index));
+      }
+      return true;
+    }
+    else if (input instanceof TIntHashSet) {
       final TIntHashSet idSet = (TIntHashSet)input;
       final boolean reallyRemoved = idSet.remove(inputId);
       if (reallyRemoved) {
@@ -205,6 +304,9 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     if (input instanceof TIntHashSet) {
       return ((TIntHashSet)input).contains(inputId);
     }
+    if (input instanceof int[]) {
+      return Arrays.binarySearch((int[])input, inputId) >= 0;
+    }
     if (input instanceof Integer ){
       return inputId == ((Integer)input).intValue();
     }
@@ -224,6 +326,15 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
         }
       };
     }
+    if (input instanceof int[]) {
+      return new IntPredicate() {
+        final int[] myIds = (int[])input;
+        @Override
+        boolean contains(int id) {
+          return Arrays.binarySearch(myIds, id) >= 0;
+        }
+      };
+    }
     return new IntPredicate() {
       final TIntHashSet mySet = (TIntHashSet)input;
       @Override
@@ -240,6 +351,9 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     if (input instanceof TIntHashSet) {
       it = new IntSetIterator((TIntHashSet)input);
     }
+    else if (input instanceof int[]) {
+      it = new IntArrayIterator((int[])input);
+    }
     else if (input instanceof Integer ){
       it = new SingleValueIterator(((Integer)input).intValue());
     }
@@ -351,6 +465,30 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     }
   }
 
+  private static class IntArrayIterator implements IntIterator {
+    private final int[] myIds;
+    private int myPosition;
+
+    private IntArrayIterator(int[] ids) {
+      myIds = ids;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return myPosition < myIds.length;
+    }
+
+    @Override
+    public int next() {
+      return myIds[myPosition++];
+    }
+
+    @Override
+    public int size() {
+      return myIds.length;
+    }
+  }
+
   private static class IntSetIterator implements IntIterator {
     private final TIntIterator mySetIterator;
     private final int mySize;
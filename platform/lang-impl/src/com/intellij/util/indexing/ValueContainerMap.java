@@ -5,8 +5,10 @@ import com.intellij.util.io.*;
 import com.intellij.util.io.DataOutputStream;
 import gnu.trove.TIntHashSet;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.Iterator;
 
 /**
@@ -18,9 +20,10 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
 
   ValueContainerMap(@NotNull final File file,
                     @NotNull KeyDescriptor<Key> keyKeyDescriptor,
-                    @NotNull DataExternalizer<Value> valueExternalizer) throws IOException {
+                    @NotNull DataExternalizer<Value> valueExternalizer,
+                    @Nullable PagedFileStorage.StorageLockContext lockContext) throws IOException {
 
-    super(file, keyKeyDescriptor, new ValueContainerExternalizer<Value>(valueExternalizer));
+    super(file, keyKeyDescriptor, new ValueContainerExternalizer<Value>(valueExternalizer), lockContext);
     myValueContainerExternalizer = (ValueContainerExternalizer<Value>)myValueExternalizer;
   }
 
@@ -86,7 +89,10 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
         myExternalizer.save(out, value);
 
         final ValueContainer.IntIterator ids = container.getInputIdsIterator(value);
-        if (ids != null) {
+        if (ids != null && ids.size() > 1) {
+          saveSortedIds(out, ids);
+        }
+        else if (ids != null) {
           DataInputOutputUtil.writeSINT(out, ids.size());
           while (ids.hasNext()) {
             final int id = ids.next();
@@ -99,6 +105,24 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
       }
     }
 
+    // several ids are saved sorted as deltas from the previous id, negative count distinguishes such lists
+    private static void saveSortedIds(final DataOutput out, @NotNull ValueContainer.IntIterator ids) throws IOException {
+      int[] sortedIds = new int[ids.size()];
+      int count = 0;
+      while (ids.hasNext()) {
+        if (count == sortedIds.length) sortedIds = Arrays.copyOf(sortedIds, count * 2);
+        sortedIds[count++] = ids.next();
+      }
+      Arrays.sort(sortedIds, 0, count);
+
+      DataInputOutputUtil.writeSINT(out, -count);
+      int prev = 0;
+      for (int i = 0; i < count; i++) {
+        DataInputOutputUtil.writeINT(out, sortedIds[i] - prev);
+        prev = sortedIds[i];
+      }
+    }
+
     @NotNull
     @Override
     public ValueContainerImpl<T> read(final DataInput in) throws IOException {
@@ -115,9 +139,20 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
           for (int valueIdx = 0; valueIdx < valueCount; valueIdx++) {
             final T value = myExternalizer.read(in);
             final int idCount = DataInputOutputUtil.readSINT(in);
-            for (int i = 0; i < idCount; i++) {
-              final int id = DataInputOutputUtil.readSINT(in);
-              valueContainer.addValue(id, value);
+            if (idCount < 0) {
+              final int[] sortedIds = new int[-idCount];
+              int id = 0;
+              for (int i = 0; i < sortedIds.length; i++) {
+                id += DataInputOutputUtil.readINT(in);
+                sortedIds[i] = id;
+              }
+              valueContainer.addSortedValues(sortedIds, value);
+            }
+            else {
+              for (int i = 0; i < idCount; i++) {
+                final int id = DataInputOutputUtil.readSINT(in);
+                valueContainer.addValue(id, value);
+              }
             }
           }
         }
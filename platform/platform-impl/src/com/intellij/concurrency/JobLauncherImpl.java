@@ -29,6 +29,7 @@ import org.jetbrains.annotations.NotNull;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author cdr
@@ -42,14 +43,17 @@ public class JobLauncherImpl extends JobLauncher {
                                                       @NotNull final Processor<T> thingProcessor) throws ProcessCanceledException {
     final Job<String> job = new JobImpl<String>(Job.DEFAULT_PRIORITY, failFastOnAcquireReadAction);
 
-    final int chunkSize = Math.max(1, things.size() / JobSchedulerImpl.CORES_COUNT / 20);
-    for (int i = 0; i < things.size(); i += chunkSize) {
-      // this job chunk is i..i+chunkSize-1
-      final int finalI = i;
+    // Instead of splitting the list into fixed chunks queued up front, each of the (at most CORES_COUNT) tasks takes the next things
+    // from the shared index until the list is exhausted. Tasks finishing early take over the work of the slow ones,
+    // and the shared queue of the scheduler is touched only once per task.
+    final AtomicInteger nextThing = new AtomicInteger();
+    final int tasksCount = Math.min(things.size(), JobSchedulerImpl.CORES_COUNT);
+    for (int i = 0; i < tasksCount; i++) {
       job.addTask(new Runnable() {
         public void run() {
           try {
-            for (int k = finalI; k < finalI + chunkSize && k < things.size(); k++) {
+            for (int k = nextThing.getAndIncrement(); k < things.size(); k = nextThing.getAndIncrement()) {
+              if (job.isCanceled()) break;
               T thing = things.get(k);
               if (!thingProcessor.process(thing)) {
                 job.cancel();
@@ -109,6 +113,7 @@ public class JobLauncherImpl extends JobLauncher {
     final ProgressWrapper wrapper = progress instanceof ProgressWrapper ? (ProgressWrapper)progress : ProgressWrapper.wrap(progress);
     return invokeConcurrentlyForAll(things, failFastOnAcquireReadAction, new Processor<T>() {
       public boolean process(final T t) {
+        if (wrapper != null) wrapper.checkCanceled();
         final boolean[] result = new boolean[1];
         ((ProgressManagerImpl)ProgressManager.getInstance()).executeProcessUnderProgress(new Runnable() {
           public void run() {
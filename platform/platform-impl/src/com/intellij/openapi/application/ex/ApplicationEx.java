@@ -92,4 +92,9 @@ public interface ApplicationEx extends Application {
    * @return true if action was run while holding the lock, false if was unable to get the lock and action was not run
    */
   boolean tryRunReadAction(@NotNull Runnable action);
+
+  /**
+   * @return true if a write action has been requested and waits for the read actions to finish
+   */
+  boolean isWriteActionPending();
 }
@@ -80,17 +80,15 @@ import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 @SuppressWarnings({"AssignmentToStaticFieldFromInstanceMethod"})
 public class ApplicationImpl extends ComponentManagerImpl implements ApplicationEx {
   private static final Logger LOG = Logger.getInstance("#com.intellij.application.impl.ApplicationImpl");
   private final ModalityState MODALITY_STATE_NONE = ModalityState.NON_MODAL;
 
-  // about writer preference: the way the java.util.concurrent.locks.ReentrantReadWriteLock.NonfairSync is implemented, the
-  // writer thread will be always at the queue head and therefore, java.util.concurrent.locks.ReentrantReadWriteLock.NonfairSync.readerShouldBlock()
-  // will return true if the write action is pending, exactly as we need
-  private final ReentrantReadWriteLock myLock = new ReentrantReadWriteLock(false);
+  // read actions are run by many threads at once and much more often than write actions, so the lock makes reading cheap;
+  // like the non-fair ReentrantReadWriteLock it prefers the writer: new read actions wait while the write action is pending
+  private final ReadMostlyRWLock myLock = new ReadMostlyRWLock();
 
   private final ModalityInvokator myInvokator = new ModalityInvokatorImpl();
 
@@ -106,6 +104,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
   private final String myName;
 
   private final Stack<Class> myWriteActionsStack = new Stack<Class>(); // accessed from EDT only, no need to sync
+  private volatile boolean myWriteActionPending;
 
   private volatile Runnable myExceptionalThreadWithReadAccessRunnable;
 
@@ -363,7 +362,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
 
   @Override
   public boolean holdsReadLock() {
-    return myLock.getReadHoldCount() != 0;
+    return myLock.isReadLockedByCurrentThread();
   }
 
   @Override
@@ -927,7 +926,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
     else {
       assertReadActionAllowed();
       try {
-        myLock.readLock().lockInterruptibly();
+        myLock.readLockInterruptibly();
       }
       catch (InterruptedException e) {
         throw new RuntimeInterruptedException(e);
@@ -936,7 +935,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
         action.run();
       }
       finally {
-        myLock.readLock().unlock();
+        myLock.readUnlock();
       }
     }
   }
@@ -948,7 +947,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
     else {
       assertReadActionAllowed();
       try {
-        myLock.readLock().lockInterruptibly();
+        myLock.readLockInterruptibly();
       }
       catch (InterruptedException e) {
         throw new RuntimeInterruptedException(e);
@@ -957,7 +956,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
         return computation.compute();
       }
       finally {
-        myLock.readLock().unlock();
+        myLock.readUnlock();
       }
     }
   }
@@ -1143,13 +1142,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
 
     if (mustAcquire) {
       LOG.assertTrue(myTestModeFlag || !Thread.holdsLock(PsiLock.LOCK), "Thread must not hold PsiLock while performing readAction");
-      try {
-        // timed version of tryLock() respects fairness unlike the no-args method
-        if (!myLock.readLock().tryLock(0, TimeUnit.MILLISECONDS)) return false;
-      }
-      catch (InterruptedException e) {
-        throw new RuntimeInterruptedException(e);
-      }
+      if (!myLock.tryReadLock()) return false;
     }
 
     try {
@@ -1157,7 +1150,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
     }
     finally {
       if (mustAcquire) {
-        myLock.readLock().unlock();
+        myLock.readUnlock();
       }
     }
     return true;
@@ -1218,37 +1211,45 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
       assertCanRunWriteAction();
 
       ActivityTracker.getInstance().inc();
-      fireBeforeWriteActionStart(_clazz);
+      // set before the listeners are notified, so the read actions started concurrently with the notification see it
+      myWriteActionPending = true;
       final AtomicBoolean stopped = new AtomicBoolean(false);
-
-      LOG.assertTrue(isWriteAccessAllowed() || !Thread.holdsLock(PsiLock.LOCK), "Thread must not hold PsiLock while performing writeAction");
       try {
-        if (!myLock.writeLock().tryLock()) {
-          if (ourDumpThreadsOnLongWriteActionWaiting > 0) {
-            executeOnPooledThread(new Runnable() {
-              @Override
-              public void run() {
-                while (!stopped.get()) {
-                  try {
-                    Thread.sleep(ourDumpThreadsOnLongWriteActionWaiting);
-                    if (!stopped.get()) {
-                      PerformanceWatcher.getInstance().dumpThreads(true);
+        fireBeforeWriteActionStart(_clazz);
+
+        LOG.assertTrue(isWriteAccessAllowed() || !Thread.holdsLock(PsiLock.LOCK), "Thread must not hold PsiLock while performing writeAction");
+        try {
+          if (!myLock.tryWriteLock()) {
+            if (ourDumpThreadsOnLongWriteActionWaiting > 0) {
+              executeOnPooledThread(new Runnable() {
+                @Override
+                public void run() {
+                  while (!stopped.get()) {
+                    try {
+                      Thread.sleep(ourDumpThreadsOnLongWriteActionWaiting);
+                      if (!stopped.get()) {
+                        PerformanceWatcher.getInstance().dumpThreads(true);
+                      }
+                    }
+                    catch (InterruptedException ignored) {
                     }
-                  }
-                  catch (InterruptedException ignored) {
                   }
                 }
-              }
-            });
+              });
+            }
+            myLock.writeLockInterruptibly();
           }
-          myLock.writeLock().lockInterruptibly();
+          acquired();
+        }
+        catch (InterruptedException e) {
+          throw new RuntimeInterruptedException(e);
         }
-        acquired();
       }
-      catch (InterruptedException e) {
-        throw new RuntimeInterruptedException(e);
+      finally {
+        // also reset if a listener has failed, or the read actions giving way to write actions would wait for it forever
+        myWriteActionPending = false;
+        stopped.set(true);
       }
-      stopped.set(true);
 
       myWriteActionsStack.push(_clazz);
 
@@ -1263,7 +1264,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
         myWriteActionsStack.pop();
       }
       finally {
-        myLock.writeLock().unlock();
+        myLock.writeUnlock();
         released();
       }
     }
@@ -1311,7 +1312,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
     private ReadAccessToken() {
       assertReadActionAllowed();
       try {
-        myLock.readLock().lockInterruptibly();
+        myLock.readLockInterruptibly();
         acquired();
       }
       catch (InterruptedException e) {
@@ -1321,7 +1322,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
 
     @Override
     public void finish() {
-      myLock.readLock().unlock();
+      myLock.readUnlock();
       released();
     }
   }
@@ -1336,9 +1337,14 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
                    "Write access is allowed inside write-action only (see com.intellij.openapi.application.Application.runWriteAction())");
   }
 
+  @Override
+  public boolean isWriteActionPending() {
+    return myWriteActionPending;
+  }
+
   @Override
   public boolean isWriteAccessAllowed() {
-    return myLock.writeLock().isHeldByCurrentThread();
+    return myLock.isWriteLockedByCurrentThread();
   }
 
   public void editorPaintStart() {
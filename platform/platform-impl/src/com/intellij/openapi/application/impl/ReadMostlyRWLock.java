@@ -0,0 +1,193 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.application.impl;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Read-write lock optimized for frequent read locking by many threads and rare write locking.
+ * Each reader thread announces its read lock in its own slot, so acquiring and releasing the read lock writes no memory shared
+ * with other readers; the writer has to scan the slots of all reader threads instead.
+ *
+ * As with the non-fair {@link java.util.concurrent.locks.ReentrantReadWriteLock}, the writer is preferred:
+ * once it has requested the lock, new read locks wait until it's released (read locks already held by the thread are reentrant).
+ * The write lock is reentrant too and the thread holding it may take the read lock.
+ */
+class ReadMostlyRWLock {
+  private final ThreadLocal<Reader> myReader = new ThreadLocal<Reader>();
+  private final ConcurrentLinkedQueue<Reader> myReaders = new ConcurrentLinkedQueue<Reader>();
+  // readers wait for the writer and the writer waits for the readers on this monitor
+  private final Object myMonitor = new Object();
+
+  private volatile boolean myWriteRequested;
+  private volatile Thread myWriteThread;
+  private int myWriteHoldCount; // accessed by the writer thread only
+
+  private static class Reader {
+    private final Thread myThread = Thread.currentThread();
+    private volatile boolean myReadRequested;
+    private int myHoldCount; // accessed by the owner thread only
+  }
+
+  @NotNull
+  private Reader getOrCreateReader() {
+    Reader reader = myReader.get();
+    if (reader == null) {
+      reader = new Reader();
+      myReader.set(reader);
+      myReaders.add(reader);
+    }
+    return reader;
+  }
+
+  public void readLockInterruptibly() throws InterruptedException {
+    final Reader reader = getOrCreateReader();
+    if (reader.myHoldCount > 0 || myWriteThread == reader.myThread) {
+      reader.myHoldCount++;
+      return;
+    }
+    while (true) {
+      // the volatile write followed by the volatile read here and the opposite order in the writer guarantee that
+      // either this thread sees the write request or the writer sees the read one
+      reader.myReadRequested = true;
+      if (!myWriteRequested) break;
+      cancelReadRequest(reader);
+      synchronized (myMonitor) {
+        while (myWriteRequested) {
+          myMonitor.wait();
+        }
+      }
+    }
+    reader.myHoldCount = 1;
+  }
+
+  /**
+   * Unlike {@link #readLockInterruptibly()} fails if the write lock is held or requested.
+   */
+  public boolean tryReadLock() {
+    final Reader reader = getOrCreateReader();
+    if (reader.myHoldCount > 0 || myWriteThread == reader.myThread) {
+      reader.myHoldCount++;
+      return true;
+    }
+    reader.myReadRequested = true;
+    if (myWriteRequested) {
+      cancelReadRequest(reader);
+      return false;
+    }
+    reader.myHoldCount = 1;
+    return true;
+  }
+
+  public void readUnlock() {
+    final Reader reader = myReader.get();
+    if (reader == null || reader.myHoldCount <= 0) throw new IllegalMonitorStateException();
+    if (--reader.myHoldCount == 0 && reader.myReadRequested) {
+      cancelReadRequest(reader);
+    }
+  }
+
+  private void cancelReadRequest(@NotNull Reader reader) {
+    reader.myReadRequested = false;
+    if (myWriteRequested) {
+      synchronized (myMonitor) {
+        myMonitor.notifyAll(); // the writer may be waiting for this reader
+      }
+    }
+  }
+
+  public boolean isReadLockedByCurrentThread() {
+    final Reader reader = myReader.get();
+    return reader != null && reader.myHoldCount > 0;
+  }
+
+  public void writeLockInterruptibly() throws InterruptedException {
+    final Thread thread = Thread.currentThread();
+    if (myWriteThread == thread) {
+      myWriteHoldCount++;
+      return;
+    }
+    synchronized (myMonitor) {
+      while (myWriteRequested) {
+        myMonitor.wait(); // another writer
+      }
+      myWriteRequested = true;
+      try {
+        while (hasActiveReaders(thread)) {
+          myMonitor.wait();
+        }
+      }
+      catch (InterruptedException e) {
+        myWriteRequested = false;
+        myMonitor.notifyAll();
+        throw e;
+      }
+      myWriteThread = thread;
+      myWriteHoldCount = 1;
+    }
+  }
+
+  /**
+   * Fails if the lock is held by other threads.
+   */
+  public boolean tryWriteLock() {
+    final Thread thread = Thread.currentThread();
+    if (myWriteThread == thread) {
+      myWriteHoldCount++;
+      return true;
+    }
+    synchronized (myMonitor) {
+      if (myWriteRequested) return false;
+      myWriteRequested = true;
+      if (hasActiveReaders(thread)) {
+        myWriteRequested = false;
+        myMonitor.notifyAll();
+        return false;
+      }
+      myWriteThread = thread;
+      myWriteHoldCount = 1;
+      return true;
+    }
+  }
+
+  public void writeUnlock() {
+    if (myWriteThread != Thread.currentThread()) throw new IllegalMonitorStateException();
+    if (--myWriteHoldCount > 0) return;
+    synchronized (myMonitor) {
+      myWriteThread = null;
+      myWriteRequested = false;
+      myMonitor.notifyAll();
+    }
+  }
+
+  public boolean isWriteLockedByCurrentThread() {
+    return myWriteThread == Thread.currentThread();
+  }
+
+  private boolean hasActiveReaders(@NotNull Thread writer) {
+    for (Iterator<Reader> iterator = myReaders.iterator(); iterator.hasNext(); ) {
+      final Reader reader = iterator.next();
+      if (reader.myReadRequested && reader.myThread != writer) return true;
+      if (!reader.myThread.isAlive()) {
+        iterator.remove();
+      }
+    }
+    return false;
+  }
+}
@@ -16,17 +16,24 @@
 package com.intellij.openapi.progress.util;
 
 import com.intellij.openapi.Disposable;
-import com.intellij.openapi.application.Application;
 import com.intellij.openapi.application.ApplicationAdapter;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ex.ApplicationEx;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.util.EmptyRunnable;
+import com.intellij.util.TimeoutUtil;
 import org.jetbrains.annotations.NotNull;
 
 /**
  * @author gregsh
  */
 public class ProgressIndicatorUtils {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.progress.util.ProgressIndicatorUtils");
+  private static final int WRITE_ACTION_POLL_INTERVAL_MS = 5;
+
   private ProgressIndicatorUtils() {
   }
 
@@ -42,27 +49,96 @@ public class ProgressIndicatorUtils {
   }
 
   public static void runWithWriteActionPriority(final Runnable action) {
-    final ProgressIndicator progressIndicator = new ProgressIndicatorBase();
+    runInReadActionWithWriteActionPriority(action);
+  }
+
+  /**
+   * Runs the action in a read action which is cancelled as soon as a write action is requested, so the write action doesn't wait
+   * for it. The action isn't started at all while a write action is pending. Must be called from a background thread outside of
+   * a read action.
+   *
+   * @return true if the action has run to the end, false if it has been cancelled by a write action
+   * @throws ProcessCanceledException if the progress indicator of the thread has been cancelled
+   */
+  public static boolean runInReadActionWithWriteActionPriority(@NotNull final Runnable action) {
+    final ApplicationEx application = (ApplicationEx)ApplicationManager.getApplication();
+    LOG.assertTrue(!application.isReadAccessAllowed(), "Write actions can't cancel the read action the method is called from");
+
+    final ProgressIndicator outerIndicator = ProgressManager.getInstance().getProgressIndicator();
+    final ProgressIndicator progressIndicator = new ProgressIndicatorBase() {
+      @Override
+      public boolean isCanceled() {
+        return super.isCanceled() || outerIndicator != null && outerIndicator.isCanceled();
+      }
+    };
     final ApplicationAdapter listener = new ApplicationAdapter() {
       @Override
       public void beforeWriteActionStart(Object action) {
         progressIndicator.cancel();
       }
     };
-    final Application application = ApplicationManager.getApplication();
+    final boolean[] completed = {false};
+    application.addApplicationListener(listener);
     try {
-      application.addApplicationListener(listener);
-      ProgressManager.getInstance().runProcess(new Runnable(){
-          @Override
-          public void run() {
-            // This read action can possibe last for a long time, we want it to stop immediately on the first write access.
-            // For this purpose we launch it under empty progress and invoke progressIndicator#cancel on write access to avoid possible write lock delays.
-            application.runReadAction(action);
-          }
-        }, progressIndicator);
+      ProgressManager.getInstance().runProcess(new Runnable() {
+        @Override
+        public void run() {
+          // fails instead of waiting if the write action is pending
+          application.tryRunReadAction(new Runnable() {
+            @Override
+            public void run() {
+              // the write action may have been requested before the listener was added
+              if (application.isWriteActionPending()) return;
+              try {
+                action.run();
+                completed[0] = true;
+              }
+              catch (ProcessCanceledException ignored) {
+              }
+            }
+          });
+        }
+      }, progressIndicator);
     }
     finally {
       application.removeApplicationListener(listener);
     }
+    if (outerIndicator != null) {
+      outerIndicator.checkCanceled();
+    }
+    return completed[0];
+  }
+
+  /**
+   * Runs the task in read actions giving way to write actions until it completes: each time a write action is requested the task
+   * is cancelled and then restarted once the write action is over. Must be called from a background thread outside of a read action.
+   *
+   * @throws ProcessCanceledException if the progress indicator of the thread has been cancelled
+   */
+  public static void runWithWriteActionPriority(@NotNull final ReadTask task) {
+    final Runnable computation = new Runnable() {
+      @Override
+      public void run() {
+        task.computeInReadAction(ProgressManager.getInstance().getProgressIndicator());
+      }
+    };
+    while (!runInReadActionWithWriteActionPriority(computation)) {
+      task.onCanceled();
+      waitForPendingWriteAction();
+    }
+  }
+
+  private static void waitForPendingWriteAction() {
+    final ApplicationEx application = (ApplicationEx)ApplicationManager.getApplication();
+    final ProgressIndicator indicator = ProgressManager.getInstance().getProgressIndicator();
+    // the write action may still be notifying its listeners, a read action would be granted before it takes the lock then
+    while (application.isWriteActionPending()) {
+      if (indicator != null) {
+        indicator.checkCanceled();
+      }
+      TimeoutUtil.sleep(WRITE_ACTION_POLL_INTERVAL_MS);
+    }
+    // the read lock is granted only after the write action holding or requesting the write lock is over
+    application.runReadAction(EmptyRunnable.getInstance());
   }
 }
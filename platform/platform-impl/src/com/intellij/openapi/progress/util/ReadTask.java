@@ -0,0 +1,39 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.progress.util;
+
+import com.intellij.openapi.progress.ProgressIndicator;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A long computation in read actions which gives way to write actions, see {@link ProgressIndicatorUtils#runWithWriteActionPriority(ReadTask)}.
+ * The computation is cancelled as soon as a write action is requested and started anew once the write action is over,
+ * so the task should keep what it has already computed and continue from there.
+ */
+public abstract class ReadTask {
+  /**
+   * Performs the computation (or its remaining part) in a read action. The computation must call
+   * {@link ProgressIndicator#checkCanceled()} regularly and is over when the method returns normally.
+   */
+  public abstract void computeInReadAction(@NotNull ProgressIndicator indicator);
+
+  /**
+   * Is called outside of the read action when the computation has been cancelled by a write action, before it's restarted.
+   * The results computed so far which the write action may have invalidated should be dropped here.
+   */
+  public void onCanceled() {
+  }
+}
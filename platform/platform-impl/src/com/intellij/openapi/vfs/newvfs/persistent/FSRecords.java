@@ -30,7 +30,10 @@ import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.ByteSequence;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.ArrayUtil;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.ConcurrentHashMap;
+import com.intellij.util.containers.ConcurrentIntObjectMap;
+import com.intellij.util.containers.ConcurrentSoftValueIntObjectHashMap;
 import com.intellij.util.containers.IntArrayList;
 import com.intellij.util.io.*;
 import com.intellij.util.io.DataOutputStream;
@@ -38,10 +41,14 @@ import com.intellij.util.io.storage.*;
 import gnu.trove.TIntArrayList;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 
 import javax.swing.*;
 import java.awt.*;
 import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -85,9 +92,19 @@ public class FSRecords implements Forceable {
 
   private static final String CHILDREN_ATT = "FsRecords.DIRECTORY_CHILDREN";
 
+  // journal the storages to roll them back to the last flushed state after a crash instead of rebuilding them
+  private static final boolean ourUseJournal = SystemProperties.getBooleanProperty("idea.vfs.journal", true);
+  // share content records between files with the same content, found by SHA-1 of the content
+  private static final boolean ourUseContentHashes = SystemProperties.getBooleanProperty("idea.vfs.content.hashes", true);
+  private static final int CONTENT_HASH_SIZE = 20;
+  private static final byte[] NO_CONTENT_HASH = new byte[CONTENT_HASH_SIZE];
+
   private static final ReentrantReadWriteLock.ReadLock r;
   private static final ReentrantReadWriteLock.WriteLock w;
 
+  // children of directories to be read without the lock, cached children are replaced or dropped under the write lock only
+  private static final ConcurrentIntObjectMap<Children> ourChildrenCache = new ConcurrentSoftValueIntObjectHashMap<Children>();
+
   private static volatile int ourLocalModificationCount = 0;
   private static volatile boolean ourIsDisposed;
 
@@ -111,6 +128,11 @@ public class FSRecords implements Forceable {
     private static Storage myAttributes;
     private static RefCountingStorage myContents;
     private static ResizeableMappedFile myRecords;
+    // hashes of contents by content record id, zeros when not known; journaled along with the contents, so always valid
+    private static ResizeableMappedFile myContentHashes;
+    // content record by hash of its content; not journaled, so values are checked against myContentHashes before use
+    private static PersistentHashMap<byte[], Integer> myContentsByHash;
+    private static RollbackJournal myJournal;
     private static final TIntArrayList myFreeRecords = new TIntArrayList();
 
     private static boolean myDirty = false;
@@ -194,6 +216,9 @@ public class FSRecords implements Forceable {
       final File attributesFile = new File(basePath, "attrib.dat");
       final File contentsFile = new File(basePath, "content.dat");
       final File recordsFile = new File(basePath, "records.dat");
+      final File contentHashesFile = new File(basePath, "contentHashes.dat");
+      final File contentsByHashFile = new File(basePath, "contentsByHash.dat");
+      final File journalFile = new File(basePath, "vfs.journal");
 
       if (!namesFile.exists()) {
         invalidateIndex();
@@ -205,6 +230,21 @@ public class FSRecords implements Forceable {
           throw new IOException("Corruption marker file found");
         }
 
+        int recordsCountBeforeRollback = 0;
+        if (journalFile.exists()) {
+          if (!ourUseJournal) throw new IOException("FS repository wasn't safely shut down");
+          final int recordsCount = (int)(recordsFile.length() / RECORD_SIZE);
+          if (RollbackJournal.rollback(journalFile, basePath)) {
+            LOG.info("FS repository wasn't safely shut down, rolled back to the last flushed state");
+            recordsCountBeforeRollback = recordsCount;
+          }
+        }
+        if (ourUseJournal) {
+          // the files are consistent now (safely closed or rolled back) and journaling starts from this state,
+          // it's opened before the storages which look up their journal when created
+          myJournal = RollbackJournal.open(journalFile, basePath);
+        }
+
         PagedFileStorage.StorageLockContext storageLockContext = new PagedFileStorage.StorageLockContext(false);
         myNames = new PersistentStringEnumerator(namesFile, storageLockContext);
         myAttributes = new Storage(attributesFile.getCanonicalPath(), REASONABLY_SMALL);
@@ -227,7 +267,17 @@ public class FSRecords implements Forceable {
         if (myRecords.getInt(HEADER_CONNECTION_STATUS_OFFSET) != SAFELY_CLOSED_MAGIC) {
           throw new IOException("FS repository wasn't safely shut down");
         }
+        if (ourUseContentHashes) {
+          myContentHashes = new ResizeableMappedFile(contentHashesFile, 20 * 1024, storageLockContext, PagedFileStorage.BUFFER_SIZE, false);
+          myContentsByHash = openContentsByHash(contentsByHashFile, recordsCountBeforeRollback > 0);
+        }
+        else {
+          // contents are written without maintaining their hashes, the hashes left from previous sessions become stale
+          deleteWithSubordinates(contentHashesFile);
+          PersistentHashMap.deleteFilesStartingWith(contentsByHashFile);
+        }
         markDirty();
+        freeRecordsLostByRollback(recordsCountBeforeRollback);
         scanFreeRecords();
       }
       catch (Exception e) { // IOException, IllegalArgumentException
@@ -236,10 +286,13 @@ public class FSRecords implements Forceable {
           closeFiles();
 
           boolean deleted = FileUtil.delete(getCorruptionMarkerFile());
+          deleted &= FileUtil.delete(journalFile);
           deleted &= deleteWithSubordinates(namesFile);
           deleted &= AbstractStorage.deleteFiles(attributesFile.getCanonicalPath());
           deleted &= AbstractStorage.deleteFiles(contentsFile.getCanonicalPath());
           deleted &= deleteWithSubordinates(recordsFile);
+          deleted &= deleteWithSubordinates(contentHashesFile);
+          PersistentHashMap.deleteFilesStartingWith(contentsByHashFile);
 
           if (!deleted) {
             throw new IOException("Cannot delete filesystem storage files");
@@ -283,6 +336,47 @@ public class FSRecords implements Forceable {
       }
     }
 
+    /**
+     * The map is only an index over {@link #myContentHashes}, so when it is broken it is built anew from them.
+     * It's also built anew after the storages are rolled back: its values file is appended to and replaced by compaction
+     * without the journal, so the map can't be rolled back together with the hashes.
+     */
+    private static PersistentHashMap<byte[], Integer> openContentsByHash(File file, boolean rolledBack) throws IOException {
+      if (rolledBack) {
+        LOG.info("Content hash index is rebuilt after the rollback");
+      }
+      else {
+        try {
+          return new PersistentHashMap<byte[], Integer>(file, new ContentHashDescriptor(), EnumeratorIntegerDescriptor.INSTANCE);
+        }
+        catch (IOException e) {
+          LOG.info("Content hash index is corrupted, rebuilding. Reason: " + e.getMessage());
+        }
+      }
+      PersistentHashMap.deleteFilesStartingWith(file);
+      final PersistentHashMap<byte[], Integer> map =
+        new PersistentHashMap<byte[], Integer>(file, new ContentHashDescriptor(), EnumeratorIntegerDescriptor.INSTANCE);
+      final int recordsCount = (int)(myContentHashes.length() / CONTENT_HASH_SIZE);
+      for (int record = 1; record < recordsCount; record++) {
+        final byte[] hash = readContentHash(record);
+        if (hash != null && myContents.getRefCount(record) > 0) {
+          map.put(hash, record);
+        }
+      }
+      return map;
+    }
+
+    /**
+     * Records created after the state the storages were rolled back to may still be referenced from the indices.
+     * They are kept as free records so the ids are not resolved to files until they are reused for files to be indexed.
+     */
+    private static void freeRecordsLostByRollback(int recordsCount) {
+      for (int id = (int)(myRecords.length() / RECORD_SIZE); id < recordsCount; id++) {
+        cleanRecord(id);
+        putRecordInt(id, FLAGS_OFFSET, FREE_RECORD_FLAG);
+      }
+    }
+
     private static void invalidateIndex() {
       LOG.info("Marking VFS as corrupted");
       final File indexRoot = PathManager.getIndexRoot();
@@ -357,6 +451,13 @@ public class FSRecords implements Forceable {
           myContents.force();
           myRecords.force();
         }
+        if (myContentHashes != null) {
+          myContentHashes.force();
+          myContentsByHash.force();
+        }
+        if (myJournal != null) {
+          myJournal.checkpoint();
+        }
       }
       finally {
         w.unlock();
@@ -376,8 +477,15 @@ public class FSRecords implements Forceable {
         final boolean attribsFlushed = myAttributes.flushSome();
         final boolean contentsFlushed = myContents.flushSome();
         if (attribsFlushed && contentsFlushed) {
+          if (myContentHashes != null) {
+            myContentHashes.force();
+            myContentsByHash.force();
+          }
           markClean();
           myRecords.force();
+          if (myJournal != null) {
+            myJournal.checkpoint();
+          }
         }
       }
       finally {
@@ -386,7 +494,8 @@ public class FSRecords implements Forceable {
     }
 
     public static boolean isDirty() {
-      return myDirty || myNames.isDirty() || myAttributes.isDirty() || myContents.isDirty() || myRecords.isDirty();
+      return myDirty || myNames.isDirty() || myAttributes.isDirty() || myContents.isDirty() || myRecords.isDirty() ||
+             myContentHashes != null && (myContentHashes.isDirty() || myContentsByHash.isDirty());
     }
 
 
@@ -447,6 +556,22 @@ public class FSRecords implements Forceable {
         myRecords.close();
         myRecords = null;
       }
+
+      if (myContentHashes != null) {
+        myContentHashes.close();
+        myContentHashes = null;
+      }
+
+      if (myContentsByHash != null) {
+        myContentsByHash.close();
+        myContentsByHash = null;
+      }
+
+      if (myJournal != null) {
+        myJournal.close();
+        myJournal = null;
+      }
+      ourChildrenCache.clear();
       ourInitialized = false;
     }
 
@@ -579,6 +704,7 @@ public class FSRecords implements Forceable {
       w.lock();
       DbConnection.markDirty();
       deleteContentAndAttributes(id);
+      ourChildrenCache.remove(id);
 
       DbConnection.cleanRecord(id);
       addToFreeRecordsList(id);
@@ -594,7 +720,7 @@ public class FSRecords implements Forceable {
   private static void deleteContentAndAttributes(int id) throws IOException {
     int content_page = getContentRecordId(id);
     if (content_page != 0) {
-      getContentStorage().releaseRecord(content_page);
+      releaseContentRecord(content_page);
     }
 
     int att_page = getAttributeRecordId(id);
@@ -766,58 +892,98 @@ public class FSRecords implements Forceable {
 
   public static int[] list(int id) {
     try {
-      r.lock();
-      try {
-        final DataInputStream input = readAttribute(id, CHILDREN_ATT);
-        if (input == null) return ArrayUtil.EMPTY_INT_ARRAY;
+      final Children children = getChildren(id);
+      return children == null || children.ids.length == 0 ? ArrayUtil.EMPTY_INT_ARRAY : children.ids.clone();
+    }
+    catch (Throwable e) {
+      throw DbConnection.handleError(e);
+    }
+  }
 
-        final int count = DataInputOutputUtil.readINT(input);
-        final int[] result = ArrayUtil.newIntArray(count);
-        for (int i = 0; i < count; i++) {
-          int childId = DataInputOutputUtil.readINT(input);
-          childId = childId >= 0 ? childId + id : -childId;
-          result[i] = childId;
-        }
-        input.close();
-        return result;
-      }
-      finally {
-        r.unlock();
+  public static Pair<String[],int[]> listAll(int parentId) {
+    try {
+      final Children children = getChildren(parentId);
+      if (children == null) return Pair.create(ArrayUtil.EMPTY_STRING_ARRAY, ArrayUtil.EMPTY_INT_ARRAY);
+
+      final int count = children.ids.length;
+      final String[] names = ArrayUtil.newStringArray(count);
+      for (int i = 0; i < count; i++) {
+        names[i] = getNameByNameId(children.nameIds[i]);
       }
+      return Pair.create(names, count == 0 ? ArrayUtil.EMPTY_INT_ARRAY : children.ids.clone());
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
     }
   }
 
-  public static Pair<String[],int[]> listAll(int parentId) {
+  /**
+   * @return id of the persisted child with the given name id, 0 if there is no such child
+   */
+  public static int findChildByNameId(int parentId, int nameId) {
     try {
-      r.lock();
-      try {
-        final DataInputStream input = readAttribute(parentId, CHILDREN_ATT);
-        if (input == null) return Pair.create(ArrayUtil.EMPTY_STRING_ARRAY, ArrayUtil.EMPTY_INT_ARRAY);
-
-        final int count = DataInputOutputUtil.readINT(input);
-        final int[] ids = ArrayUtil.newIntArray(count);
-        final String[] names = ArrayUtil.newStringArray(count);
-        for (int i = 0; i < count; i++) {
-          int id = DataInputOutputUtil.readINT(input);
-          id = id >= 0 ? id + parentId : -id;
-          ids[i] = id;
-          names[i] = getName(id);
+      final Children children = getChildren(parentId);
+      if (children != null) {
+        for (int i = 0; i < children.nameIds.length; i++) {
+          if (children.nameIds[i] == nameId) return children.ids[i];
         }
-        input.close();
-        return Pair.create(names, ids);
-      }
-      finally {
-        r.unlock();
       }
+      return 0;
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
     }
   }
 
+  private static final class Children {
+    private final int[] ids;
+    private final int[] nameIds;
+
+    private Children(@NotNull int[] ids, @NotNull int[] nameIds) {
+      this.ids = ids;
+      this.nameIds = nameIds;
+    }
+  }
+
+  @Nullable
+  private static Children getChildren(int parentId) throws IOException {
+    Children children = ourChildrenCache.get(parentId);
+    if (children != null) return children;
+
+    r.lock();
+    try {
+      // no writer can change the children until the lock is released, so they are cached up to date
+      final DataInputStream input = readAttribute(parentId, CHILDREN_ATT);
+      if (input == null) return null;
+
+      final int count = DataInputOutputUtil.readINT(input);
+      final int[] ids = ArrayUtil.newIntArray(count);
+      for (int i = 0; i < count; i++) {
+        int id = DataInputOutputUtil.readINT(input);
+        id = id >= 0 ? id + parentId : -id;
+        ids[i] = id;
+      }
+      input.close();
+
+      children = createChildren(ids);
+      ourChildrenCache.put(parentId, children);
+      return children;
+    }
+    finally {
+      r.unlock();
+    }
+  }
+
+  // should be called under r or w lock
+  @NotNull
+  private static Children createChildren(@NotNull int[] ids) {
+    final int[] nameIds = ArrayUtil.newIntArray(ids.length);
+    for (int i = 0; i < ids.length; i++) {
+      nameIds[i] = getRecordInt(ids[i], NAME_OFFSET);
+    }
+    return new Children(ids, nameIds);
+  }
+
   public static boolean wereChildrenAccessed(int id) {
     try {
       r.lock();
@@ -838,16 +1004,20 @@ public class FSRecords implements Forceable {
       DbConnection.markDirty();
       final DataOutputStream record = writeAttribute(id, CHILDREN_ATT, false);
       DataInputOutputUtil.writeINT(record, children.length);
+      final int[] ids = ArrayUtil.newIntArray(children.length);
+      int count = 0;
       for (int child : children) {
         if (child == id) {
           LOG.error("Cyclic parent child relations");
         }
         else {
+          ids[count++] = child;
           child = child > id ? child - id : -child;
           DataInputOutputUtil.writeINT(record, child);
         }
       }
       record.close();
+      ourChildrenCache.put(id, createChildren(count == ids.length ? ids : ArrayUtil.realloc(ids, count)));
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -959,27 +1129,53 @@ public class FSRecords implements Forceable {
     }
   }
 
+  /**
+   * @return id of the name if it has been enumerated already, 0 otherwise; unlike {@link #getNameId(String)} doesn't persist the name
+   */
+  public static int findNameId(String name) {
+    try {
+      r.lock();
+      try {
+        return getNames().tryEnumerate(name);
+      }
+      finally {
+        r.unlock();
+      }
+    }
+    catch (Throwable e) {
+      throw DbConnection.handleError(e);
+    }
+  }
+
   public static String getName(int id) {
     try {
+      final int nameId;
       r.lock();
       try {
-        final int nameId = getRecordInt(id, NAME_OFFSET);
-        return nameId != 0 ? getNames().valueOf(nameId) : "";
+        nameId = getRecordInt(id, NAME_OFFSET);
       }
       finally {
         r.unlock();
       }
+      // the names enumerator is thread-safe itself
+      return getNameByNameId(nameId);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
     }
   }
 
+  @NotNull
+  private static String getNameByNameId(int nameId) throws IOException {
+    return nameId != 0 ? getNames().valueOf(nameId) : "";
+  }
+
   public static void setName(int id, String name) {
     try {
       w.lock();
       incModCount(id);
       putRecordInt(id, NAME_OFFSET, getNames().enumerate(name));
+      ourChildrenCache.remove(getRecordInt(id, PARENT_OFFSET));
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1166,14 +1362,106 @@ public class FSRecords implements Forceable {
     int recordId = getContentRecordId(fileId);
     if (toWrite) {
       if (recordId == 0 || getContentStorage().getRefCount(recordId) > 1) {
+        final int oldRecordId = recordId;
         recordId = getContentStorage().acquireNewRecord();
         setContentRecordId(fileId, recordId);
+        if (oldRecordId != 0) {
+          releaseContentRecord(oldRecordId);
+        }
       }
+      // the content is about to be overwritten
+      setContentHash(recordId, null);
     }
 
     return recordId;
   }
 
+  // should be called under w lock
+  private static void releaseContentRecord(int recordId) throws IOException {
+    if (getContentStorage().getRefCount(recordId) == 1) {
+      setContentHash(recordId, null);
+    }
+    getContentStorage().releaseRecord(recordId);
+  }
+
+  @NotNull
+  private static byte[] calculateContentHash(@NotNull ByteSequence bytes) {
+    final MessageDigest digest = ourContentDigest.get();
+    digest.reset();
+    digest.update(bytes.getBytes(), bytes.getOffset(), bytes.getLength());
+    return digest.digest();
+  }
+
+  private static final ThreadLocal<MessageDigest> ourContentDigest = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("SHA-1");
+      }
+      catch (NoSuchAlgorithmException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  };
+
+  // should be called under r or w lock
+  @Nullable
+  private static byte[] readContentHash(int recordId) {
+    final ResizeableMappedFile hashes = DbConnection.myContentHashes;
+    if (hashes == null) return null;
+    final int offset = recordId * CONTENT_HASH_SIZE;
+    if (offset + CONTENT_HASH_SIZE > hashes.length()) return null;
+    final byte[] hash = new byte[CONTENT_HASH_SIZE];
+    hashes.get(offset, hash, 0, CONTENT_HASH_SIZE);
+    return Arrays.equals(hash, NO_CONTENT_HASH) ? null : hash;
+  }
+
+  // should be called under w lock, null hash means the content of the record is going to change
+  private static void setContentHash(int recordId, @Nullable byte[] hash) throws IOException {
+    final ResizeableMappedFile hashes = DbConnection.myContentHashes;
+    if (hashes == null) return;
+    if (hash == null) {
+      final byte[] oldHash = readContentHash(recordId);
+      if (oldHash == null) return;
+      final Integer indexed = DbConnection.myContentsByHash.get(oldHash);
+      if (indexed != null && indexed.intValue() == recordId) {
+        DbConnection.myContentsByHash.remove(oldHash);
+      }
+      hashes.put(recordId * CONTENT_HASH_SIZE, NO_CONTENT_HASH, 0, CONTENT_HASH_SIZE);
+    }
+    else {
+      hashes.put(recordId * CONTENT_HASH_SIZE, hash, 0, CONTENT_HASH_SIZE);
+      DbConnection.myContentsByHash.put(hash, recordId);
+    }
+  }
+
+  // should be called under w lock
+  private static int findContentRecordByHash(@NotNull byte[] hash) throws IOException {
+    final Integer recordId = DbConnection.myContentsByHash.get(hash);
+    if (recordId == null || !Arrays.equals(hash, readContentHash(recordId.intValue()))) return 0;
+    return getContentStorage().getRefCount(recordId.intValue()) > 0 ? recordId.intValue() : 0;
+  }
+
+  /**
+   * @return SHA-1 of the stored content of the file, or null if the file has no content or its hash is not known
+   */
+  @Nullable
+  public static byte[] getContentHash(int fileId) {
+    try {
+      r.lock();
+      try {
+        final int recordId = getContentRecordId(fileId);
+        return recordId == 0 ? null : readContentHash(recordId);
+      }
+      finally {
+        r.unlock();
+      }
+    }
+    catch (Throwable e) {
+      throw DbConnection.handleError(e);
+    }
+  }
+
   private static int findAttributePage(int fileId, String attrId, boolean toWrite) throws IOException {
     checkFileIsValid(fileId);
 
@@ -1243,11 +1531,15 @@ public class FSRecords implements Forceable {
 
   public static void releaseContent(int contentId) {
     try {
-      getContentStorage().releaseRecord(contentId);
+      w.lock();
+      releaseContentRecord(contentId);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
     }
+    finally {
+      w.unlock();
+    }
   }
 
   public static int getContentId(int fileId) {
@@ -1265,6 +1557,22 @@ public class FSRecords implements Forceable {
     }
   }
 
+  @TestOnly
+  static int getContentRefCount(int contentId) {
+    try {
+      r.lock();
+      try {
+        return getContentStorage().getRefCount(contentId);
+      }
+      finally {
+        r.unlock();
+      }
+    }
+    catch (Throwable e) {
+      throw DbConnection.handleError(e);
+    }
+  }
+
   @NotNull
   public static DataOutputStream writeContent(int fileId, boolean readOnly) {
     return new ContentOutputStream(fileId, readOnly);
@@ -1276,10 +1584,35 @@ public class FSRecords implements Forceable {
 
   public static int storeUnlinkedContent(byte[] bytes) {
     try {
-      int recordId = getContentStorage().acquireNewRecord();
+      final byte[] hash = DbConnection.myContentHashes != null ? calculateContentHash(new ByteSequence(bytes)) : null;
+      int recordId;
+      try {
+        w.lock();
+        recordId = hash != null ? findContentRecordByHash(hash) : 0;
+        if (recordId != 0) {
+          getContentStorage().acquireRecord(recordId);
+          return recordId;
+        }
+        recordId = getContentStorage().acquireNewRecord();
+        setContentHash(recordId, null);
+      }
+      finally {
+        w.unlock();
+      }
+
       AbstractStorage.StorageDataOutput output = getContentStorage().writeStream(recordId, true);
       output.write(bytes);
       output.close();
+
+      if (hash != null) {
+        try {
+          w.lock();
+          setContentHash(recordId, hash);
+        }
+        finally {
+          w.unlock();
+        }
+      }
       return recordId;
     }
     catch (IOException e) {
@@ -1297,6 +1630,53 @@ public class FSRecords implements Forceable {
       super(fileId, readOnly);
     }
 
+    @Override
+    public void writeBytes(ByteSequence bytes, int fileId) throws IOException {
+      if (DbConnection.myContentHashes == null) {
+        super.writeBytes(bytes, fileId);
+        return;
+      }
+
+      final byte[] hash = calculateContentHash(bytes);
+      final int page;
+      final int modCount;
+      try {
+        w.lock();
+        incModCount(fileId);
+        checkFileIsValid(fileId);
+        final int sameContentRecord = findContentRecordByHash(hash);
+        if (sameContentRecord != 0) {
+          final int oldRecord = getContentRecordId(fileId);
+          if (oldRecord != sameContentRecord) {
+            getContentStorage().acquireRecord(sameContentRecord);
+            setContentRecordId(fileId, sameContentRecord);
+            if (oldRecord != 0) {
+              releaseContentRecord(oldRecord);
+            }
+          }
+          return;
+        }
+        page = findOrCreatePage();
+        modCount = getModCount(fileId);
+      }
+      finally {
+        w.unlock();
+      }
+
+      getStorage().writeBytes(page, bytes, myFixedSize);
+
+      try {
+        w.lock();
+        // the hash is not known if the file has been written again meanwhile
+        if (getContentRecordId(fileId) == page && getModCount(fileId) == modCount) {
+          setContentHash(page, hash);
+        }
+      }
+      finally {
+        w.unlock();
+      }
+    }
+
     @Override
     protected int findOrCreatePage() throws IOException {
       return findContentPage(myFileId, true);
@@ -1334,6 +1714,31 @@ public class FSRecords implements Forceable {
     }
   }
 
+  private static class ContentHashDescriptor implements KeyDescriptor<byte[]> {
+    @Override
+    public int getHashCode(byte[] value) {
+      // the hash is uniformly distributed already
+      return (value[0] << 24) | ((value[1] & 0xFF) << 16) | ((value[2] & 0xFF) << 8) | (value[3] & 0xFF);
+    }
+
+    @Override
+    public boolean isEqual(byte[] val1, byte[] val2) {
+      return Arrays.equals(val1, val2);
+    }
+
+    @Override
+    public void save(DataOutput out, byte[] value) throws IOException {
+      out.write(value);
+    }
+
+    @Override
+    public byte[] read(DataInput in) throws IOException {
+      final byte[] value = new byte[CONTENT_HASH_SIZE];
+      in.readFully(value);
+      return value;
+    }
+  }
+
   private abstract static class BaseOutputStream extends DataOutputStream {
     protected final int myFileId;
     protected final boolean myFixedSize;
@@ -392,19 +392,16 @@ public class PersistentFSImpl extends PersistentFS implements ApplicationCompone
   public int getId(@NotNull final VirtualFile parent, @NotNull final String childName, @NotNull final NewVirtualFileSystem fs) {
     final int parentId = getFileId(parent);
 
-    final int[] children = FSRecords.list(parentId);
-
-    if (children.length > 0) {
-      // fast path, check that some child has same nameId as given name, this avoid O(N) on retrieving names for processing noncached children
-      int nameId = FSRecords.getNameId(childName);
-      for (final int childId : children) {
-        if (nameId == FSRecords.getNameId(childId)) {
-          return childId;
-        }
-      }
-      // for case sensitive system the above check is exhaustive in consistent state of vfs
+    // fast path, check that some child has same nameId as given name, this avoid O(N) on retrieving names for processing noncached children
+    // the name is looked up without enumerating it, lookups of missing children mustn't grow the names storage
+    final int nameId = FSRecords.findNameId(childName);
+    final int existingChildId = nameId != 0 ? FSRecords.findChildByNameId(parentId, nameId) : 0;
+    if (existingChildId != 0) {
+      return existingChildId;
     }
+    // for case sensitive system the above check is exhaustive in consistent state of vfs
 
+    final int[] children = FSRecords.list(parentId);
     for (final int childId : children) {
       if (namesEqual(fs, childName, FSRecords.getName(childId))) return childId;
     }
@@ -74,6 +74,14 @@ public class CompressionUtil {
     int size = DataInputOutputUtil.readINT(in);
     byte[] bytes = new byte[Math.abs(size)];
     in.readFully(bytes);
+    return uncompress(bytes, size);
+  }
+
+  /**
+   * Unpacks the bytes stored by {@link #writeCompressed}, so the caller may keep them as they are read until they are really needed.
+   * @param size the size written before the bytes, negative if they are compressed
+   */
+  public static byte[] uncompress(byte[] bytes, int size) throws IOException {
     if (size >= 0) {
       return bytes;
     } else {
@@ -82,6 +90,19 @@ public class CompressionUtil {
     }
   }
 
+  /**
+   * @return the length of the bytes stored by {@link #writeCompressed} after they are unpacked, the bytes aren't unpacked for that
+   * @param size the size written before the bytes, negative if they are compressed
+   */
+  public static int uncompressedLength(byte[] bytes, int size) throws IOException {
+    if (size >= 0) {
+      return size;
+    } else {
+      if (!ourCanUseSnappy) throw new IOException("Can not read compressed data");
+      return Snappy.uncompressedLength(bytes);
+    }
+  }
+
   private static final int STRING_COMPRESSION_THRESHOLD = 1024;
 
   public static CharSequence uncompressCharSequence(Object string) {
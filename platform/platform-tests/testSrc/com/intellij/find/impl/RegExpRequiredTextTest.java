@@ -0,0 +1,85 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.find.impl;
+
+import com.intellij.openapi.util.text.TrigramBuilder;
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+public class RegExpRequiredTextTest extends TestCase {
+  private static void assertFragments(String regExp, String... expected) {
+    assertEquals(regExp, Arrays.asList(expected), RegExpRequiredText.getRequiredFragments(regExp));
+  }
+
+  public void testLiterals() {
+    assertFragments("foo", "foo");
+    assertFragments("foo\\.bar\\(\\)", "foo.bar()");
+    assertFragments("\\Qa.b*c\\Edef", "a.b*cdef");
+  }
+
+  public void testMetaCharsSplitFragments() {
+    assertFragments("get.*Name", "get", "Name");
+    assertFragments("^import [a-z.]+;$", "import ", ";");
+    assertFragments("foo\\s+bar\\d", "foo", "bar");
+    assertFragments("\\x41bc\\u0041de\\p{Alpha}fg", "bc", "de", "fg");
+  }
+
+  public void testQuantifiers() {
+    assertFragments("colou?r", "colo", "r");
+    assertFragments("ab+c", "ab", "c");
+    assertFragments("ab*c", "a", "c");
+    assertFragments("ab{0,3}c", "a", "c");
+    assertFragments("ab{2}c", "ab", "c");
+    assertFragments("ab*?c", "a", "c");
+  }
+
+  public void testGroups() {
+    assertFragments("new (Foo|Bar)\\(\\)", "new ", "()");
+    assertFragments("(?:final )?class (\\w+)Impl", "class ", "Impl");
+    assertFragments("(?i)select (from)", "select ", "from");
+    assertFragments("a(?!bc)d", "a", "d");
+    assertFragments("(ab(cd)+)", "ab", "cd");
+  }
+
+  public void testNothingRequired() {
+    assertFragments("foo|bar");
+    assertFragments("(?x) foo");
+    assertFragments("(foo");
+    assertFragments("[a-z");
+    assertFragments(".*");
+  }
+
+  public void testCaseInsensitiveNonAsciiFragments() {
+    // the trigram index lower-cases both the text and the fragments, case-insensitive matching must not escape that
+    final String[] texts = {"Straße", "STRAßE", "straße", "STRASSE", "Ärger1", "ÄRGER1", "ärger1", "AERGER1", "Ünïcödé", "ÜNÏCÖDÉ"};
+    for (String regExp : new String[]{"Straße", "ärger\\d", "(?i)ÄRGER", "ünïcödé"}) {
+      for (int flags : new int[]{Pattern.CASE_INSENSITIVE, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE}) {
+        final Pattern pattern = Pattern.compile(regExp, flags);
+        for (String fragment : RegExpRequiredText.getRequiredFragments(regExp)) {
+          final TIntHashSet fragmentTrigrams = TrigramBuilder.buildTrigram(fragment);
+          for (String text : texts) {
+            if (pattern.matcher(text).find()) {
+              assertTrue(regExp + " matches " + text, TrigramBuilder.buildTrigram(text).containsAll(fragmentTrigrams.toArray()));
+            }
+          }
+        }
+      }
+    }
+  }
+}
@@ -147,6 +147,35 @@ public class PsiBuilderQuickTest extends LightPlatformTestCase {
     );
   }
 
+  public void testMarkersReusedAfterCollapseAreNotCollapsed() {
+    testCollapse();
+    // the markers released by the previous builder are reused by the next one
+    doTest("a<<>>b",
+           new Parser() {
+             @Override
+             public void parse(PsiBuilder builder) {
+               PsiBuilderUtil.advance(builder, 1);
+               final PsiBuilder.Marker marker1 = builder.mark();
+               PsiBuilderUtil.advance(builder, 2);
+               marker1.done(OTHER);
+               final PsiBuilder.Marker marker2 = builder.mark();
+               PsiBuilderUtil.advance(builder, 2);
+               marker2.done(OTHER);
+               PsiBuilderUtil.advance(builder, 1);
+             }
+           },
+           "Element(ROOT)\n" +
+           "  PsiElement(LETTER)('a')\n" +
+           "  Element(OTHER)\n" +
+           "    PsiElement(OTHER)('<')\n" +
+           "    PsiElement(OTHER)('<')\n" +
+           "  Element(OTHER)\n" +
+           "    PsiElement(OTHER)('>')\n" +
+           "    PsiElement(OTHER)('>')\n" +
+           "  PsiElement(LETTER)('b')\n"
+    );
+  }
+
   public void testDoneAndError() {
     doTest("a2b",
            new Parser() {
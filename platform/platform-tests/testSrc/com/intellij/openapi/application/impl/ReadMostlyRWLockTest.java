@@ -0,0 +1,196 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.application.impl;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ReadMostlyRWLockTest extends TestCase {
+  private final ReadMostlyRWLock myLock = new ReadMostlyRWLock();
+
+  public void testReentrancy() throws InterruptedException {
+    myLock.readLockInterruptibly();
+    assertTrue(myLock.tryReadLock());
+    myLock.readUnlock();
+    assertTrue(myLock.isReadLockedByCurrentThread());
+    myLock.readUnlock();
+    assertFalse(myLock.isReadLockedByCurrentThread());
+
+    myLock.writeLockInterruptibly();
+    assertTrue(myLock.tryWriteLock());
+    myLock.readLockInterruptibly();
+    assertTrue(myLock.isReadLockedByCurrentThread());
+    myLock.readUnlock();
+    myLock.writeUnlock();
+    assertTrue(myLock.isWriteLockedByCurrentThread());
+    myLock.writeUnlock();
+    assertFalse(myLock.isWriteLockedByCurrentThread());
+  }
+
+  public void testWriterWaitsForReaders() throws Exception {
+    myLock.readLockInterruptibly();
+    final CountDownLatch acquired = new CountDownLatch(1);
+    final Thread writer = startThread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          myLock.writeLockInterruptibly();
+          acquired.countDown();
+          myLock.writeUnlock();
+        }
+        catch (InterruptedException ignored) {
+        }
+      }
+    });
+    assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+    myLock.readUnlock();
+    assertTrue(acquired.await(10, TimeUnit.SECONDS));
+    writer.join();
+  }
+
+  public void testPendingWriterBlocksNewReaders() throws Exception {
+    myLock.readLockInterruptibly();
+    final Thread writer = startThread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          myLock.writeLockInterruptibly();
+          myLock.writeUnlock();
+        }
+        catch (InterruptedException ignored) {
+        }
+      }
+    });
+    final AtomicBoolean tryReadResult = new AtomicBoolean(true);
+    final CountDownLatch readAcquired = new CountDownLatch(1);
+    final Thread reader = startThread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (writer.getState() != Thread.State.WAITING) Thread.yield();
+          tryReadResult.set(myLock.tryReadLock());
+          myLock.readLockInterruptibly();
+          readAcquired.countDown();
+          myLock.readUnlock();
+        }
+        catch (InterruptedException ignored) {
+        }
+      }
+    });
+    assertFalse(readAcquired.await(100, TimeUnit.MILLISECONDS));
+    assertFalse(tryReadResult.get());
+    // the read lock held by the thread is still reentrant
+    assertTrue(myLock.tryReadLock());
+    myLock.readUnlock();
+    assertFalse(myLock.tryWriteLock());
+
+    myLock.readUnlock();
+    assertTrue(readAcquired.await(10, TimeUnit.SECONDS));
+    writer.join();
+    reader.join();
+  }
+
+  public void testInterruptedWriterLetsReadersIn() throws Exception {
+    myLock.readLockInterruptibly();
+    final AtomicReference<Throwable> writerResult = new AtomicReference<Throwable>();
+    final Thread writer = startThread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          myLock.writeLockInterruptibly();
+        }
+        catch (InterruptedException e) {
+          writerResult.set(e);
+        }
+      }
+    });
+    while (writer.getState() != Thread.State.WAITING) Thread.yield();
+    writer.interrupt();
+    writer.join();
+    assertTrue(writerResult.get() instanceof InterruptedException);
+    myLock.readUnlock();
+
+    final AtomicBoolean tryReadResult = new AtomicBoolean();
+    startThread(new Runnable() {
+      @Override
+      public void run() {
+        tryReadResult.set(myLock.tryReadLock());
+        myLock.readUnlock();
+      }
+    }).join();
+    assertTrue(tryReadResult.get());
+    assertTrue(myLock.tryWriteLock());
+    myLock.writeUnlock();
+  }
+
+  public void testMutualExclusion() throws Exception {
+    final int threadsCount = Runtime.getRuntime().availableProcessors() + 1;
+    final AtomicInteger readers = new AtomicInteger();
+    final AtomicInteger writers = new AtomicInteger();
+    final AtomicInteger violations = new AtomicInteger();
+    final int[] counter = {0};
+    final List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < threadsCount; t++) {
+      final boolean writer = t == 0;
+      threads.add(startThread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 20000; i++) {
+              if (writer) {
+                myLock.writeLockInterruptibly();
+                if (writers.incrementAndGet() != 1 || readers.get() != 0) violations.incrementAndGet();
+                counter[0]++;
+                writers.decrementAndGet();
+                myLock.writeUnlock();
+              }
+              else {
+                myLock.readLockInterruptibly();
+                readers.incrementAndGet();
+                if (writers.get() != 0) violations.incrementAndGet();
+                readers.decrementAndGet();
+                myLock.readUnlock();
+              }
+            }
+          }
+          catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      }));
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(0, violations.get());
+    myLock.readLockInterruptibly();
+    assertEquals(20000, counter[0]);
+    myLock.readUnlock();
+  }
+
+  private static Thread startThread(Runnable runnable) {
+    final Thread thread = new Thread(runnable, "ReadMostlyRWLockTest");
+    thread.start();
+    return thread;
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.progress.util;
+
+import com.intellij.openapi.application.ApplicationAdapter;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ex.ApplicationEx;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.util.EmptyRunnable;
+import com.intellij.testFramework.LightPlatformTestCase;
+import com.intellij.util.ui.UIUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ProgressIndicatorUtilsTest extends LightPlatformTestCase {
+  public void testReadTaskIsRestartedByWriteAction() throws Exception {
+    final CountDownLatch firstAttemptStarted = new CountDownLatch(1);
+    final AtomicInteger attempts = new AtomicInteger();
+    final AtomicInteger cancellations = new AtomicInteger();
+    final ReadTask task = new ReadTask() {
+      @Override
+      public void computeInReadAction(@NotNull ProgressIndicator indicator) {
+        assertTrue(ApplicationManager.getApplication().isReadAccessAllowed());
+        if (attempts.incrementAndGet() == 1) {
+          firstAttemptStarted.countDown();
+          final long deadline = System.currentTimeMillis() + 10000;
+          while (System.currentTimeMillis() < deadline) {
+            indicator.checkCanceled();
+          }
+          fail("the task hasn't been cancelled by the write action");
+        }
+      }
+
+      @Override
+      public void onCanceled() {
+        cancellations.incrementAndGet();
+      }
+    };
+    final Future<?> future = ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+      @Override
+      public void run() {
+        ProgressIndicatorUtils.runWithWriteActionPriority(task);
+      }
+    });
+
+    assertTrue(firstAttemptStarted.await(10, TimeUnit.SECONDS));
+    ApplicationManager.getApplication().runWriteAction(new Runnable() {
+      @Override
+      public void run() {
+        assertEquals(1, attempts.get());
+      }
+    });
+    waitFor(future);
+    assertEquals(2, attempts.get());
+    assertEquals(1, cancellations.get());
+  }
+
+  public void testFailedWriteActionListenerDoesNotLeaveWriteActionPending() throws Exception {
+    final ApplicationEx application = (ApplicationEx)ApplicationManager.getApplication();
+    final ApplicationAdapter listener = new ApplicationAdapter() {
+      @Override
+      public void beforeWriteActionStart(Object action) {
+        throw new IllegalStateException("failed listener");
+      }
+    };
+    application.addApplicationListener(listener);
+    try {
+      application.runWriteAction(EmptyRunnable.getInstance());
+      fail("the listener exception is expected to be thrown");
+    }
+    catch (IllegalStateException e) {
+      assertEquals("failed listener", e.getMessage());
+    }
+    finally {
+      application.removeApplicationListener(listener);
+    }
+    assertFalse(application.isWriteActionPending());
+
+    final AtomicInteger attempts = new AtomicInteger();
+    waitFor(application.executeOnPooledThread(new Runnable() {
+      @Override
+      public void run() {
+        ProgressIndicatorUtils.runWithWriteActionPriority(new ReadTask() {
+          @Override
+          public void computeInReadAction(@NotNull ProgressIndicator indicator) {
+            attempts.incrementAndGet();
+          }
+        });
+      }
+    }));
+    assertEquals(1, attempts.get());
+  }
+
+  private static void waitFor(Future<?> future) throws Exception {
+    final long deadline = System.currentTimeMillis() + 10000;
+    while (!future.isDone()) {
+      assertTrue("the read task hasn't completed", System.currentTimeMillis() < deadline);
+      UIUtil.dispatchAllInvocationEvents();
+      Thread.sleep(1);
+    }
+    future.get();
+  }
+}
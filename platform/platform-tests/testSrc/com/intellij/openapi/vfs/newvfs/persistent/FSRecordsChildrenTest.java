@@ -0,0 +1,115 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.openapi.util.Pair;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class FSRecordsChildrenTest extends TestCase {
+  private int myParent;
+  private int myChild1;
+  private int myChild2;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    FSRecords.connect();
+    myParent = FSRecords.createRecord();
+    myChild1 = createChild("a");
+    myChild2 = createChild("b");
+    FSRecords.updateList(myParent, new int[]{myChild1, myChild2});
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      if (myParent != 0) {
+        FSRecords.deleteRecordRecursively(myParent);
+      }
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testUpdateListInvalidatesChildren() {
+    // fill the cache
+    assertEquals(myChild1, findChild("a"));
+    assertTrue(Arrays.equals(new int[]{myChild1, myChild2}, FSRecords.list(myParent)));
+
+    final int child3 = createChild("c");
+    FSRecords.updateList(myParent, new int[]{myChild2, child3});
+
+    assertEquals(0, findChild("a"));
+    assertEquals(myChild2, findChild("b"));
+    assertEquals(child3, findChild("c"));
+    assertTrue(Arrays.equals(new int[]{myChild2, child3}, FSRecords.list(myParent)));
+    FSRecords.deleteRecordRecursively(myChild1);
+  }
+
+  public void testSetNameInvalidatesChildren() {
+    assertEquals(myChild1, findChild("a"));
+    assertEquals("[a, b]", Arrays.toString(FSRecords.listAll(myParent).first));
+
+    FSRecords.setName(myChild1, "renamed");
+
+    assertEquals(0, findChild("a"));
+    assertEquals(myChild1, findChild("renamed"));
+    final Pair<String[], int[]> children = FSRecords.listAll(myParent);
+    assertEquals("[renamed, b]", Arrays.toString(children.first));
+    assertTrue(Arrays.equals(new int[]{myChild1, myChild2}, children.second));
+  }
+
+  public void testDeleteRecordInvalidatesChildren() {
+    assertEquals(myChild1, findChild("a"));
+
+    FSRecords.deleteRecordRecursively(myParent);
+    final int deletedParent = myParent;
+    myParent = 0;
+
+    // the deleted records are reused, the new record must not get the children of the deleted one
+    final int record = FSRecords.createRecord();
+    try {
+      assertEquals(deletedParent, record);
+      assertEquals(0, FSRecords.list(record).length);
+      assertEquals(0, FSRecords.findChildByNameId(record, FSRecords.getNameId("a")));
+    }
+    finally {
+      FSRecords.deleteRecordRecursively(record);
+    }
+  }
+
+  public void testFindNameIdDoesNotEnumerateName() {
+    assertEquals(FSRecords.getNameId("a"), FSRecords.findNameId("a"));
+
+    final String missing = "missing" + System.nanoTime();
+    assertEquals(0, FSRecords.findNameId(missing));
+    assertEquals(0, FSRecords.findNameId(missing));
+  }
+
+  private int createChild(String name) {
+    final int child = FSRecords.createRecord();
+    FSRecords.setParent(child, myParent);
+    FSRecords.setName(child, name);
+    return child;
+  }
+
+  private int findChild(String name) {
+    return FSRecords.findChildByNameId(myParent, FSRecords.getNameId(name));
+  }
+}
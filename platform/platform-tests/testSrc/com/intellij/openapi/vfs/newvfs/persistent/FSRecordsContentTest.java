@@ -0,0 +1,143 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.openapi.util.io.ByteSequence;
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class FSRecordsContentTest extends TestCase {
+  private int myFile1;
+  private int myFile2;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    FSRecords.connect();
+    myFile1 = FSRecords.createRecord();
+    myFile2 = FSRecords.createRecord();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      FSRecords.deleteRecordRecursively(myFile1);
+      FSRecords.deleteRecordRecursively(myFile2);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testSameContentIsShared() throws Exception {
+    final byte[] content = uniqueContent("shared");
+    FSRecords.writeContent(myFile1, new ByteSequence(content), false);
+    FSRecords.writeContent(myFile2, new ByteSequence(content), false);
+
+    final int contentId = FSRecords.getContentId(myFile1);
+    assertTrue(contentId > 0);
+    assertEquals(contentId, FSRecords.getContentId(myFile2));
+    assertEquals(2, FSRecords.getContentRefCount(contentId));
+    assertNotNull(FSRecords.getContentHash(myFile1));
+    assertTrue(Arrays.equals(FSRecords.getContentHash(myFile1), FSRecords.getContentHash(myFile2)));
+    assertTrue(Arrays.equals(content, readContent(myFile2)));
+  }
+
+  public void testRewritingSharedContentDoesNotChangeOtherFile() throws Exception {
+    final byte[] content = uniqueContent("shared");
+    FSRecords.writeContent(myFile1, new ByteSequence(content), false);
+    FSRecords.writeContent(myFile2, new ByteSequence(content), false);
+    final int contentId = FSRecords.getContentId(myFile2);
+    final byte[] hash = FSRecords.getContentHash(myFile2);
+
+    final byte[] newContent = uniqueContent("rewritten");
+    FSRecords.writeContent(myFile1, new ByteSequence(newContent), false);
+
+    assertTrue(FSRecords.getContentId(myFile1) != contentId);
+    assertTrue(Arrays.equals(newContent, readContent(myFile1)));
+    assertEquals(contentId, FSRecords.getContentId(myFile2));
+    assertEquals(1, FSRecords.getContentRefCount(contentId));
+    assertTrue(Arrays.equals(content, readContent(myFile2)));
+    assertTrue(Arrays.equals(hash, FSRecords.getContentHash(myFile2)));
+
+    // the record is not shared anymore, it's rewritten in place
+    final byte[] otherContent = uniqueContent("other");
+    FSRecords.writeContent(myFile2, new ByteSequence(otherContent), false);
+    assertEquals(contentId, FSRecords.getContentId(myFile2));
+    assertTrue(Arrays.equals(otherContent, readContent(myFile2)));
+    assertTrue(Arrays.equals(newContent, readContent(myFile1)));
+  }
+
+  public void testUnlinkedContentKeepsRefCountsBalanced() throws Exception {
+    final byte[] content = uniqueContent("unlinked");
+    FSRecords.writeContent(myFile1, new ByteSequence(content), false);
+    final int contentId = FSRecords.getContentId(myFile1);
+
+    // the contents kept apart from the files, e.g. by local history, are released when they are not needed anymore
+    final int unlinkedId = FSRecords.storeUnlinkedContent(content);
+    assertEquals(contentId, unlinkedId);
+    assertEquals(2, FSRecords.getContentRefCount(contentId));
+    final int acquiredId = FSRecords.acquireFileContent(myFile1);
+    assertEquals(contentId, acquiredId);
+    assertEquals(3, FSRecords.getContentRefCount(contentId));
+
+    FSRecords.releaseContent(unlinkedId);
+    FSRecords.releaseContent(acquiredId);
+    assertEquals(1, FSRecords.getContentRefCount(contentId));
+    assertTrue(Arrays.equals(content, readContent(myFile1)));
+
+    // the file is the only owner now, so its record is rewritten in place and isn't found by the old hash anymore
+    final byte[] newContent = uniqueContent("rewritten");
+    FSRecords.writeContent(myFile1, new ByteSequence(newContent), false);
+    assertEquals(contentId, FSRecords.getContentId(myFile1));
+    final int newUnlinkedId = FSRecords.storeUnlinkedContent(content);
+    assertTrue(newUnlinkedId != contentId);
+    assertEquals(1, FSRecords.getContentRefCount(newUnlinkedId));
+    assertTrue(Arrays.equals(content, readContentById(newUnlinkedId)));
+    FSRecords.releaseContent(newUnlinkedId);
+    assertEquals(1, FSRecords.getContentRefCount(contentId));
+  }
+
+  private static byte[] uniqueContent(String prefix) {
+    // the storage is shared with the other tests, the content must not match the contents stored by them
+    return (prefix + " " + System.nanoTime() + " " + Math.random()).getBytes();
+  }
+
+  private static byte[] readContent(int fileId) throws IOException {
+    final DataInputStream stream = FSRecords.readContent(fileId);
+    assertNotNull(stream);
+    return loadBytes(stream);
+  }
+
+  private static byte[] readContentById(int contentId) throws IOException {
+    final DataInputStream stream = FSRecords.readContentById(contentId);
+    assertNotNull(stream);
+    return loadBytes(stream);
+  }
+
+  private static byte[] loadBytes(DataInputStream stream) throws IOException {
+    try {
+      return FileUtil.loadBytes(stream);
+    }
+    finally {
+      stream.close();
+    }
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.stubs;
+
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.util.io.DataInputOutputUtil;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class SerializedStubTreeTest extends TestCase {
+  public void testPackedAndUnpackedTreesAreEqual() throws Exception {
+    for (int length : new int[]{10, 1000}) {
+      final byte[] bytes = createBytes(length, 0);
+      final SerializedStubTree tree = new SerializedStubTree(bytes, length, null);
+      final SerializedStubTree packed = readTree(writeTree(tree));
+
+      assertEquals(tree, packed);
+      assertEquals(packed, tree);
+      assertEquals(tree.hashCode(), packed.hashCode());
+      assertEquals(packed, readTree(writeTree(tree)));
+
+      final SerializedStubTree other = new SerializedStubTree(createBytes(length, 1), length, null);
+      assertFalse(tree.equals(other));
+      assertFalse(packed.equals(readTree(writeTree(other))));
+      final SerializedStubTree longer = new SerializedStubTree(createBytes(length + 1, 0), length + 1, null);
+      assertFalse(packed.equals(readTree(writeTree(longer))));
+
+      // the tree unpacked after it was read is written as it was read
+      assertEquals(tree, packed);
+      assertTrue(Arrays.equals(writeTree(tree), writeTree(packed)));
+    }
+  }
+
+  public void testWrittenAsReadWithoutUnpacking() throws Exception {
+    // the stored bytes start with the length of the unpacked bytes, as packed ones do, but can't be unpacked
+    final BufferExposingByteArrayOutputStream stored = new BufferExposingByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(stored);
+    final byte[] packedBytes = {(byte)0xE8, 0x07, -1, -1, -1, -1, -1, -1};
+    DataInputOutputUtil.writeINT(out, -packedBytes.length);
+    out.write(packedBytes);
+    out.close();
+
+    final SerializedStubTree tree = readTree(stored.toByteArray());
+    assertTrue(Arrays.equals(stored.toByteArray(), writeTree(tree)));
+    assertEquals(1000, tree.hashCode());
+    assertFalse(tree.equals(new SerializedStubTree(createBytes(10, 0), 10, null)));
+    assertEquals(tree, readTree(stored.toByteArray()));
+  }
+
+  private static byte[] createBytes(int length, int seed) {
+    final byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte)((i + seed) % 7);
+    }
+    return bytes;
+  }
+
+  private static byte[] writeTree(SerializedStubTree tree) throws IOException {
+    final BufferExposingByteArrayOutputStream stream = new BufferExposingByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(stream);
+    tree.write(out);
+    out.close();
+    return stream.toByteArray();
+  }
+
+  private static SerializedStubTree readTree(byte[] bytes) throws IOException {
+    return new SerializedStubTree(new DataInputStream(new ByteArrayInputStream(bytes)));
+  }
+}
@@ -485,6 +485,18 @@ public class NameUtilTest extends UsefulTestCase {
     assertTrue(new MinusculeMatcher(" EUC-", NameUtil.MatchingCaseSensitivity.FIRST_LETTER).matchingDegree("x-EUC-TW") > Integer.MIN_VALUE);
   }
 
+  public void testMatchAll() {
+    MinusculeMatcher matcher = new MinusculeMatcher("NPE", NameUtil.MatchingCaseSensitivity.NONE);
+    String[] names = {"NullPointerException", "Foo", "NoPendingEvents", "npe", "NPExceptionWrapper"};
+    int[] degrees = matcher.matchAll(names);
+    assertEquals(names.length, degrees.length);
+    for (int i = 0; i < names.length; i++) {
+      assertEquals(names[i], matcher.matches(names[i]) ? matcher.matchingDegree(names[i]) : Integer.MIN_VALUE, degrees[i]);
+    }
+    assertEquals(Integer.MIN_VALUE, degrees[1]);
+    assertTrue(degrees[0] > Integer.MIN_VALUE);
+  }
+
   private static void assertPreference(@NonNls String pattern,
                                        @NonNls String less,
                                        @NonNls String more) {
@@ -550,6 +562,30 @@ public class NameUtilTest extends UsefulTestCase {
     }).cpuBound().assertTiming();
   }
 
+  public void testMatchAllPerformance() {
+    final String[] words = {"Abstract", "Action", "Bean", "Builder", "Class", "Default", "Exception", "Factory", "File", "Http", "Impl",
+      "Index", "Java", "List", "Manager", "Name", "Null", "Pointer", "Psi", "Request", "Service", "String", "Test", "Util", "Xml"};
+    final String[] names = new String[100000];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = words[i % words.length] + words[i / words.length % words.length] + words[i / 7 % words.length];
+    }
+    final List<MinusculeMatcher> matchers = new ArrayList<MinusculeMatcher>();
+    for (String s : ContainerUtil.ar("NPE", "psiMan", "*Impl", "AbFaBe", "StrBui")) {
+      matchers.add(new MinusculeMatcher(s, NameUtil.MatchingCaseSensitivity.NONE));
+    }
+
+    PlatformTestUtil.startPerformanceTest("Matching names is slow", 1500, new ThrowableRunnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < 10; i++) {
+          for (MinusculeMatcher matcher : matchers) {
+            matcher.matchAll(names);
+          }
+        }
+      }
+    }).cpuBound().assertTiming();
+  }
+
   public void testOnlyUnderscoresPerformance() {
     PlatformTestUtil.startPerformanceTest("Matcher is exponential", 300, new ThrowableRunnable() {
       @Override
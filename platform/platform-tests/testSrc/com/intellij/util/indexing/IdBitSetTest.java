@@ -0,0 +1,137 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntProcedure;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class IdBitSetTest extends TestCase {
+  private static final int BLOCK_SIZE = 1 << 16;
+
+  public void testBlockBoundaries() {
+    final int[] ids = {0, 63, 64, BLOCK_SIZE - 1, BLOCK_SIZE, BLOCK_SIZE + 1, 3 * BLOCK_SIZE - 1, 3 * BLOCK_SIZE, Integer.MAX_VALUE};
+    final IdBitSet set = new IdBitSet();
+    // added in descending order, so the blocks are allocated out of order
+    for (int i = ids.length - 1; i >= 0; i--) {
+      set.add(ids[i]);
+      set.add(ids[i]);
+    }
+
+    assertEquals(ids.length, set.size());
+    for (int id : ids) {
+      assertTrue(String.valueOf(id), set.contains(id));
+    }
+    for (int id : new int[]{1, 62, 65, BLOCK_SIZE - 2, BLOCK_SIZE + 2, 2 * BLOCK_SIZE, 2 * BLOCK_SIZE - 1, Integer.MAX_VALUE - 1, -1}) {
+      assertFalse(String.valueOf(id), set.contains(id));
+    }
+    assertTrue(Arrays.equals(ids, toArray(set)));
+  }
+
+  public void testForEachStops() {
+    final IdBitSet set = new IdBitSet();
+    set.add(1);
+    set.add(BLOCK_SIZE);
+    set.add(2 * BLOCK_SIZE);
+
+    final TIntArrayList processed = new TIntArrayList();
+    assertFalse(set.forEach(new TIntProcedure() {
+      @Override
+      public boolean execute(int id) {
+        processed.add(id);
+        return id < BLOCK_SIZE;
+      }
+    }));
+    assertTrue(Arrays.equals(new int[]{1, BLOCK_SIZE}, processed.toNativeArray()));
+  }
+
+  public void testClearAndReuse() {
+    final IdBitSet set = new IdBitSet();
+    set.clear();
+    assertTrue(set.isEmpty());
+
+    set.add(5);
+    set.add(BLOCK_SIZE + 5);
+    set.clear();
+    assertTrue(set.isEmpty());
+    assertEquals(0, set.size());
+    assertFalse(set.contains(5));
+    assertFalse(set.contains(BLOCK_SIZE + 5));
+    assertEquals(0, toArray(set).length);
+
+    set.add(BLOCK_SIZE + 5);
+    set.add(2 * BLOCK_SIZE + 7);
+    assertEquals(2, set.size());
+    assertFalse(set.contains(5));
+    assertTrue(Arrays.equals(new int[]{BLOCK_SIZE + 5, 2 * BLOCK_SIZE + 7}, toArray(set)));
+  }
+
+  public void testIntersection() {
+    final Random random = new Random(42);
+    // the way FileBasedIndexImpl intersects the ids of the keys: the ids of the next key which are in the current intersection
+    // are collected into the cleared set left from the previous step
+    IdBitSet intersection = null;
+    IdBitSet keyIds = new IdBitSet();
+    TIntHashSet expected = null;
+    for (int key = 0; key < 5; key++) {
+      final TIntHashSet ids = new TIntHashSet();
+      for (int i = 0; i < 100000; i++) {
+        ids.add(random.nextInt(4 * BLOCK_SIZE));
+      }
+
+      keyIds.clear();
+      for (int id : ids.toArray()) {
+        if (intersection == null || intersection.contains(id)) keyIds.add(id);
+      }
+      final IdBitSet previous = intersection;
+      intersection = keyIds;
+      keyIds = previous != null ? previous : new IdBitSet();
+
+      if (expected == null) {
+        expected = ids;
+      }
+      else {
+        final TIntHashSet current = expected;
+        expected = new TIntHashSet();
+        for (int id : current.toArray()) {
+          if (ids.contains(id)) expected.add(id);
+        }
+      }
+
+      final int[] expectedIds = expected.toArray();
+      Arrays.sort(expectedIds);
+      assertTrue(String.valueOf(key), Arrays.equals(expectedIds, toArray(intersection)));
+      assertEquals(expectedIds.length, intersection.size());
+    }
+    assertFalse(intersection.isEmpty());
+  }
+
+  private static int[] toArray(IdBitSet set) {
+    final TIntArrayList ids = new TIntArrayList();
+    set.forEach(new TIntProcedure() {
+      @Override
+      public boolean execute(int id) {
+        ids.add(id);
+        return true;
+      }
+    });
+    return ids.toNativeArray();
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.mock.MockApplication;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Base for the tests of the index storages kept in a temporary directory, the storages need an application to run.
+ */
+public abstract class IndexStorageTestCase extends TestCase {
+  protected File myDir;
+  private Disposable myApplicationDisposable;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory(getClass().getSimpleName(), null);
+    if (ApplicationManager.getApplication() == null) {
+      myApplicationDisposable = Disposer.newDisposable();
+      ApplicationManager.setApplication(new MockApplication(myApplicationDisposable), myApplicationDisposable);
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      if (myApplicationDisposable != null) {
+        Disposer.dispose(myApplicationDisposable);
+      }
+      FileUtil.delete(myDir);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  /**
+   * @return the sorted ids of the inputs the value is associated with in the container
+   */
+  protected static List<Integer> inputIds(ValueContainer<String> container, String value) {
+    final List<Integer> ids = new ArrayList<Integer>();
+    for (ValueContainer.IntIterator iterator = container.getInputIdsIterator(value); iterator.hasNext(); ) {
+      ids.add(iterator.next());
+    }
+    Collections.sort(ids);
+    return ids;
+  }
+}
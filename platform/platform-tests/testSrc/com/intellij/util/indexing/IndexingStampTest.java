@@ -0,0 +1,132 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.testFramework.LightPlatformTestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Follows the way FileBasedIndexImpl keeps the indexed content: the hash is set when the file is indexed,
+ * the affected indices are marked reusable on a content change and looked up when the file is indexed next time.
+ */
+public class IndexingStampTest extends LightPlatformTestCase {
+  private static final byte[] CONTENT_A = "class A {}".getBytes();
+  private static final byte[] CONTENT_B = "class B {}".getBytes();
+
+  private final ID<?, ?> myIndex1 = ID.create("IndexingStampTest.index1");
+  private final ID<?, ?> myIndex2 = ID.create("IndexingStampTest.index2");
+  private File myIoFile;
+  private VirtualFile myFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myIoFile = FileUtil.createTempFile("indexingStamp", ".txt");
+    myFile = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(myIoFile);
+    assertNotNull(myFile);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      IndexingStamp.dropIndexedContent(myFile);
+      FileUtil.delete(myIoFile);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testContentChangedBackBeforeIndexingIsReused() {
+    indexed(CONTENT_A);
+    contentChanged(myIndex1, myIndex2);
+    // changed back before the file has been indexed again, the indices are not affected anymore
+    contentChanged();
+
+    assertEquals(new HashSet<ID<?, ?>>(Arrays.asList(myIndex1, myIndex2)), reusableIndices(CONTENT_A));
+    assertEmpty(reusableIndices(CONTENT_B));
+  }
+
+  public void testContentChangedBackAfterIndexingIsReindexed() {
+    indexed(CONTENT_A);
+    contentChanged(myIndex1, myIndex2);
+    assertEmpty(reusableIndices(CONTENT_B));
+    indexed(CONTENT_B);
+    contentChanged(myIndex1, myIndex2);
+
+    assertEmpty(reusableIndices(CONTENT_A));
+    assertEmpty(reusableIndices(CONTENT_B));
+  }
+
+  public void testRebuiltIndexIsNotReused() throws Exception {
+    indexed(CONTENT_A);
+    contentChanged(myIndex1, myIndex2);
+    IndexInfrastructure.rewriteVersion(IndexInfrastructure.getVersionFile(myIndex2), 1);
+
+    assertEquals(Collections.<ID<?, ?>>singleton(myIndex1), reusableIndices(CONTENT_A));
+  }
+
+  public void testRemovedDataIsNotReused() {
+    indexed(CONTENT_A);
+    contentChanged(myIndex1);
+    IndexingStamp.dropIndexedContent(myFile);
+
+    assertEmpty(reusableIndices(CONTENT_A));
+  }
+
+  public void testIndexingCancelledAfterSomeIndicesUpdatedIsNotReused() {
+    indexed(CONTENT_A);
+    contentChanged(myIndex1, myIndex2);
+    assertEmpty(reusableIndices(CONTENT_B));
+    // myIndex1 is updated with the data of CONTENT_B, then the indexing is cancelled before the hash of CONTENT_B is set
+    indexingStarted();
+    // changed back to CONTENT_A, myIndex1 still holds the data of CONTENT_B
+    contentChanged(myIndex1, myIndex2);
+
+    assertEmpty(reusableIndices(CONTENT_A));
+    assertEmpty(reusableIndices(CONTENT_B));
+  }
+
+  private void indexed(byte[] content) {
+    indexingStarted();
+    IndexingStamp.setIndexedContentHash(myFile, IndexingStamp.calculateContentHash(content));
+  }
+
+  private void indexingStarted() {
+    // the indexed content is dropped before the first index gets the data of the new content
+    IndexingStamp.dropIndexedContent(myFile);
+  }
+
+  private void contentChanged(ID<?, ?>... affectedIndices) {
+    final List<ID<?, ?>> indices = Arrays.asList(affectedIndices);
+    if (!indices.isEmpty()) {
+      IndexingStamp.markIndexedContentReusable(myFile, indices);
+    }
+  }
+
+  private Set<ID<?, ?>> reusableIndices(byte[] content) {
+    return IndexingStamp.getReusableIndices(myFile, IndexingStamp.calculateContentHash(content));
+  }
+}
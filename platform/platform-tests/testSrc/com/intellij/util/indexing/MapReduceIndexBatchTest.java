@@ -0,0 +1,198 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.util.CommonProcessors;
+import com.intellij.util.Processor;
+import gnu.trove.THashMap;
+import junit.framework.TestCase;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+
+public class MapReduceIndexBatchTest extends TestCase {
+  private final MemoryStorage myStorage = new MemoryStorage();
+  private final MapReduceIndex<String, String, Object> myIndex = new MapReduceIndex<String, String, Object>(null, null, myStorage);
+  private final Map<Integer, Collection<String>> myInputKeys = new HashMap<Integer, Collection<String>>();
+
+  public void testAddRemoveOrdering() throws StorageException {
+    final MemoryStorage plainStorage = new MemoryStorage();
+    final MapReduceIndex<String, String, Object> plainIndex = new MapReduceIndex<String, String, Object>(null, null, plainStorage);
+    final Map<Integer, Collection<String>> plainInputKeys = new HashMap<Integer, Collection<String>>();
+    myIndex.setBatchUpdatesEnabled(true);
+
+    final Object[][] updates = {
+      {1, new String[]{"a", "1a"}},
+      {2, new String[]{"a", "2a", "b", "2b"}},
+      {1, new String[]{"b", "1b"}},
+      {3, new String[]{"a", "3a"}},
+      {1, new String[]{"a", "1a'", "c", "1c"}},
+      {2, new String[0]},
+      {2, new String[]{"b", "2b'"}},
+      {3, new String[0]},
+    };
+    for (Object[] update : updates) {
+      final int inputId = (Integer)update[0];
+      final String[] keysAndValues = (String[])update[1];
+      update(myIndex, myInputKeys, inputId, keysAndValues);
+      update(plainIndex, plainInputKeys, inputId, keysAndValues);
+    }
+    assertTrue(myStorage.myData.isEmpty());
+
+    myIndex.applyBatchedUpdates();
+    for (String key : new String[]{"a", "b", "c"}) {
+      assertEquals(key, dump(plainIndex.getData(key)), dump(myIndex.getData(key)));
+    }
+    assertEquals("1a'@1", dump(myIndex.getData("a")));
+    assertEquals("2b'@2", dump(myIndex.getData("b")));
+    assertEquals("1c@1", dump(myIndex.getData("c")));
+  }
+
+  public void testReadsSeeBatchedUpdates() throws StorageException {
+    myIndex.setBatchUpdatesEnabled(true);
+    update(myIndex, myInputKeys, 1, "a", "1a");
+    update(myIndex, myInputKeys, 2, "a", "2a");
+
+    assertEquals("1a@1 2a@2", dump(myIndex.getData("a")));
+    assertEquals(Collections.singleton("a"), myIndex.getAllKeys());
+    myIndex.flush();
+    // reads don't apply the batch
+    assertTrue(myStorage.myData.isEmpty());
+
+    myIndex.applyBatchedUpdates();
+    assertEquals("1a@1 2a@2", dump(myIndex.getData("a")));
+
+    update(myIndex, myInputKeys, 1, "b", "1b");
+    update(myIndex, myInputKeys, 2);
+    assertEquals("1a@1 2a@2", dump(myStorage.read("a")));
+    assertEquals("", dump(myIndex.getData("a")));
+    assertEquals("1b@1", dump(myIndex.getData("b")));
+    assertEquals(new HashSet<String>(Arrays.asList("a", "b")), myIndex.getAllKeys());
+
+    update(myIndex, myInputKeys, 2, "a", "2a");
+    myIndex.setBatchUpdatesEnabled(false);
+    assertEquals("2a@2", dump(myStorage.read("a")));
+    update(myIndex, myInputKeys, 3, "b", "3b");
+    assertEquals("1b@1 3b@3", dump(myIndex.getData("b")));
+  }
+
+  public void testApplyingUnderReadLockDoesNothing() throws StorageException {
+    myIndex.setBatchUpdatesEnabled(true);
+    update(myIndex, myInputKeys, 1, "a", "1a");
+    myIndex.getReadLock().lock();
+    try {
+      // the read lock can't be upgraded, the batch stays pending but visible
+      myIndex.applyBatchedUpdates();
+      assertTrue(myStorage.myData.isEmpty());
+      assertEquals("1a@1", dump(myIndex.getData("a")));
+    }
+    finally {
+      myIndex.getReadLock().unlock();
+    }
+    myIndex.applyBatchedUpdates();
+    assertEquals("1a@1", dump(myIndex.getData("a")));
+  }
+
+  private static void update(MapReduceIndex<String, String, Object> index,
+                             final Map<Integer, Collection<String>> inputKeys,
+                             final int inputId,
+                             String... keysAndValues) throws StorageException {
+    final Map<String, String> data = new THashMap<String, String>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      data.put(keysAndValues[i], keysAndValues[i + 1]);
+    }
+    index.updateWithMap(inputId, data, new Callable<Collection<String>>() {
+      @Override
+      public Collection<String> call() throws Exception {
+        final Collection<String> keys = inputKeys.get(inputId);
+        return keys == null ? Collections.<String>emptyList() : keys;
+      }
+    });
+    inputKeys.put(inputId, new ArrayList<String>(data.keySet()));
+  }
+
+  private static String dump(ValueContainer<String> container) {
+    final List<String> entries = new ArrayList<String>();
+    for (Iterator<String> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
+      final String value = valueIt.next();
+      for (ValueContainer.IntIterator idIt = container.getInputIdsIterator(value); idIt.hasNext(); ) {
+        entries.add(value + "@" + idIt.next());
+      }
+    }
+    Collections.sort(entries);
+    final StringBuilder result = new StringBuilder();
+    for (String entry : entries) {
+      if (result.length() > 0) result.append(' ');
+      result.append(entry);
+    }
+    return result.toString();
+  }
+
+  private static class MemoryStorage implements IndexStorage<String, String> {
+    private final Map<String, ValueContainerImpl<String>> myData = new HashMap<String, ValueContainerImpl<String>>();
+
+    @Override
+    public void addValue(String key, int inputId, String value) {
+      ValueContainerImpl<String> container = myData.get(key);
+      if (container == null) {
+        myData.put(key, container = new ValueContainerImpl<String>());
+      }
+      container.addValue(inputId, value);
+    }
+
+    @Override
+    public void removeAllValues(String key, int inputId) {
+      final ValueContainerImpl<String> container = myData.get(key);
+      if (container != null) {
+        container.removeAssociatedValue(inputId);
+      }
+    }
+
+    @Override
+    public void clear() {
+      myData.clear();
+    }
+
+    @Override
+    public ValueContainer<String> read(String key) {
+      final ValueContainerImpl<String> container = myData.get(key);
+      return container != null ? container : new ValueContainerImpl<String>();
+    }
+
+    @Override
+    public boolean processKeys(Processor<String> processor) {
+      for (String key : myData.keySet()) {
+        if (myData.get(key).size() > 0 && !processor.process(key)) return false;
+      }
+      return true;
+    }
+
+    @Override
+    public Collection<String> getKeys() {
+      final List<String> keys = new ArrayList<String>();
+      processKeys(new CommonProcessors.CollectProcessor<String>(keys));
+      return keys;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void flush() {
+    }
+  }
+}
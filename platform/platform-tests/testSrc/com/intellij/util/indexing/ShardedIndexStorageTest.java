@@ -0,0 +1,108 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+public class ShardedIndexStorageTest extends IndexStorageTestCase {
+  private static final int SHARDS_COUNT = 3;
+  private static final int KEYS_COUNT = 1000;
+  public void testKeysAreRoutedToShards() throws Exception {
+    final File storageFile = new File(myDir, "storage");
+    ShardedIndexStorage<String, String> storage = createStorage(storageFile);
+    final Set<Integer> usedShards = new HashSet<Integer>();
+    try {
+      for (int i = 0; i < KEYS_COUNT; i++) {
+        final String key = "key" + i;
+        final int shard = storage.getShardIndex(key);
+        assertTrue(shard >= 0 && shard < SHARDS_COUNT);
+        assertEquals(shard, storage.getShardIndex(new String(key)));
+        usedShards.add(shard);
+
+        storage.addValue(key, i + 1, "value" + i);
+        storage.addValue(key, i + 2, "value" + i);
+      }
+      storage.removeAllValues("key0", 2);
+      assertEquals(SHARDS_COUNT, usedShards.size());
+    }
+    finally {
+      storage.close();
+    }
+
+    final List<String> files = Arrays.asList(myDir.list());
+    for (int i = 0; i < SHARDS_COUNT; i++) {
+      assertTrue(files.toString(), files.contains(storageFile.getName() + ".shard" + i));
+    }
+
+    storage = createStorage(storageFile);
+    try {
+      assertEquals(KEYS_COUNT, new HashSet<String>(storage.getKeys()).size());
+      assertEquals(Arrays.asList(1), inputIds(storage.read("key0"), "value0"));
+      for (int i = 1; i < KEYS_COUNT; i++) {
+        assertEquals(Arrays.asList(i + 1, i + 2), inputIds(storage.read("key" + i), "value" + i));
+      }
+      assertEquals(0, storage.read("missing").size());
+    }
+    finally {
+      storage.close();
+    }
+  }
+
+  public void testShardsCountIsReadFromVersionFile() throws Exception {
+    final File versionFile = new File(myDir, "index.ver");
+    IndexInfrastructure.rewriteVersion(versionFile, 5);
+    assertFalse(IndexInfrastructure.versionDiffers(versionFile, 5));
+    assertTrue(IndexInfrastructure.versionDiffers(versionFile, 6));
+
+    writeVersionFile(versionFile, 5, IndexInfrastructure.STORAGE_SHARDS_COUNT + 1);
+    assertTrue(IndexInfrastructure.versionDiffers(versionFile, 5));
+    writeVersionFile(versionFile, 5, IndexInfrastructure.STORAGE_SHARDS_COUNT);
+    assertFalse(IndexInfrastructure.versionDiffers(versionFile, 5));
+
+    // the count is not written by older versions, their storages aren't sharded
+    final File oldVersionFile = new File(myDir, "old.ver");
+    IndexInfrastructure.rewriteVersion(oldVersionFile, 5);
+    final byte[] bytes = FileUtil.loadFileBytes(oldVersionFile);
+    FileUtil.writeToFile(oldVersionFile, Arrays.copyOf(bytes, 8));
+    assertEquals(IndexInfrastructure.STORAGE_SHARDS_COUNT != 1, IndexInfrastructure.versionDiffers(oldVersionFile, 5));
+  }
+
+  private static ShardedIndexStorage<String, String> createStorage(File storageFile) throws IOException {
+    return new ShardedIndexStorage<String, String>(storageFile, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor(),
+                                                   64, false, SHARDS_COUNT);
+  }
+
+  private static void writeVersionFile(File versionFile, int version, int shardsCount) throws IOException {
+    final byte[] bytes = FileUtil.loadFileBytes(versionFile);
+    final DataOutputStream out = new DataOutputStream(new FileOutputStream(versionFile));
+    try {
+      out.writeInt(version);
+      // the common version written by IndexInfrastructure
+      out.write(bytes, 4, 4);
+      out.writeInt(shardsCount);
+    }
+    finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.util.io.EnumeratorStringDescriptor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+public class ValueContainerMapTest extends IndexStorageTestCase {
+  public void testSortedIdsRoundTrip() throws Exception {
+    final Map<String, Set<Integer>> expected = new HashMap<String, Set<Integer>>();
+    final Random random = new Random(42);
+    final File storageFile = new File(myDir, "storage");
+
+    MapIndexStorage<String, String> storage = createStorage(storageFile);
+    try {
+      // ids in random order with gaps of different lengths, including the ones crossing the single byte delta
+      for (int i = 0; i < 1000; i++) {
+        final int inputId = 1 + random.nextInt(i % 2 == 0 ? 100 : Integer.MAX_VALUE - 1);
+        // an input id has a single value for a key
+        add(storage, expected, "key", inputId, inputId % 3 == 0 ? "value1" : "value2");
+      }
+      add(storage, expected, "key", 1001, "single");
+      add(storage, expected, "other", Integer.MAX_VALUE, "value1");
+    }
+    finally {
+      storage.close();
+    }
+    storage = createStorage(storageFile);
+    try {
+      assertStored(storage, expected);
+
+      // appended to the sorted lists and invalidated in them
+      for (int i = 0; i < 200; i++) {
+        final int inputId = 1 + random.nextInt(1000);
+        remove(storage, expected, "key", inputId);
+        add(storage, expected, "key", inputId, i % 2 == 0 ? "value1" : "value3");
+      }
+      remove(storage, expected, "key", 1001);
+    }
+    finally {
+      storage.close();
+    }
+    storage = createStorage(storageFile);
+    try {
+      assertStored(storage, expected);
+    }
+    finally {
+      storage.close();
+    }
+  }
+
+  public void testRemoveFromSortedIds() {
+    final ValueContainerImpl<String> container = new ValueContainerImpl<String>();
+    container.addSortedValues(new int[]{1, 5, 10, 100}, "value");
+    final ValueContainerImpl<String> copy = container.copy();
+
+    assertFalse(container.removeValue(6, "value"));
+    assertTrue(container.removeValue(5, "value"));
+    assertFalse(container.isAssociated("value", 5));
+    assertEquals(Arrays.asList(1, 10, 100), inputIds(container, "value"));
+    assertTrue(container.removeValue(100, "value"));
+    assertTrue(container.removeValue(1, "value"));
+    assertEquals(Arrays.asList(10), inputIds(container, "value"));
+    assertTrue(container.removeValue(10, "value"));
+    assertEquals(0, container.size());
+
+    assertEquals(Arrays.asList(1, 5, 10, 100), inputIds(copy, "value"));
+  }
+
+  public void testRemoveFromLongSortedIds() {
+    final ValueContainerImpl<String> container = new ValueContainerImpl<String>();
+    final int[] sortedIds = new int[1000];
+    final List<Integer> expected = new ArrayList<Integer>();
+    for (int i = 0; i < sortedIds.length; i++) {
+      sortedIds[i] = i * 3 + 1;
+      expected.add(sortedIds[i]);
+    }
+    container.addSortedValues(sortedIds, "value");
+    final ValueContainerImpl<String> copy = container.copy();
+
+    for (int i = 0; i < sortedIds.length; i += 2) {
+      assertTrue(container.removeValue(sortedIds[i], "value"));
+      assertFalse(container.removeValue(sortedIds[i], "value"));
+      expected.remove(Integer.valueOf(sortedIds[i]));
+    }
+    assertEquals(expected, inputIds(container, "value"));
+    assertFalse(container.isAssociated("value", 1));
+    assertTrue(container.isAssociated("value", 4));
+    assertEquals(sortedIds.length, inputIds(copy, "value").size());
+  }
+
+  private static MapIndexStorage<String, String> createStorage(File storageFile) throws IOException {
+    return new MapIndexStorage<String, String>(storageFile, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor(), 16);
+  }
+
+  private static void add(MapIndexStorage<String, String> storage, Map<String, Set<Integer>> expected, String key, int inputId, String value)
+    throws StorageException {
+    storage.addValue(key, inputId, value);
+    final String entry = key + ":" + value;
+    Set<Integer> ids = expected.get(entry);
+    if (ids == null) {
+      expected.put(entry, ids = new HashSet<Integer>());
+    }
+    ids.add(inputId);
+  }
+
+  private static void remove(MapIndexStorage<String, String> storage, Map<String, Set<Integer>> expected, String key, int inputId)
+    throws StorageException {
+    storage.removeAllValues(key, inputId);
+    for (Map.Entry<String, Set<Integer>> entry : expected.entrySet()) {
+      if (entry.getKey().startsWith(key + ":")) {
+        entry.getValue().remove(inputId);
+      }
+    }
+  }
+
+  private static void assertStored(MapIndexStorage<String, String> storage, Map<String, Set<Integer>> expected) throws StorageException {
+    for (Map.Entry<String, Set<Integer>> entry : expected.entrySet()) {
+      final String[] keyAndValue = entry.getKey().split(":");
+      final List<Integer> expectedIds = new ArrayList<Integer>(entry.getValue());
+      Collections.sort(expectedIds);
+      assertEquals(entry.getKey(), expectedIds, inputIds(storage.read(keyAndValue[0]), keyAndValue[1]));
+    }
+  }
+}
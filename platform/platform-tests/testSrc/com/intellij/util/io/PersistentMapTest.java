@@ -212,6 +212,152 @@ public class PersistentMapTest extends TestCase {
     }
   }
 
+  public void testIncrementalCompactWithConcurrentModifications() throws IOException {
+    final int stringsCount = 3000;
+    final List<String> keys = new ArrayList<String>(stringsCount);
+    final Map<String, String> expected = new HashMap<String, String>();
+    for (int i = 0; i < stringsCount; ++i) {
+      final String key = "key" + i;
+      keys.add(key);
+      myMap.put(key, key + "_old");
+      myMap.put(key, key + "_value");
+      expected.put(key, key + "_value");
+    }
+    assertTrue(myMap.getGarbageSize() > 0);
+
+    final boolean compacted = myMap.compactIncrementally(new PersistentHashMap.CompactionProgress() {
+      @Override
+      public boolean chunkCompacted(int compactedRecords, int totalRecords) {
+        try {
+          for (int i = compactedRecords - 10; i < compactedRecords; ++i) {
+            final String key = keys.get(i);
+            if (i % 2 == 0) {
+              myMap.put(key, key + "_updated");
+              expected.put(key, key + "_updated");
+            }
+            else {
+              myMap.remove(key);
+              expected.remove(key);
+            }
+          }
+          final String key = "new" + compactedRecords;
+          myMap.appendData(key, new PersistentHashMap.ValueDataAppender() {
+            @Override
+            public void append(DataOutput out) throws IOException {
+              new EnumeratorStringDescriptor().save(out, key + "_appended");
+            }
+          });
+          expected.put(key, key + "_appended");
+          return true;
+        }
+        catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    assertTrue(compacted);
+    assertEquals(0, myMap.getGarbageSize());
+
+    myMap.close();
+    myMap = new PersistentHashMap<String, String>(myFile, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+
+    assertEquals(expected.keySet(), new HashSet<String>(myMap.getAllKeysWithExistingMapping()));
+    for (Map.Entry<String, String> entry : expected.entrySet()) {
+      assertEquals(entry.getValue(), myMap.get(entry.getKey()));
+    }
+  }
+
+  public void testAbandonedIncrementalCompact() throws IOException {
+    final int stringsCount = 3000;
+    for (int i = 0; i < stringsCount; ++i) {
+      myMap.put("key" + i, "value" + i);
+      myMap.put("key" + i, "new value" + i);
+    }
+    myMap.force();
+    final long sizeBefore = myDataFile.length();
+
+    assertFalse(myMap.compactIncrementally(new PersistentHashMap.CompactionProgress() {
+      @Override
+      public boolean chunkCompacted(int compactedRecords, int totalRecords) {
+        return false;
+      }
+    }));
+    assertEquals(sizeBefore, myDataFile.length());
+    assertFalse(new File(myDataFile.getPath() + ".new").exists());
+
+    for (int i = 0; i < stringsCount; ++i) {
+      assertEquals("new value" + i, myMap.get("key" + i));
+    }
+  }
+
+  public void testBackgroundCompactionAfterForce() throws Exception {
+    final int stringsCount = 300;
+    final String bigValue = StringUtil.repeat("value", 2000);
+    for (int i = 0; i < 3; ++i) {
+      for (int j = 0; j < stringsCount; ++j) {
+        myMap.put("key" + j, i + bigValue + j);
+      }
+    }
+    assertTrue(myMap.makesSenseToCompact());
+    final long sizeBefore = myDataFile.length();
+
+    myMap.force();
+    for (int i = 0; i < 300 && myMap.makesSenseToCompact(); ++i) {
+      Thread.sleep(100);
+    }
+    assertFalse(myMap.makesSenseToCompact());
+    assertTrue(myDataFile.length() < sizeBefore);
+
+    for (int j = 0; j < stringsCount; ++j) {
+      assertEquals(2 + bigValue + j, myMap.get("key" + j));
+    }
+  }
+
+  public void testMappedReads() throws IOException {
+    PersistentHashMapValueStorage.setMappedReads(true);
+    try {
+      myMap.close();
+      myMap = new PersistentHashMap<String, String>(myFile, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+
+      final int stringsCount = 20000;
+      for (int i = 0; i < stringsCount; ++i) {
+        myMap.put("key" + i, StringUtil.repeat("value" + i, i % 100 + 1));
+      }
+      for (int i = 0; i < stringsCount; i += 10) { // several chunks
+        myMap.appendData("appended" + i, new PersistentHashMap.ValueDataAppender() {
+          @Override
+          public void append(DataOutput out) throws IOException {
+            out.writeByte(3);
+          }
+        });
+        myMap.appendData("appended" + i, new PersistentHashMap.ValueDataAppender() {
+          @Override
+          public void append(DataOutput out) throws IOException {
+            out.write("abc".getBytes());
+          }
+        });
+      }
+
+      for (int i = 0; i < stringsCount; ++i) {
+        assertEquals(StringUtil.repeat("value" + i, i % 100 + 1), myMap.get("key" + i));
+        if (i % 10 == 0) {
+          assertEquals("abc", myMap.get("appended" + i));
+          myMap.put("key" + i, "new value" + i); // appended to the unmapped tail
+          assertEquals("new value" + i, myMap.get("key" + i));
+        }
+      }
+
+      myMap.close();
+      myMap = new PersistentHashMap<String, String>(myFile, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+      for (int i = 0; i < stringsCount; ++i) {
+        assertEquals(i % 10 == 0 ? "new value" + i : StringUtil.repeat("value" + i, i % 100 + 1), myMap.get("key" + i));
+      }
+    }
+    finally {
+      PersistentHashMapValueStorage.setMappedReads(false);
+    }
+  }
+
   public void testOpeningWithCompact2() throws IOException {
     File file = FileUtil.createTempFile("persistent", "map");
 
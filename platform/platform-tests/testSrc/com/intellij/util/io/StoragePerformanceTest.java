@@ -0,0 +1,369 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.io.ByteSequence;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.CompressionUtil;
+import com.intellij.util.ThrowableRunnable;
+import com.intellij.util.io.storage.RefCountingStorage;
+import junit.framework.TestCase;
+
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Repeatable timing tests for storages from com.intellij.util.io, the expected timings serve as the baseline to compare changes with.
+ * Keys imitate what indices actually store: file paths, identifiers and stub keys, generated with fixed seed.
+ */
+public class StoragePerformanceTest extends TestCase {
+  private static final int KEYS_COUNT = 100000;
+  private static final int THREADS_COUNT = 4;
+  private static final String[] SYLLABLES = {"get", "set", "is", "file", "index", "psi", "element", "name", "value", "list", "map",
+    "util", "impl", "base", "abstract", "manager", "provider", "factory", "storage", "key", "data", "stub", "tree", "node", "ref"};
+
+  private File myDir;
+  private List<String> myPaths;
+  private List<String> myIdentifiers;
+  private List<String> myStubKeys;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("storage", "benchmark");
+    final Random random = new Random(42);
+    myPaths = new ArrayList<String>(KEYS_COUNT);
+    myIdentifiers = new ArrayList<String>(KEYS_COUNT);
+    myStubKeys = new ArrayList<String>(KEYS_COUNT);
+    for (int i = 0; i < KEYS_COUNT; ++i) {
+      myPaths.add(createPath(random, i));
+      myIdentifiers.add(createIdentifier(random, false));
+      myStubKeys.add(random.nextInt(4) == 0 ? "com." + createIdentifier(random, false) + "." + createIdentifier(random, true)
+                                            : createIdentifier(random, true));
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  private static String createPath(Random random, int i) {
+    final StringBuilder builder = new StringBuilder("/home/user/projects/project").append(random.nextInt(3)).append("/module");
+    builder.append(random.nextInt(20)).append("/src/com/company");
+    for (int depth = random.nextInt(5); depth >= 0; --depth) {
+      builder.append('/').append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+    }
+    return builder.append('/').append(createIdentifier(random, true)).append(i).append(".java").toString();
+  }
+
+  private static String createIdentifier(Random random, boolean capitalize) {
+    final StringBuilder builder = new StringBuilder();
+    for (int parts = 1 + random.nextInt(4), i = 0; i < parts; ++i) {
+      final String syllable = SYLLABLES[random.nextInt(SYLLABLES.length)];
+      builder.append(i > 0 || capitalize ? Character.toUpperCase(syllable.charAt(0)) + syllable.substring(1) : syllable);
+    }
+    return builder.toString();
+  }
+
+  private File newFile(String name) {
+    return new File(myDir, name);
+  }
+
+  private static void runConcurrently(final ThrowableRunnable<Exception> task) throws Exception {
+    final AtomicReference<Exception> exception = new AtomicReference<Exception>();
+    final Thread[] threads = new Thread[THREADS_COUNT];
+    for (int i = 0; i < threads.length; ++i) {
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            task.run();
+          }
+          catch (Exception e) {
+            exception.compareAndSet(null, e);
+          }
+        }
+      }, "storage benchmark " + i);
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (exception.get() != null) throw exception.get();
+  }
+
+  public void testPersistentHashMapPutGet() throws Exception {
+    final PersistentHashMap<String, String> map =
+      new PersistentHashMap<String, String>(newFile("map"), new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+    try {
+      PlatformTestUtil.startPerformanceTest("PersistentHashMap put/get", 3000, new ThrowableRunnable() {
+        @Override
+        public void run() throws Exception {
+          for (String path : myPaths) {
+            map.put(path, path);
+          }
+          for (String path : myPaths) {
+            assertEquals(path, map.get(path));
+          }
+        }
+      }).ioBound().assertTiming();
+    }
+    finally {
+      map.close();
+    }
+  }
+
+  public void testPersistentHashMapConcurrentGet() throws Exception {
+    final PersistentHashMap<String, String> map =
+      new PersistentHashMap<String, String>(newFile("map"), new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+    try {
+      for (String identifier : myIdentifiers) {
+        map.put(identifier, identifier);
+      }
+      map.force();
+
+      PlatformTestUtil.startPerformanceTest("PersistentHashMap concurrent get", 3000, new ThrowableRunnable() {
+        @Override
+        public void run() throws Exception {
+          runConcurrently(new ThrowableRunnable<Exception>() {
+            @Override
+            public void run() throws Exception {
+              for (String identifier : myIdentifiers) {
+                assertEquals(identifier, map.get(identifier));
+              }
+            }
+          });
+        }
+      }).ioBound().assertTiming();
+    }
+    finally {
+      map.close();
+    }
+  }
+
+  public void testPersistentHashMapAppendAndCompact() throws Exception {
+    final PersistentHashMap<String, Integer> map =
+      new PersistentHashMap<String, Integer>(newFile("map"), new EnumeratorStringDescriptor(), new EnumeratorIntegerDescriptor());
+    try {
+      PlatformTestUtil.startPerformanceTest("PersistentHashMap append/compact", 2500, new ThrowableRunnable() {
+        @Override
+        public void run() throws Exception {
+          for (int round = 0; round < 4; ++round) {
+            final int value = round;
+            for (String stubKey : myStubKeys) {
+              map.appendData(stubKey, new PersistentHashMap.ValueDataAppender() {
+                @Override
+                public void append(DataOutput out) throws IOException {
+                  out.writeInt(value);
+                }
+              });
+            }
+          }
+          for (int i = 0; i < myStubKeys.size(); i += 2) {
+            map.remove(myStubKeys.get(i));
+          }
+          map.compact();
+          assertEquals(0, map.getGarbageSize());
+        }
+      }).ioBound().assertTiming();
+    }
+    finally {
+      map.close();
+    }
+  }
+
+  public void testPersistentBTreeEnumerator() throws Exception {
+    final PersistentBTreeEnumerator<String> enumerator =
+      new PersistentBTreeEnumerator<String>(newFile("btree"), new EnumeratorStringDescriptor(), 4096);
+    try {
+      PlatformTestUtil.startPerformanceTest("PersistentBTreeEnumerator enumerate/valueOf", 2000, new ThrowableRunnable() {
+        @Override
+        public void run() throws Exception {
+          final int[] ids = new int[myPaths.size()];
+          for (int i = 0; i < ids.length; ++i) {
+            ids[i] = enumerator.enumerate(myPaths.get(i));
+          }
+          for (int i = 0; i < ids.length; ++i) {
+            assertEquals(ids[i], enumerator.enumerate(myPaths.get(i)));
+            assertEquals(myPaths.get(i), enumerator.valueOf(ids[i]));
+          }
+        }
+      }).cpuBound().assertTiming();
+    }
+    finally {
+      enumerator.close();
+    }
+  }
+
+  public void testPersistentStringEnumeratorConcurrentEnumerate() throws Exception {
+    final PersistentStringEnumerator enumerator = new PersistentStringEnumerator(newFile("enumerator"));
+    try {
+      PlatformTestUtil.startPerformanceTest("PersistentStringEnumerator concurrent enumerate", 1000, new ThrowableRunnable() {
+        @Override
+        public void run() throws Exception {
+          runConcurrently(new ThrowableRunnable<Exception>() {
+            @Override
+            public void run() throws Exception {
+              for (String identifier : myIdentifiers) {
+                enumerator.enumerate(identifier);
+              }
+            }
+          });
+        }
+      }).cpuBound().assertTiming();
+    }
+    finally {
+      enumerator.close();
+    }
+  }
+
+  public void testIntToIntBtree() throws Exception {
+    final PagedFileStorage.StorageLockContext lockContext = new PagedFileStorage.StorageLockContext(false);
+    final IntToIntBtree btree = new IntToIntBtree(32768, newFile("intToInt"), lockContext, true);
+    try {
+      PlatformTestUtil.startPerformanceTest("IntToIntBtree put/get", 2500, new ThrowableRunnable() {
+        @Override
+        public void run() throws Exception {
+          final Random random = new Random(42);
+          final int[] keys = new int[KEYS_COUNT * 5];
+          for (int i = 0; i < keys.length; ++i) {
+            keys[i] = random.nextInt(Integer.MAX_VALUE - 1) + 1;
+            btree.put(keys[i], i);
+          }
+          final int[] result = new int[1];
+          for (int key : keys) {
+            assertTrue(btree.get(key, result));
+          }
+        }
+      }).cpuBound().assertTiming();
+    }
+    finally {
+      btree.doClose();
+    }
+  }
+
+  public void testResizeableMappedFile() throws Exception {
+    final ResizeableMappedFile file =
+      new ResizeableMappedFile(newFile("mapped"), 4096, new PagedFileStorage.StorageLockContext(false), -1, false);
+    try {
+      PlatformTestUtil.startPerformanceTest("ResizeableMappedFile put/get", 1000, new ThrowableRunnable() {
+        @Override
+        public void run() throws Exception {
+          final int count = KEYS_COUNT * 20;
+          for (int i = 0; i < count; ++i) {
+            file.putInt(i * 4, i);
+          }
+          final Random random = new Random(42);
+          for (int i = 0; i < count; ++i) {
+            final int index = random.nextInt(count);
+            assertEquals(index, file.getInt(index * 4));
+          }
+        }
+      }).ioBound().assertTiming();
+    }
+    finally {
+      file.close();
+    }
+  }
+
+  public void testRefCountingStorage() throws Exception {
+    final RefCountingStorage storage = new RefCountingStorage(newFile("refCounting").getPath());
+    try {
+      PlatformTestUtil.startPerformanceTest("RefCountingStorage write/read", 5000, new ThrowableRunnable() {
+        @Override
+        public void run() throws Exception {
+          final int[] records = new int[KEYS_COUNT / 4];
+          for (int i = 0; i < records.length; ++i) {
+            records[i] = storage.acquireNewRecord();
+            final StringBuilder content = new StringBuilder();
+            for (int j = i % 50; j >= 0; --j) {
+              content.append(myIdentifiers.get((i + j) % myIdentifiers.size())).append(";\n");
+            }
+            storage.writeBytes(records[i], new ByteSequence(content.toString().getBytes()), false);
+          }
+          for (int record : records) {
+            storage.readStream(record).close();
+          }
+        }
+      }).ioBound().assertTiming();
+    }
+    finally {
+      storage.dispose();
+    }
+  }
+
+  private List<byte[]> createSources() {
+    final List<byte[]> sources = new ArrayList<byte[]>();
+    for (int i = 0; i < KEYS_COUNT / 50; ++i) {
+      final StringBuilder source = new StringBuilder("package com.company;\n\npublic class ").append(myStubKeys.get(i)).append(" {\n");
+      for (int j = i % 100; j >= 0; --j) {
+        source.append("  private final String ").append(myIdentifiers.get((i + j) % myIdentifiers.size())).append(" = null;\n");
+      }
+      sources.add(source.append("}\n").toString().getBytes());
+    }
+    return sources;
+  }
+
+  public void testSourceCodeCompressorConcurrent() throws Exception {
+    final List<byte[]> sources = createSources();
+    PlatformTestUtil.startPerformanceTest("SourceCodeCompressor concurrent compress/decompress", 4000, new ThrowableRunnable() {
+      @Override
+      public void run() throws Exception {
+        runConcurrently(new ThrowableRunnable<Exception>() {
+          @Override
+          public void run() throws Exception {
+            for (byte[] source : sources) {
+              assertEquals(source.length, SourceCodeCompressor.decompress(SourceCodeCompressor.compress(source)).length);
+            }
+          }
+        });
+      }
+    }).cpuBound().assertTiming();
+  }
+
+  public void testCompressionUtilConcurrent() throws Exception {
+    final List<byte[]> sources = createSources();
+    PlatformTestUtil.startPerformanceTest("CompressionUtil concurrent write/read", 1000, new ThrowableRunnable() {
+      @Override
+      public void run() throws Exception {
+        runConcurrently(new ThrowableRunnable<Exception>() {
+          @Override
+          public void run() throws Exception {
+            for (byte[] source : sources) {
+              final BufferExposingByteArrayOutputStream bytes = new BufferExposingByteArrayOutputStream();
+              final DataOutputStream out = new DataOutputStream(bytes);
+              CompressionUtil.writeCompressed(out, source, source.length);
+              out.close();
+              final DataInputStream in = new DataInputStream(new UnsyncByteArrayInputStream(bytes.getInternalBuffer(), 0, bytes.size()));
+              assertEquals(source.length, CompressionUtil.readCompressed(in).length);
+            }
+          }
+        });
+      }
+    }).cpuBound().assertTiming();
+  }
+}
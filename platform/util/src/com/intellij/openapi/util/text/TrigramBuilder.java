@@ -21,6 +21,7 @@ package com.intellij.openapi.util.text;
 
 import gnu.trove.TIntHashSet;
 import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TIntProcedure;
 
 import java.io.File;
 import java.util.Collection;
@@ -33,11 +34,25 @@ public class TrigramBuilder {
   }
 
   public static TIntHashSet buildTrigram(CharSequence text) {
-    TIntHashSet caseInsensitive = new TIntHashSet();
+    final TIntHashSet caseInsensitive = new TIntHashSet();
+    processTrigrams(text, new TIntProcedure() {
+      @Override
+      public boolean execute(int trigram) {
+        caseInsensitive.add(trigram);
+        return true;
+      }
+    });
+    return caseInsensitive;
+  }
 
+  /**
+   * Passes case-insensitive trigrams of the text to the processor without building the set, the same trigram may be passed several times.
+   */
+  public static boolean processTrigrams(CharSequence text, TIntProcedure processor) {
     int tc1 = 0;
     int tc2 = 0;
     int tc3;
+    int previous = 0;
 
     for (int i = 0; i < text.length(); i++) {
       char c = StringUtil.toLowerCase(text.charAt(i));
@@ -46,14 +61,14 @@ public class TrigramBuilder {
       tc2 = (tc1 << 8) + c;
       tc1 = c;
 
-      if (i >= 2) {
-        if (!blackList.contains(tc3)) {
-          caseInsensitive.add(tc3);
-        }
+      // runs of the same char (indents, separator lines) produce the same trigram again and again
+      if (i >= 2 && (tc3 != previous || i == 2) && !blackList.contains(tc3)) {
+        if (!processor.execute(tc3)) return false;
       }
+      previous = tc3;
     }
 
-    return caseInsensitive;
+    return true;
   }
 
   private static final TIntHashSet blackList = new TIntHashSet(
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.codeStyle;
+
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.ArrayUtil;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TIntObjectProcedure;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Index of names by the lower-cased first chars of their words (camel humps, words after separators),
+ * used to pick the names a {@link MinusculeMatcher} may match before running it over them.
+ * A pattern not starting with a wildcard matches names starting with its first char only, and a pattern starting with spaces
+ * matches the names having a word starting with it, so the matcher has to check much fewer names than there are.
+ * Any match contains all the pattern chars except wildcards, so the names for middle matching are the ones containing all of them.
+ * Immutable once created.
+ */
+public class CamelHumpNameIndex {
+  private final String[] myNames;
+  // indices of the names by the lower-cased char the name starts with
+  private final TIntObjectHashMap<int[]> myByFirstChar;
+  // indices of the names by the lower-cased chars their words start with
+  private final TIntObjectHashMap<int[]> myByWordStart;
+  // indices of the names by the lower-cased chars they contain
+  private final TIntObjectHashMap<int[]> myByChar;
+
+  public CamelHumpNameIndex(@NotNull String[] names) {
+    myNames = names;
+    final TIntObjectHashMap<TIntArrayList> byFirstChar = new TIntObjectHashMap<TIntArrayList>();
+    final TIntObjectHashMap<TIntArrayList> byWordStart = new TIntObjectHashMap<TIntArrayList>();
+    final TIntObjectHashMap<TIntArrayList> byChar = new TIntObjectHashMap<TIntArrayList>();
+    final TIntHashSet nameKeys = new TIntHashSet();
+    for (int i = 0; i < names.length; i++) {
+      final String name = names[i];
+      if (name == null || name.isEmpty()) continue;
+
+      nameKeys.clear();
+      addKeys(byFirstChar, name.charAt(0), i, nameKeys);
+      nameKeys.clear();
+      for (int start = 0; start < name.length(); start = NameUtil.nextWord(name, start)) {
+        addKeys(byWordStart, name.charAt(start), i, nameKeys);
+      }
+      nameKeys.clear();
+      for (int j = 0; j < name.length(); j++) {
+        addKeys(byChar, name.charAt(j), i, nameKeys);
+      }
+    }
+    myByFirstChar = toArrays(byFirstChar);
+    myByWordStart = toArrays(byWordStart);
+    myByChar = toArrays(byChar);
+  }
+
+  private static void addKeys(@NotNull TIntObjectHashMap<TIntArrayList> map, char c, int index, @NotNull TIntHashSet nameKeys) {
+    // chars equal ignoring case have the same lower case or the same upper case
+    final char lower = StringUtil.toLowerCase(c);
+    final char upperLowered = StringUtil.toLowerCase(StringUtil.toUpperCase(c));
+    add(map, lower, index, nameKeys);
+    add(map, upperLowered, index, nameKeys);
+  }
+
+  private static void add(@NotNull TIntObjectHashMap<TIntArrayList> map, char key, int index, @NotNull TIntHashSet nameKeys) {
+    if (!nameKeys.add(key)) return;
+    TIntArrayList list = map.get(key);
+    if (list == null) {
+      map.put(key, list = new TIntArrayList());
+    }
+    list.add(index);
+  }
+
+  @NotNull
+  private static TIntObjectHashMap<int[]> toArrays(@NotNull TIntObjectHashMap<TIntArrayList> map) {
+    final TIntObjectHashMap<int[]> result = new TIntObjectHashMap<int[]>(map.size());
+    map.forEachEntry(new TIntObjectProcedure<TIntArrayList>() {
+      @Override
+      public boolean execute(int key, TIntArrayList list) {
+        result.put(key, list.toNativeArray());
+        return true;
+      }
+    });
+    return result;
+  }
+
+  @NotNull
+  public String[] getNames() {
+    return myNames;
+  }
+
+  /**
+   * @return the names the {@link MinusculeMatcher} built for the pattern may match in the order of the indexed array,
+   * null if the pattern can't narrow the names (it's empty or starts with a '*' wildcard)
+   */
+  @Nullable
+  public List<String> getCandidates(@NotNull String pattern) {
+    int start = 0;
+    while (start < pattern.length() && pattern.charAt(start) == ' ') start++;
+    if (start == pattern.length() || pattern.charAt(start) == '*') return null;
+
+    final char c = pattern.charAt(start);
+    final TIntObjectHashMap<int[]> index;
+    if (start == 0) {
+      index = myByFirstChar;
+    }
+    else {
+      // after spaces such chars are looked for anywhere in the name, not only at word starts
+      if (c == '.' || NameUtil.isWordSeparator(c)) return null;
+      index = myByWordStart;
+    }
+
+    return toNames(getIndices(index, c));
+  }
+
+  /**
+   * @return the names the {@link MinusculeMatcher} built for the pattern with any wildcards around it may match
+   * in the order of the indexed array, null if the pattern can't narrow the names (it has no chars except wildcards)
+   */
+  @Nullable
+  public List<String> getMiddleMatchCandidates(@NotNull String pattern) {
+    final List<int[]> found = new ArrayList<int[]>();
+    final TIntHashSet processed = new TIntHashSet();
+    for (int i = 0; i < pattern.length(); i++) {
+      final char c = pattern.charAt(i);
+      if (c == ' ' || c == '*' || !processed.add(c)) continue;
+      final int[] indices = getIndices(myByChar, c);
+      if (indices.length == 0) return Collections.emptyList();
+      found.add(indices);
+    }
+    if (found.isEmpty()) return null;
+
+    // the names containing the rarest char are checked for the other chars
+    Collections.sort(found, new Comparator<int[]>() {
+      @Override
+      public int compare(int[] o1, int[] o2) {
+        return o1.length - o2.length;
+      }
+    });
+    final int[] rarest = found.get(0);
+    final TIntArrayList result = new TIntArrayList(rarest.length);
+    names:
+    for (int index : rarest) {
+      for (int i = 1; i < found.size(); i++) {
+        if (Arrays.binarySearch(found.get(i), index) < 0) continue names;
+      }
+      result.add(index);
+    }
+    return toNames(result.toNativeArray());
+  }
+
+  /**
+   * @return sorted indices of the names having the key matching the char ignoring case
+   */
+  @NotNull
+  private static int[] getIndices(@NotNull TIntObjectHashMap<int[]> index, char c) {
+    final char lower = StringUtil.toLowerCase(c);
+    final char upperLowered = StringUtil.toLowerCase(StringUtil.toUpperCase(c));
+    final int[] indices = index.get(lower);
+    final int[] upperIndices = upperLowered == lower ? null : index.get(upperLowered);
+    if (indices == null && upperIndices == null) return ArrayUtil.EMPTY_INT_ARRAY;
+    if (upperIndices == null) return indices;
+    if (indices == null) return upperIndices;
+
+    final TIntArrayList result = new TIntArrayList(indices.length + upperIndices.length);
+    int i = 0;
+    int j = 0;
+    while (i < indices.length || j < upperIndices.length) {
+      final int next;
+      if (j == upperIndices.length || i < indices.length && indices[i] <= upperIndices[j]) {
+        next = indices[i++];
+        if (j < upperIndices.length && upperIndices[j] == next) j++;
+      }
+      else {
+        next = upperIndices[j++];
+      }
+      result.add(next);
+    }
+    return result.toNativeArray();
+  }
+
+  @NotNull
+  private List<String> toNames(@NotNull int[] indices) {
+    final List<String> result = new ArrayList<String>(indices.length);
+    for (int i : indices) {
+      result.add(myNames[i]);
+    }
+    return result;
+  }
+}
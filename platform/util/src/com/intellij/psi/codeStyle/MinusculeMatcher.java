@@ -19,7 +19,6 @@ import com.intellij.openapi.util.TextRange;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.util.containers.FList;
 import com.intellij.util.io.IOUtil;
-import com.intellij.util.text.CharArrayCharSequence;
 import com.intellij.util.text.CharArrayUtil;
 import com.intellij.util.text.Matcher;
 import org.jetbrains.annotations.NonNls;
@@ -107,7 +106,6 @@ public class MinusculeMatcher implements Matcher {
 
     int fragmentCount = 0;
     int matchingCase = 0;
-    CharArrayCharSequence seq = new CharArrayCharSequence(myPattern);
     int p = -1;
     TextRange first = null;
 
@@ -120,7 +118,7 @@ public class MinusculeMatcher implements Matcher {
       integral += range.getStartOffset() * len + len * (len - 1) / 2;
       for (int i = range.getStartOffset(); i < range.getEndOffset(); i++) {
         char c = name.charAt(i);
-        p = StringUtil.indexOf(seq, c, p + 1, myPattern.length, false);
+        p = indexOfInPatternIgnoreCase(c, p + 1);
         if (p < 0) {
           break;
         }
@@ -151,6 +149,28 @@ public class MinusculeMatcher implements Matcher {
     return -fragmentCount + matchingCase * 20 + commonStart * 30 - startIndex + (prefixMatching ? 2 : middleWordStart ? 1 : 0) * 1000 - integral;
   }
 
+  private int indexOfInPatternIgnoreCase(char c, int from) {
+    for (int i = from; i < myPattern.length; i++) {
+      if (StringUtil.charsMatch(myPattern[i], c, true)) return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Matches the names against the pattern in one go: the names not matching are rejected without allocating anything,
+   * the matching ones get their {@link #matchingDegree(String)}.
+   *
+   * @return the matching degrees of the names, {@link Integer#MIN_VALUE} for the names not matching
+   */
+  @NotNull
+  public int[] matchAll(@NotNull String[] names) {
+    final int[] degrees = new int[names.length];
+    for (int i = 0; i < names.length; i++) {
+      degrees[i] = matches(names[i]) ? matchingDegree(names[i]) : Integer.MIN_VALUE;
+    }
+    return degrees;
+  }
+
   public boolean isStartMatch(@NotNull String name) {
     Iterable<TextRange> fragments = matchingFragments(name);
     if (fragments != null) {
@@ -176,16 +196,20 @@ public class MinusculeMatcher implements Matcher {
     // optimisation: name too short for this pattern
     if (!myHasWildCards && name.length() < myPattern.length) return false;
 
-    return matchingFragments(name) != null;
+    // the fragments are not collected, so a match is found without allocations
+    return matchWildcards(name, 0, 0, IOUtil.isAscii(name), false) != null;
   }
 
   @Nullable
   public FList<TextRange> matchingFragments(@NotNull String name) {
-    return matchWildcards(name, 0, 0, IOUtil.isAscii(name));
+    return matchWildcards(name, 0, 0, IOUtil.isAscii(name), true);
   }
 
+  /**
+   * @param withRanges false if only the fact of the match is needed, the empty list is returned for any match then
+   */
   @Nullable
-  private FList<TextRange> matchWildcards(@NotNull String name, int patternIndex, int nameIndex, boolean isAsciiName) {
+  private FList<TextRange> matchWildcards(@NotNull String name, int patternIndex, int nameIndex, boolean isAsciiName, boolean withRanges) {
     if (nameIndex < 0) {
       return null;
     }
@@ -193,7 +217,7 @@ public class MinusculeMatcher implements Matcher {
       if (patternIndex == myPattern.length) {
         return FList.emptyList();
       }
-      return matchFragment(name, patternIndex, nameIndex, isAsciiName);
+      return matchFragment(name, patternIndex, nameIndex, isAsciiName, withRanges);
     }
 
     do {
@@ -207,12 +231,12 @@ public class MinusculeMatcher implements Matcher {
       return FList.emptyList();
     }
 
-    FList<TextRange> ranges = matchFragment(name, patternIndex, nameIndex, isAsciiName);
+    FList<TextRange> ranges = matchFragment(name, patternIndex, nameIndex, isAsciiName, withRanges);
     if (ranges != null) {
       return ranges;
     }
 
-    return matchSkippingWords(name, patternIndex, nameIndex, true, isAsciiName);
+    return matchSkippingWords(name, patternIndex, nameIndex, true, isAsciiName, withRanges);
   }
 
   @Nullable
@@ -220,7 +244,8 @@ public class MinusculeMatcher implements Matcher {
                                               final int patternIndex,
                                               int nameIndex,
                                               boolean allowSpecialChars,
-                                              boolean isAsciiName) {
+                                              boolean isAsciiName,
+                                              boolean withRanges) {
     boolean star = isPatternChar(patternIndex - 1, '*');
     final char p = myPattern[patternIndex];
     while (true) {
@@ -235,7 +260,7 @@ public class MinusculeMatcher implements Matcher {
         return null;
       }
       if (!isUpperCase[patternIndex] || NameUtil.isWordStart(name, nextOccurrence)) {
-        FList<TextRange> ranges = matchFragment(name, patternIndex, nextOccurrence, isAsciiName);
+        FList<TextRange> ranges = matchFragment(name, patternIndex, nextOccurrence, isAsciiName, withRanges);
         if (ranges != null) {
           return ranges;
         }
@@ -250,7 +275,7 @@ public class MinusculeMatcher implements Matcher {
   }
 
   @Nullable
-  private FList<TextRange> matchFragment(@NotNull String name, int patternIndex, int nameIndex, boolean isAsciiName) {
+  private FList<TextRange> matchFragment(@NotNull String name, int patternIndex, int nameIndex, boolean isAsciiName, boolean withRanges) {
     if (!isFirstCharMatching(name, nameIndex, patternIndex)) {
       return null;
     }
@@ -267,9 +292,9 @@ public class MinusculeMatcher implements Matcher {
         }
         if (myPattern[patternIndex + i] != name.charAt(nameIndex + i)) {
           int nextWordStart = indexOfWordStart(name, patternIndex + i, nameIndex + i, isAsciiName);
-          FList<TextRange> ranges = matchWildcards(name, patternIndex + i, nextWordStart, isAsciiName);
+          FList<TextRange> ranges = matchWildcards(name, patternIndex + i, nextWordStart, isAsciiName, withRanges);
           if (ranges != null) {
-            return prependRange(ranges, nameIndex, i);
+            return withRanges ? prependRange(ranges, nameIndex, i) : ranges;
           }
           if (myHasHumps && i > 1 && isUpperCase[patternIndex + i - 1] && isUpperCase[patternIndex + i - 2]) {
             return null;
@@ -280,7 +305,7 @@ public class MinusculeMatcher implements Matcher {
     }
 
     if (patternIndex + i >= myPattern.length) {
-      return FList.<TextRange>emptyList().prepend(TextRange.from(nameIndex, i));
+      return withRanges ? FList.<TextRange>emptyList().prepend(TextRange.from(nameIndex, i)) : FList.<TextRange>emptyList();
     }
     while (i >= minFragment) {
       if (isWordSeparator[patternIndex + i - 1] && myPattern[patternIndex + i - 1] == myPattern[patternIndex + i]) {
@@ -289,10 +314,10 @@ public class MinusculeMatcher implements Matcher {
       }
 
       FList<TextRange> ranges = isWildcard(patternIndex + i) ?
-                                matchWildcards(name, patternIndex + i, nameIndex + i, isAsciiName) :
-                                matchSkippingWords(name, patternIndex + i, nameIndex + i, false, isAsciiName);
+                                matchWildcards(name, patternIndex + i, nameIndex + i, isAsciiName, withRanges) :
+                                matchSkippingWords(name, patternIndex + i, nameIndex + i, false, isAsciiName, withRanges);
       if (ranges != null) {
-        return prependRange(ranges, nameIndex, i);
+        return withRanges ? prependRange(ranges, nameIndex, i) : ranges;
       }
       i--;
     }
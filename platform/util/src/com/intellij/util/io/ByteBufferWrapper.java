@@ -62,6 +62,10 @@ public abstract class ByteBufferWrapper {
     return new ReadWriteDirectBufferWrapper(file, offset, length);
   }
 
+  static ByteBufferWrapper readWriteDirect(final File file, final int offset, final int length, @Nullable RollbackJournal journal) {
+    return new ReadWriteDirectBufferWrapper(file, offset, length, journal);
+  }
+
   public static ByteBufferWrapper readOnly(final File file, final int offset) {
     return new ReadOnlyMappedBufferWrapper(file, offset);
   }
@@ -46,6 +46,8 @@ public class Page {
   private boolean dirty = false;
   private int myFinalizationId;
   private BitSet myWriteMask;
+  // the pool has dropped the page and flushed it if it was dirty, the page is allocated anew for further access
+  private boolean myReleased;
 
   private static class PageLock {}
   private final PageLock lock = new PageLock();
@@ -174,15 +176,19 @@ public class Page {
     read = false;
     dirty = false;
     myWriteMask = null;
+    myReleased = true;
   }
 
   public long getOffset() {
     return offset;
   }
 
+  /**
+   * @return the number of bytes written, 0 if the page has been released by the pool concurrently
+   */
   public int put(long index, byte[] bytes, int off, int length) {
     synchronized (lock) {
-      myFinalizationId = 0;
+      if (myReleased) return 0;
       ensureReadOrWriteMaskExists();
 
       final int start = (int)(index - offset);
@@ -199,9 +205,12 @@ public class Page {
     }
   }
 
+  /**
+   * @return the number of bytes read, 0 if the page has been released by the pool concurrently
+   */
   public int get(long index, byte[] bytes, int off, int length) {
     synchronized (lock) {
-      myFinalizationId = 0;
+      if (myReleased) return 0;
       ensureRead();
 
       final int start = (int)(index - offset);
@@ -237,23 +246,33 @@ public class Page {
     return myKey;
   }
 
-  public boolean flushIfFinalizationIdIsEqualTo(final long finalizationId) {
+  /**
+   * Cancels the finalization of the page taken back to the pool.
+   * @return false if the page has been released already, it can't be used anymore
+   */
+  public boolean reuse() {
     synchronized (lock) {
-      if (myFinalizationId == finalizationId) {
-        flush();
-        return true;
-      }
-
-      return false;
+      if (myReleased) return false;
+      myFinalizationId = 0;
+      return true;
     }
   }
 
-  public boolean recycleIfFinalizationIdIsEqualTo(final long finalizationId) {
+  /**
+   * Flushes and releases the page at once, so the bytes written in between are not lost.
+   */
+  public boolean flushAndRecycleIfFinalizationIdIsEqualTo(final long finalizationId) {
     synchronized (lock) {
       if (myFinalizationId == finalizationId) {
-        recycle();
+        try {
+          flush();
+        }
+        finally {
+          recycle();
+        }
         return true;
       }
+
       return false;
     }
   }
@@ -19,6 +19,7 @@
  */
 package com.intellij.util.io;
 
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.hash.LinkedHashMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -28,127 +29,156 @@ import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
-
-@SuppressWarnings({"AssignmentToStaticFieldFromInstanceMethod"})
+/**
+ * Cache of {@link Page}s with protected/probational (SLRU) eviction policy.
+ * The pool is split into independently locked segments; a page belongs to the segment chosen by its owner and by the range
+ * of {@link #PAGES_PER_STRIPE} pages it lies in, so sequential access stays within one segment while concurrent access to different
+ * files or distant parts of one file does not contend on a single monitor.
+ * Every segment evicts its pages on its own, so the pool is split into no more segments than keep the queues of each segment at least
+ * {@link #MIN_SEGMENT_QUEUE_SIZE} pages long: shorter queues would evict the pages accessed repeatedly like the ones read once.
+ */
 public class PagePool {
-  private final Map<PoolPageKey, Page> myProtectedQueue;
-  private final Map<PoolPageKey, Page> myProbationalQueue;
-
-  private int finalizationId = 0;
-
-  private final TreeMap<PoolPageKey, FinalizationRequest> myFinalizationQueue = new TreeMap<PoolPageKey, FinalizationRequest>();
+  private static final int PAGES_PER_STRIPE = 16;
+  private static final int MIN_SEGMENT_QUEUE_SIZE = 8 * PAGES_PER_STRIPE;
+  private static final int DEFAULT_SEGMENTS_COUNT =
+    SystemProperties.getIntProperty("idea.page.pool.segments", Math.min(16, Runtime.getRuntime().availableProcessors()));
 
-  private final Object lock = new Object();
-  private final Object finalizationMonitor = new Object();
-  private final PoolPageKey keyInstance = new PoolPageKey(null, -1);
+  public final static PagePool SHARED = new PagePool(500, 500);
 
-  private PoolPageKey lastFinalizedKey = null;
+  private final Segment[] mySegments;
 
   public PagePool(final int protectedPagesLimit, final int probationalPagesLimit) {
-    myProbationalQueue = new LinkedHashMap<PoolPageKey,Page>(probationalPagesLimit * 2, 0.6f) {
-      @Override
-      protected boolean removeEldestEntry(final Map.Entry<PoolPageKey, Page> eldest) {
-        if (size() > probationalPagesLimit) {
-          scheduleFinalization(eldest.getValue());
-          return true;
-        }
-        return false;
-      }
-    };
-
-    myProtectedQueue = new LinkedHashMap<PoolPageKey, Page>(protectedPagesLimit, 0.6f) {
-      @Override
-      protected boolean removeEldestEntry(final Map.Entry<PoolPageKey, Page> eldest) {
-        if (size() > protectedPagesLimit) {
-          myProbationalQueue.put(eldest.getKey(), eldest.getValue());
-          return true;
-        }
-        return false;
-      }
-    };
+    this(protectedPagesLimit, probationalPagesLimit, DEFAULT_SEGMENTS_COUNT);
   }
 
-  @SuppressWarnings({"FieldAccessedSynchronizedAndUnsynchronized"}) private static int hits = 0;
-  @SuppressWarnings({"FieldAccessedSynchronizedAndUnsynchronized"}) private static int cache_misses = 0;
-  @SuppressWarnings({"FieldAccessedSynchronizedAndUnsynchronized"}) private static int same_page_hits = 0;
-  @SuppressWarnings({"FieldAccessedSynchronizedAndUnsynchronized"}) private static int protected_queue_hits = 0;
-  @SuppressWarnings({"FieldAccessedSynchronizedAndUnsynchronized"}) private static int probational_queue_hits = 0;
-  @SuppressWarnings({"FieldAccessedSynchronizedAndUnsynchronized"}) private static int finalization_queue_hits = 0;
+  public PagePool(final int protectedPagesLimit, final int probationalPagesLimit, int segmentsCount) {
+    segmentsCount = Math.max(1, Math.min(segmentsCount, Math.min(protectedPagesLimit, probationalPagesLimit) / MIN_SEGMENT_QUEUE_SIZE));
+    mySegments = new Segment[segmentsCount];
+    for (int i = 0; i < segmentsCount; i++) {
+      mySegments[i] = new Segment(Math.max(1, protectedPagesLimit / segmentsCount), Math.max(1, probationalPagesLimit / segmentsCount));
+    }
+  }
 
-  public final static PagePool SHARED = new PagePool(500, 500);
+  int getSegmentsCount() {
+    return mySegments.length;
+  }
 
-  private RandomAccessDataFile lastOwner = null;
-  private long lastOffset = 0;
-  private Page lastHit = null;
+  @NotNull
+  private Segment segmentFor(@NotNull RandomAccessDataFile owner, long offset) {
+    if (mySegments.length == 1) return mySegments[0];
+    int hash = owner.hashCode() * 31 + (int)(offset / (Page.PAGE_SIZE * PAGES_PER_STRIPE));
+    hash ^= (hash >>> 20) ^ (hash >>> 12);
+    hash ^= (hash >>> 7) ^ (hash >>> 4);
+    return mySegments[(hash & Integer.MAX_VALUE) % mySegments.length];
+  }
 
-  @SuppressWarnings({"AssignmentToStaticFieldFromInstanceMethod"})
   @NotNull
   public Page alloc(RandomAccessDataFile owner, long offset) {
-    synchronized (lock) {
-      offset -= offset % Page.PAGE_SIZE;
-      hits++;
-
-      if (owner == lastOwner && offset == lastOffset) {
-        same_page_hits++;
-        return lastHit;
-      }
+    offset -= offset % Page.PAGE_SIZE;
+    return segmentFor(owner, offset).alloc(owner, offset);
+  }
 
-      lastOffset = offset;
-      lastOwner = owner;
-      lastHit = hitQueues(owner, offset);
+  public void flushPages(final RandomAccessDataFile owner) {
+    flushPages(owner, Integer.MAX_VALUE);
+  }
 
-      flushFinalizationQueue(Integer.MAX_VALUE);
+  /**
+   *
+   * @param owner
+   * @param maxPagesToFlush
+   * @return true if all the dirty pages where flushed.
+   */
+  public boolean flushPages(final RandomAccessDataFile owner, final int maxPagesToFlush) {
+    boolean hasFlushes = false;
+    for (Segment segment : mySegments) {
+      hasFlushes |= segment.scheduleFlush(owner);
+    }
+    if (!hasFlushes) return true;
 
-      return lastHit;
+    int pagesToFlush = maxPagesToFlush;
+    for (Segment segment : mySegments) {
+      pagesToFlush -= segment.flushFinalizationQueue(pagesToFlush);
+      if (pagesToFlush <= 0) {
+        return false;
+      }
     }
+    return true;
   }
 
-  private Page hitQueues(final RandomAccessDataFile owner, final long offset) {
-    PoolPageKey key = setupKey(owner, offset);
-
-    Page page = myProtectedQueue.get(key);
-    if (page != null) {
-      protected_queue_hits++;
-      return page;
+  public long getHits() {
+    long result = 0;
+    for (Segment segment : mySegments) {
+      synchronized (segment.lock) {
+        result += segment.hits;
+      }
     }
+    return result;
+  }
 
-    page = myProbationalQueue.remove(key);
-    if (page != null) {
-      probational_queue_hits++;
-      toProtectedQueue(page);
-      return page;
+  public long getSamePageHits() {
+    long result = 0;
+    for (Segment segment : mySegments) {
+      synchronized (segment.lock) {
+        result += segment.samePageHits;
+      }
     }
+    return result;
+  }
 
-    final FinalizationRequest request = myFinalizationQueue.remove(key);
-    if (request != null) {
-      page = request.page;
-      finalization_queue_hits++;
-      toProtectedQueue(page);
-      return page;
+  public long getProtectedQueueHits() {
+    long result = 0;
+    for (Segment segment : mySegments) {
+      synchronized (segment.lock) {
+        result += segment.protectedQueueHits;
+      }
     }
+    return result;
+  }
 
-    cache_misses++;
-    page = new Page(owner, offset);
+  public long getProbationalQueueHits() {
+    long result = 0;
+    for (Segment segment : mySegments) {
+      synchronized (segment.lock) {
+        result += segment.probationalQueueHits;
+      }
+    }
+    return result;
+  }
 
-    myProbationalQueue.put(keyForPage(page), page);
+  public long getFinalizationQueueHits() {
+    long result = 0;
+    for (Segment segment : mySegments) {
+      synchronized (segment.lock) {
+        result += segment.finalizationQueueHits;
+      }
+    }
+    return result;
+  }
 
-    return page;
+  public long getCacheMisses() {
+    long result = 0;
+    for (Segment segment : mySegments) {
+      synchronized (segment.lock) {
+        result += segment.cacheMisses;
+      }
+    }
+    return result;
   }
 
-  //private long lastFlushTime = 0;
-  
-  private static double percent(int part, int whole) {
+  private static double percent(long part, long whole) {
     return ((double)part * 1000 / whole) / 10;
   }
 
   @SuppressWarnings({"ALL"})
   public static void printStatistics() {
+    final PagePool pool = SHARED;
+    final long hits = pool.getHits();
     System.out.println("Total requests: " + hits);
-    System.out.println("Same page hits: " + same_page_hits + " (" + percent(same_page_hits, hits) + "%)");
-    System.out.println("Protected queue hits: " + protected_queue_hits + " (" + percent(protected_queue_hits, hits) + "%)");
-    System.out.println("Probatinonal queue hits: " + probational_queue_hits + " (" + percent(probational_queue_hits, hits) + "%)");
-    System.out.println("Finalization queue hits: " + finalization_queue_hits + " (" + percent(finalization_queue_hits, hits) + "%)");
-    System.out.println("Cache misses: " + cache_misses + " (" + percent(cache_misses, hits) + "%)");
+    System.out.println("Same page hits: " + pool.getSamePageHits() + " (" + percent(pool.getSamePageHits(), hits) + "%)");
+    System.out.println("Protected queue hits: " + pool.getProtectedQueueHits() + " (" + percent(pool.getProtectedQueueHits(), hits) + "%)");
+    System.out.println("Probatinonal queue hits: " + pool.getProbationalQueueHits() + " (" + percent(pool.getProbationalQueueHits(), hits) + "%)");
+    System.out.println("Finalization queue hits: " + pool.getFinalizationQueueHits() + " (" + percent(pool.getFinalizationQueueHits(), hits) + "%)");
+    System.out.println("Cache misses: " + pool.getCacheMisses() + " (" + percent(pool.getCacheMisses(), hits) + "%)");
 
     System.out.println("Total reads: " + RandomAccessDataFile.totalReads + ". Bytes read: " + RandomAccessDataFile.totalReadBytes);
     System.out.println("Total writes: " + RandomAccessDataFile.totalWrites + ". Bytes written: " + RandomAccessDataFile.totalWriteBytes);
@@ -158,141 +188,225 @@ public class PagePool {
     return page.getKey();
   }
 
-  private void toProtectedQueue(final Page page) {
-    myProtectedQueue.put(keyForPage(page), page);
-  }
+  private static class Segment {
+    private final Map<PoolPageKey, Page> myProtectedQueue;
+    private final Map<PoolPageKey, Page> myProbationalQueue;
 
-  private PoolPageKey setupKey(RandomAccessDataFile owner, long offset) {
-    keyInstance.setup(owner, offset);
-    return keyInstance;
-  }
+    private int finalizationId = 0;
 
-  public void flushPages(final RandomAccessDataFile owner) {
-    flushPages(owner, Integer.MAX_VALUE);
-  }
+    private final TreeMap<PoolPageKey, FinalizationRequest> myFinalizationQueue = new TreeMap<PoolPageKey, FinalizationRequest>();
 
-  /**
-   *
-   * @param owner
-   * @param maxPagesToFlush
-   * @return true if all the dirty pages where flushed.
-   */
-  public boolean flushPages(final RandomAccessDataFile owner, final int maxPagesToFlush) {
-    boolean hasFlushes;
-    synchronized (lock) {
-      if (lastOwner == owner) {
-        scheduleFinalization(lastHit);
-        lastHit = null;
-        lastOwner = null;
-      }
+    private final Object lock = new Object();
+    private final PoolPageKey keyInstance = new PoolPageKey(null, -1);
+
+    private PoolPageKey lastFinalizedKey = null;
 
-      hasFlushes = scanQueue(owner, myProtectedQueue);
-      hasFlushes |= scanQueue(owner, myProbationalQueue);
+    private RandomAccessDataFile lastOwner = null;
+    private long lastOffset = 0;
+    private Page lastHit = null;
+
+    // statistics, guarded by lock
+    private long hits;
+    private long cacheMisses;
+    private long samePageHits;
+    private long protectedQueueHits;
+    private long probationalQueueHits;
+    private long finalizationQueueHits;
+
+    private Segment(final int protectedPagesLimit, final int probationalPagesLimit) {
+      myProbationalQueue = new LinkedHashMap<PoolPageKey,Page>(probationalPagesLimit * 2, 0.6f) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<PoolPageKey, Page> eldest) {
+          if (size() > probationalPagesLimit) {
+            scheduleFinalization(eldest.getValue());
+            return true;
+          }
+          return false;
+        }
+      };
+
+      myProtectedQueue = new LinkedHashMap<PoolPageKey, Page>(protectedPagesLimit, 0.6f) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<PoolPageKey, Page> eldest) {
+          if (size() > protectedPagesLimit) {
+            myProbationalQueue.put(eldest.getKey(), eldest.getValue());
+            return true;
+          }
+          return false;
+        }
+      };
     }
 
-    return !hasFlushes || flushFinalizationQueue(maxPagesToFlush);
-  }
+    @NotNull
+    private Page alloc(RandomAccessDataFile owner, long offset) {
+      synchronized (lock) {
+        hits++;
+
+        if (owner == lastOwner && offset == lastOffset) {
+          samePageHits++;
+          return lastHit;
+        }
 
-  private boolean flushFinalizationQueue(final int maxPagesToFlush) {
-    int count = 0;
+        lastOffset = offset;
+        lastOwner = owner;
+        lastHit = hitQueues(owner, offset);
 
-    while (count < maxPagesToFlush) {
-      FinalizationRequest request = retrieveFinalizationRequest();
-      if (request == null) {
-        return true;
-      }
+        flushFinalizationQueue(Integer.MAX_VALUE);
 
-      processFinalizationRequest(request);
-      count++;
+        return lastHit;
+      }
     }
 
-    return false;
-  }
+    private Page hitQueues(final RandomAccessDataFile owner, final long offset) {
+      PoolPageKey key = setupKey(owner, offset);
 
-  private boolean scanQueue(final RandomAccessDataFile owner, final Map<?, Page> queue) {
-    Iterator<Page> iterator = queue.values().iterator();
-    boolean hasFlushes = false;
-    while (iterator.hasNext()) {
-      Page page = iterator.next();
+      Page page = myProtectedQueue.get(key);
+      if (page != null) {
+        protectedQueueHits++;
+        return page;
+      }
+
+      page = myProbationalQueue.remove(key);
+      if (page != null) {
+        probationalQueueHits++;
+        toProtectedQueue(page);
+        return page;
+      }
 
-      if (page.getOwner() == owner) {
-        scheduleFinalization(page);
-        iterator.remove();
-        hasFlushes = true;
+      final FinalizationRequest request = myFinalizationQueue.remove(key);
+      // the page released concurrently has been flushed, so it's read anew like a missing one
+      if (request != null && request.page.reuse()) {
+        page = request.page;
+        finalizationQueueHits++;
+        toProtectedQueue(page);
+        return page;
       }
+
+      cacheMisses++;
+      page = new Page(owner, offset);
+
+      myProbationalQueue.put(keyForPage(page), page);
+
+      return page;
     }
-    return hasFlushes;
-  }
 
-  private boolean scheduleFinalization(final Page page) {
-    final int curFinalizationId;
-    synchronized (lock) {
-      curFinalizationId = ++finalizationId;
+    private void toProtectedQueue(final Page page) {
+      myProtectedQueue.put(keyForPage(page), page);
     }
 
-    final FinalizationRequest request = page.prepareForFinalization(curFinalizationId);
-    if (request == null) return false;
+    private PoolPageKey setupKey(RandomAccessDataFile owner, long offset) {
+      keyInstance.setup(owner, offset);
+      return keyInstance;
+    }
 
-    synchronized (lock) {
-      /*
-      if (myFinalizerThread == null) {
-        myFinalizerThread = new Thread(new FinalizationThreadWorker(), FINALIZER_THREAD_NAME);
-        myFinalizerThread.start();
-      }
-      */
+    /**
+     * @return true if some pages of the owner have been scheduled for finalization
+     */
+    private boolean scheduleFlush(final RandomAccessDataFile owner) {
+      synchronized (lock) {
+        if (lastOwner == owner) {
+          scheduleFinalization(lastHit);
+          lastHit = null;
+          lastOwner = null;
+        }
 
-      myFinalizationQueue.put(keyForPage(page), request);
-      if (myFinalizationQueue.size() > 5000) {
-        return true;
+        boolean hasFlushes = scanQueue(owner, myProtectedQueue);
+        hasFlushes |= scanQueue(owner, myProbationalQueue);
+        return hasFlushes || !myFinalizationQueue.isEmpty();
       }
     }
 
-    synchronized (finalizationMonitor) {
-      finalizationMonitor.notifyAll();
+    /**
+     * @return number of flushed pages
+     */
+    private int flushFinalizationQueue(final int maxPagesToFlush) {
+      int count = 0;
+
+      while (count < maxPagesToFlush) {
+        FinalizationRequest request = retrieveFinalizationRequest();
+        if (request == null) {
+          break;
+        }
+
+        processFinalizationRequest(request);
+        count++;
+      }
+
+      return count;
     }
 
-    return false;
-  }
+    private boolean scanQueue(final RandomAccessDataFile owner, final Map<?, Page> queue) {
+      Iterator<Page> iterator = queue.values().iterator();
+      boolean hasFlushes = false;
+      while (iterator.hasNext()) {
+        Page page = iterator.next();
 
-  private void processFinalizationRequest(final FinalizationRequest request) {
-    final Page page = request.page;
-    try {
-      page.flushIfFinalizationIdIsEqualTo(request.finalizationId);
+        if (page.getOwner() == owner) {
+          scheduleFinalization(page);
+          iterator.remove();
+          hasFlushes = true;
+        }
+      }
+      return hasFlushes;
     }
-    finally {
+
+    private boolean scheduleFinalization(final Page page) {
+      final int curFinalizationId;
       synchronized (lock) {
-        myFinalizationQueue.remove(page.getKey());
+        curFinalizationId = ++finalizationId;
+      }
+
+      final FinalizationRequest request = page.prepareForFinalization(curFinalizationId);
+      if (request == null) return false;
+
+      synchronized (lock) {
+        myFinalizationQueue.put(keyForPage(page), request);
+        return myFinalizationQueue.size() > 5000;
       }
-      page.recycleIfFinalizationIdIsEqualTo(request.finalizationId);
     }
-  }
 
-  @Nullable
-  private FinalizationRequest retrieveFinalizationRequest() {
-    FinalizationRequest request = null;
-    synchronized (lock) {
-      if (!myFinalizationQueue.isEmpty()) {
-        final PoolPageKey key;
-        if (lastFinalizedKey == null) {
-          key = myFinalizationQueue.firstKey();
+    private void processFinalizationRequest(final FinalizationRequest request) {
+      final Page page = request.page;
+      try {
+        page.flushAndRecycleIfFinalizationIdIsEqualTo(request.finalizationId);
+      }
+      finally {
+        synchronized (lock) {
+          // the page may have been taken back and finalized again since the request was retrieved
+          if (myFinalizationQueue.get(page.getKey()) == request) {
+            myFinalizationQueue.remove(page.getKey());
+          }
         }
-        else {
-          PoolPageKey k = lastFinalizedKey;
-          PoolPageKey kk = new PoolPageKey(k.getOwner(), k.getOwner().physicalLength());
+      }
+    }
 
-          SortedMap<PoolPageKey, FinalizationRequest> tail = myFinalizationQueue.tailMap(kk);
-          if (tail == null || tail.isEmpty()) {
-            tail = myFinalizationQueue.tailMap(k);
+    @Nullable
+    private FinalizationRequest retrieveFinalizationRequest() {
+      FinalizationRequest request = null;
+      synchronized (lock) {
+        if (!myFinalizationQueue.isEmpty()) {
+          final PoolPageKey key;
+          if (lastFinalizedKey == null) {
+            key = myFinalizationQueue.firstKey();
+          }
+          else {
+            PoolPageKey k = lastFinalizedKey;
+            PoolPageKey kk = new PoolPageKey(k.getOwner(), k.getOwner().physicalLength());
+
+            SortedMap<PoolPageKey, FinalizationRequest> tail = myFinalizationQueue.tailMap(kk);
+            if (tail == null || tail.isEmpty()) {
+              tail = myFinalizationQueue.tailMap(k);
+            }
+            key = tail.isEmpty() ? myFinalizationQueue.firstKey() : tail.firstKey();
           }
-          key = tail.isEmpty() ? myFinalizationQueue.firstKey() : tail.firstKey();
+          lastFinalizedKey = key;
+          request = myFinalizationQueue.get(key);
+        }
+        else {
+          lastFinalizedKey = null;
         }
-        lastFinalizedKey = key;
-        request = myFinalizationQueue.get(key);
-      }
-      else {
-        lastFinalizedKey = null;
       }
+      return request;
     }
-    return request;
   }
 }
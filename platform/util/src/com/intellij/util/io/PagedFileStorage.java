@@ -94,6 +94,7 @@ public class PagedFileStorage implements Forceable {
   private final byte[] myTypedIOBuffer;
   private volatile boolean isDirty = false;
   private final File myFile;
+  @Nullable private final RollbackJournal myJournal;
   protected long mySize = -1;
   protected final int myPageSize;
   protected final boolean myValuesAreBufferAligned;
@@ -105,6 +106,7 @@ public class PagedFileStorage implements Forceable {
 
   public PagedFileStorage(File file, @Nullable StorageLockContext storageLockContext, int pageSize, boolean valuesAreBufferAligned) throws IOException {
     myFile = file;
+    myJournal = RollbackJournal.getJournal(file);
     myStorageLockContext = storageLockContext != null ? storageLockContext:ourLock.myDefaultStorageLockContext;
     myPageSize = Math.max(pageSize > 0 ? pageSize : BUFFER_SIZE, Page.PAGE_SIZE);
     myValuesAreBufferAligned = valuesAreBufferAligned;
@@ -317,12 +319,19 @@ public class PagedFileStorage implements Forceable {
   }
 
   private void resizeFile(int newSize) throws IOException {
-    RandomAccessFile raf = new RandomAccessFile(myFile, RW);
+    final RollbackJournal journal = myJournal;
+    if (journal != null) journal.beforeResize(myFile, newSize);
     try {
-      raf.setLength(newSize);
+      RandomAccessFile raf = new RandomAccessFile(myFile, RW);
+      try {
+        raf.setLength(newSize);
+      }
+      finally {
+        raf.close();
+      }
     }
     finally {
-      raf.close();
+      if (journal != null) journal.afterWrite();
     }
     mySize = newSize;
   }
@@ -451,9 +460,13 @@ public class PagedFileStorage implements Forceable {
     }
 
     public StorageLock(boolean checkThreadAccess) {
+      this(checkThreadAccess, UPPER_LIMIT);
+    }
+
+    private StorageLock(boolean checkThreadAccess, long sizeLimit) {
       myDefaultStorageLockContext = new StorageLockContext(this, checkThreadAccess);
 
-      mySizeLimit = UPPER_LIMIT;
+      mySizeLimit = sizeLimit;
       mySegments = new LinkedHashMap<Integer, ByteBufferWrapper>(10, 0.75f) {
         @Override
         protected boolean removeEldestEntry(Map.Entry<Integer, ByteBufferWrapper> eldest) {
@@ -475,6 +488,20 @@ public class PagedFileStorage implements Forceable {
       };
     }
 
+    /**
+     * Creates the locks for storages accessed concurrently: every lock has its own cache of mapped buffers, so the storages of
+     * different locks never wait for each other. The caches of the created locks together are limited as the cache of a single lock,
+     * that memory is taken in addition to the cache of the default lock.
+     */
+    @NotNull
+    public static StorageLock[] createConcurrentLocks(int count, boolean checkThreadAccess) {
+      final StorageLock[] locks = new StorageLock[count];
+      for (int i = 0; i < count; i++) {
+        locks[i] = new StorageLock(checkThreadAccess, Math.max(UPPER_LIMIT / count, BUFFER_SIZE));
+      }
+      return locks;
+    }
+
     public void lock() {
       myDefaultStorageLockContext.myLock.lock();
     }
@@ -589,7 +616,7 @@ public class PagedFileStorage implements Forceable {
       }
 
       int min = Math.min((int)(owner.length() - off), owner.myPageSize);
-      ByteBufferWrapper wrapper = ByteBufferWrapper.readWriteDirect(owner.myFile, off, min);
+      ByteBufferWrapper wrapper = ByteBufferWrapper.readWriteDirect(owner.myFile, off, min, owner.myJournal);
       Throwable oome = null;
       while (true) {
         try {
@@ -721,7 +748,7 @@ public class PagedFileStorage implements Forceable {
       this(lock, true);
     }
 
-    private StorageLockContext(StorageLock lock, boolean checkAccess) {
+    public StorageLockContext(StorageLock lock, boolean checkAccess) {
       myLock = new SequenceLock();
       myStorageLock = lock;
       myCheckThreadAccess = checkAccess;
@@ -17,12 +17,18 @@ package com.intellij.util.io;
 
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.LowMemoryWatcher;
+import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.CommonProcessors;
+import com.intellij.util.ConcurrencyUtil;
 import com.intellij.util.Processor;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.LimitedPool;
 import com.intellij.util.containers.SLRUCache;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TIntObjectIterator;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -30,6 +36,8 @@ import org.jetbrains.annotations.TestOnly;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * @author Eugene Zhuravlev
@@ -63,6 +71,17 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   private boolean myIntAddressForNewRecord;
   private static final boolean doHardConsistencyChecks = true;
 
+  // when enabled, compaction of maps which make sense to compact is done in background instead of blocking the opening thread
+  private static final boolean BACKGROUND_COMPACTION = SystemProperties.getBooleanProperty("idea.persistent.hash.map.background.compact", true);
+  private static final int COMPACTION_CHUNK_SIZE = 1024; // records copied without holding the map lock
+  private static final int COMPACTION_CHUNK_PAUSE_MS = SystemProperties.getIntProperty("idea.persistent.hash.map.compaction.pause", 5);
+  private static final ExecutorService ourCompactionExecutor = ConcurrencyUtil.newSingleThreadExecutor("PersistentHashMap compaction", Thread.MIN_PRIORITY);
+  private final Object myCompactionLock = new Object(); // taken before myEnumerator, serializes compactions of this map
+  private final AtomicBoolean myCompactionScheduled = new AtomicBoolean();
+  // non-null while incremental compaction copies values, all updated key ids are collected here
+  @Nullable private TIntHashSet myCompactionUpdatedIds;
+  @Nullable private TIntObjectHashMap<Key> myCompactionUpdatedKeys;
+
   private static class AppendStream extends DataOutputStream {
     private AppendStream() {
       super(null);
@@ -132,9 +151,24 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   public PersistentHashMap(@NotNull final File file, @NotNull KeyDescriptor<Key> keyDescriptor, @NotNull DataExternalizer<Value> valueExternalizer) throws IOException {
     this(file, keyDescriptor, valueExternalizer, INITIAL_INDEX_SIZE);
   }
+
+  public PersistentHashMap(@NotNull final File file,
+                           @NotNull KeyDescriptor<Key> keyDescriptor,
+                           @NotNull DataExternalizer<Value> valueExternalizer,
+                           @Nullable PagedFileStorage.StorageLockContext lockContext) throws IOException {
+    this(file, keyDescriptor, valueExternalizer, INITIAL_INDEX_SIZE, lockContext);
+  }
   
   public PersistentHashMap(@NotNull final File file, @NotNull KeyDescriptor<Key> keyDescriptor, @NotNull DataExternalizer<Value> valueExternalizer, final int initialSize) throws IOException {
-    super(checkDataFiles(file), keyDescriptor, initialSize);
+    this(file, keyDescriptor, valueExternalizer, initialSize, null);
+  }
+
+  public PersistentHashMap(@NotNull final File file,
+                           @NotNull KeyDescriptor<Key> keyDescriptor,
+                           @NotNull DataExternalizer<Value> valueExternalizer,
+                           final int initialSize,
+                           @Nullable PagedFileStorage.StorageLockContext lockContext) throws IOException {
+    super(checkDataFiles(file), keyDescriptor, initialSize, lockContext);
 
     final PersistentEnumeratorBase.RecordBufferHandler<PersistentEnumeratorBase> recordHandler = myEnumerator.getRecordHandler();
     myParentValueRefOffset = recordHandler.getRecordBuffer(myEnumerator).length;
@@ -182,7 +216,12 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       myCanReEnumerate = myEnumerator.canReEnumerate();
 
       if (makesSenseToCompact()) {
-        compact();
+        if (BACKGROUND_COMPACTION) {
+          scheduleCompaction();
+        }
+        else {
+          compact();
+        }
       }
     }
     catch (IOException e) {
@@ -406,6 +445,11 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
         return null;
       }
 
+      final Ref<Value> mappedValue = myValueStorage.readMappedValue(oldHeader, myValueExternalizer);
+      if (mappedValue != null) {
+        return mappedValue.get();
+      }
+
       PersistentHashMapValueStorage.ReadResult readResult = myValueStorage.readBytes(oldHeader);
       if (readResult.offset != oldHeader) {
         myEnumerator.markDirty(true);
@@ -489,6 +533,10 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   public final void force() {
     synchronized (myEnumerator) {
       doForce();
+      // the compaction state is only changed under the map lock, so it's checked while the lock is still held
+      if (BACKGROUND_COMPACTION && myCompactionUpdatedIds == null && makesSenseToCompact()) {
+        scheduleCompaction();
+      }
     }
   }
 
@@ -555,6 +603,12 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
 
   // made public for tests
   public void compact() throws IOException {
+    synchronized (myCompactionLock) {
+      doCompact();
+    }
+  }
+
+  private void doCompact() throws IOException {
     synchronized (myEnumerator) {
       LOG.info("Compacting "+myEnumerator.myFile.getPath());
       LOG.info("Live keys:" + ((int)(myLiveAndGarbageKeysCounter  / LIVE_KEY_MASK)) +
@@ -605,6 +659,180 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     }
   }
 
+  public interface CompactionProgress {
+    /**
+     * Called by {@link #compactIncrementally(CompactionProgress)} after every chunk of values is copied, the map is not locked at this moment
+     * so the implementation may pause to throttle the compaction.
+     * @return false to abandon the compaction, the map stays as it was before it started
+     */
+    boolean chunkCompacted(int compactedRecords, int totalRecords);
+  }
+
+  private static final CompactionProgress BACKGROUND_COMPACTION_PROGRESS = new CompactionProgress() {
+    @Override
+    public boolean chunkCompacted(int compactedRecords, int totalRecords) {
+      if (COMPACTION_CHUNK_PAUSE_MS > 0) {
+        try {
+          Thread.sleep(COMPACTION_CHUNK_PAUSE_MS);
+        }
+        catch (InterruptedException e) {
+          return false;
+        }
+      }
+      return true;
+    }
+  };
+
+  private void scheduleCompaction() {
+    if (!myCompactionScheduled.compareAndSet(false, true)) return;
+    ourCompactionExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          boolean makesSenseToCompact;
+          synchronized (myEnumerator) {
+            makesSenseToCompact = !isClosed() && makesSenseToCompact();
+          }
+          if (makesSenseToCompact) {
+            compactIncrementally(BACKGROUND_COMPACTION_PROGRESS);
+          }
+        }
+        catch (Throwable e) {
+          LOG.info("Background compaction of " + myEnumerator.myFile.getPath() + " failed", e);
+        }
+        finally {
+          myCompactionScheduled.set(false);
+        }
+      }
+    });
+  }
+
+  /**
+   * Compacts values storage while the map stays available for reading and writing.
+   * Mappings existing at the start of compaction are copied to the new storage chunk by chunk without holding the map lock,
+   * the map lock is only taken to take the snapshot of mappings and to switch to the new storage at the end. Values of keys
+   * modified in the meantime are copied once more when switching.
+   * @return true if the storage was compacted, false if the compaction was abandoned or the map was closed
+   */
+  public boolean compactIncrementally(@Nullable CompactionProgress progress) throws IOException {
+    synchronized (myCompactionLock) {
+      final long started = System.currentTimeMillis();
+      final File dataFile = getDataFile(myEnumerator.myFile);
+      final String newPath = dataFile.getPath() + ".new";
+      final List<CompactionRecordInfo> infos = new ArrayList<CompactionRecordInfo>(10000);
+      final PersistentHashMapValueStorage snapshotStorage;
+      final PersistentHashMapValueStorage newStorage;
+      long sizeBefore;
+
+      synchronized (myEnumerator) {
+        if (isClosed()) return false;
+        LOG.info("Compacting incrementally " + myEnumerator.myFile.getPath());
+        myEnumerator.lockStorage();
+        try {
+          clearAppenderCaches();
+          traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
+            @Override
+            public boolean process(final int keyId) throws IOException {
+              final long record = readValueId(keyId);
+              if (record != NULL_ADDR) {
+                infos.add(new CompactionRecordInfo(getCurrentKey(), record, keyId));
+              }
+              return true;
+            }
+          });
+        }
+        finally {
+          myEnumerator.unlockStorage();
+        }
+        sizeBefore = myValueStorage.getSize();
+        FileUtil.delete(new File(newPath));
+        newStorage = PersistentHashMapValueStorage.create(newPath);
+        snapshotStorage = PersistentHashMapValueStorage.createSnapshot(dataFile.getPath());
+        myCompactionUpdatedIds = new TIntHashSet();
+        myCompactionUpdatedKeys = new TIntObjectHashMap<Key>();
+      }
+
+      boolean completed = false;
+      try {
+        // values of snapshot records are never overwritten in append-only storage so they are read without the map lock
+        for (int i = 0; i < infos.size(); ++i) {
+          CompactionRecordInfo info = infos.get(i);
+          byte[] value = snapshotStorage.readBytes(info.valueAddress).buffer;
+          info.newValueAddress = newStorage.appendBytes(value, 0, value.length, 0);
+
+          if ((i + 1) % COMPACTION_CHUNK_SIZE == 0 || i == infos.size() - 1) {
+            if (isClosed() || progress != null && !progress.chunkCompacted(i + 1, infos.size())) {
+              LOG.info("Compaction of " + myEnumerator.myFile.getPath() + " abandoned");
+              return false;
+            }
+          }
+        }
+
+        synchronized (myEnumerator) {
+          if (isClosed()) return false;
+          myEnumerator.lockStorage();
+          try {
+            clearAppenderCaches();
+            final TIntHashSet updatedIds = myCompactionUpdatedIds;
+            final TIntObjectHashMap<Key> updatedKeys = myCompactionUpdatedKeys;
+            myCompactionUpdatedIds = null;
+            myCompactionUpdatedKeys = null;
+            assert updatedIds != null && updatedKeys != null;
+
+            long liveAndGarbageKeysCounter = 0;
+            for (CompactionRecordInfo info : infos) {
+              if (updatedIds.contains(info.address)) continue;
+              updateValueId(info.address, info.newValueAddress, info.valueAddress, null, info.key);
+              liveAndGarbageKeysCounter += LIVE_KEY_MASK;
+            }
+
+            for (TIntObjectIterator<Key> iterator = updatedKeys.iterator(); iterator.hasNext(); ) {
+              iterator.advance();
+              final int keyId = iterator.key();
+              final long record = readValueId(keyId);
+              if (record == NULL_ADDR) continue;
+              byte[] value = myValueStorage.readBytes(record).buffer;
+              long newRecord = newStorage.appendBytes(value, 0, value.length, 0);
+              updateValueId(keyId, newRecord, record, iterator.value(), 0);
+              liveAndGarbageKeysCounter += LIVE_KEY_MASK;
+            }
+
+            snapshotStorage.dispose();
+            newStorage.dispose();
+            myValueStorage.dispose();
+            final long newSize = newStorage.getSize();
+            FileUtil.rename(new File(newPath), dataFile);
+            myValueStorage = PersistentHashMapValueStorage.create(dataFile.getPath());
+
+            myLiveAndGarbageKeysCounter = liveAndGarbageKeysCounter;
+            myReadCompactionGarbageSize = 0;
+            myEnumerator.markDirty(true);
+            myEnumerator.putMetaData(myLiveAndGarbageKeysCounter);
+            myEnumerator.putMetaData2(myLargeIndexWatermarkId);
+            completed = true;
+            LOG.info("Compacted " + myEnumerator.myFile.getPath() + ":" + sizeBefore + " bytes into " + newSize + " bytes in " +
+                     (System.currentTimeMillis() - started) + "ms, updated during compaction:" + updatedKeys.size());
+          }
+          finally {
+            myEnumerator.unlockStorage();
+          }
+        }
+        return true;
+      }
+      finally {
+        if (!completed) {
+          synchronized (myEnumerator) {
+            myCompactionUpdatedIds = null;
+            myCompactionUpdatedKeys = null;
+            snapshotStorage.dispose();
+            newStorage.dispose();
+          }
+          FileUtil.delete(new File(newPath));
+        }
+      }
+    }
+  }
+
   private void newCompact(PersistentHashMapValueStorage newStorage) throws IOException {
     long started = System.currentTimeMillis();
     final List<CompactionRecordInfo> infos = new ArrayList<CompactionRecordInfo>(10000);
@@ -663,6 +891,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   private int requests;
 
   private int updateValueId(int keyId, long value, long oldValue, @Nullable Key key, int processingKey) throws IOException {
+    final int originalKeyId = keyId;
     final boolean newKey = oldValue == NULL_ADDR;
     if (newKey) ++requests;
     boolean defaultSizeInfo = true;
@@ -690,6 +919,12 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       if (newKey) ++largeKeys;
     }
 
+    if (myCompactionUpdatedIds != null && myCompactionUpdatedKeys != null) {
+      myCompactionUpdatedIds.add(originalKeyId);
+      if (keyId != originalKeyId) myCompactionUpdatedKeys.remove(originalKeyId);
+      myCompactionUpdatedKeys.put(keyId, key == null ? myEnumerator.getValue(originalKeyId, processingKey) : key);
+    }
+
     if (newKey && IOStatistics.DEBUG && (requests & IOStatistics.KEYS_FACTOR_MASK) == 0) {
       IOStatistics.dump("small:"+smallKeys + ", large:" + largeKeys + ", transformed:"+transformedKeys +
                         ",@"+getBaseFile().getPath());
@@ -19,27 +19,36 @@
  */
 package com.intellij.util.io;
 
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.util.io.ByteSequence;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.SLRUCache;
 import gnu.trove.TIntArrayList;
 import gnu.trove.TLongArrayList;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 
 import java.io.*;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
 import java.util.Comparator;
 import java.util.List;
 import java.util.PriorityQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class PersistentHashMapValueStorage {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.util.io.PersistentHashMapValueStorage");
+
   @Nullable
   private RAReader myCompactionModeReader = null;
   private long mySize;
   private final File myFile;
   private final String myPath;
   private boolean myCompactionMode = false;
+  // reads the file through its own reader and never touches the accessors cached for the path, which the live storage uses
+  private final boolean mySnapshot;
 
   private static final int CACHE_PROTECTED_QUEUE_SIZE = 10;
   private static final int CACHE_PROBATIONAL_QUEUE_SIZE = 20;
@@ -56,19 +65,36 @@ public class PersistentHashMapValueStorage {
     }
   };
 
+  // values are read from memory mapped file, single chunk values are deserialized right from the mapped buffer
+  private static boolean ourMappedReads = SystemProperties.getBooleanProperty("idea.persistent.hash.map.mapped.reads", false);
+
   private static final FileAccessorCache<RAReader> ourReadersCache = new FileAccessorCache<RAReader>(CACHE_PROTECTED_QUEUE_SIZE, CACHE_PROBATIONAL_QUEUE_SIZE) {
     @NotNull
     public CacheValue<RAReader> createValue(String path) {
-      return new CachedReader(new FileReader(new File(path)));
+      return new CachedReader(ourMappedReads ? new MappedReader(new File(path)) : new FileReader(new File(path)));
     }
   };
 
+  @TestOnly
+  static void setMappedReads(boolean mappedReads) {
+    ourMappedReads = mappedReads;
+  }
+
   public PersistentHashMapValueStorage(String path) throws IOException {
+    this(path, false);
+  }
+
+  private PersistentHashMapValueStorage(String path, boolean snapshot) throws IOException {
     myPath = path;
     myFile = new File(path);
     mySize = myFile.length();
+    mySnapshot = snapshot;
 
-    if (mySize == 0) {
+    if (snapshot) {
+      myCompactionModeReader = new FileReader(myFile);
+      myCompactionMode = true;
+    }
+    else if (mySize == 0) {
       appendBytes(new ByteSequence("Header Record For PersistentHashMapValueStorage".getBytes()), 0);
     }
   }
@@ -271,11 +297,64 @@ public class PersistentHashMapValueStorage {
     }
   }
 
+  /**
+   * Deserializes the value pointed by tailChunkAddress right from the memory mapped file, without reading it into intermediate array.
+   * @return null if mapped reads are disabled or the value consists of several chunks (or is not mapped yet),
+   * {@link #readBytes(long)} should be used then
+   */
+  @Nullable
+  public <T> Ref<T> readMappedValue(long tailChunkAddress, @NotNull DataExternalizer<T> externalizer) throws IOException {
+    if (myCompactionMode || !ourMappedReads) return null;
+    force();
+
+    final CacheValue<RAReader> readerHandle = ourReadersCache.get(myPath);
+    try {
+      final RAReader reader = readerHandle.get();
+      if (!(reader instanceof MappedReader)) return null;
+      if (tailChunkAddress <= 0 || tailChunkAddress >= mySize) throw new PersistentEnumeratorBase.CorruptedException(myFile);
+
+      final ByteBuffer buffer = ((MappedReader)reader).getMappedBuffer(tailChunkAddress + INT_LENGTH_LONG_ADDRESS);
+      if (buffer == null) return null;
+      final int address = (int)tailChunkAddress;
+      final int sizePart = buffer.get(address);
+      final int chunkSize;
+      final int dataOffset;
+      if (sizePart < 0) {
+        chunkSize = -sizePart - POSITIVE_VALUE_SHIFT;
+        if (buffer.getInt(address + 1) != 0) return null;
+        dataOffset = address + BYTE_LENGTH_INT_ADDRESS;
+      }
+      else {
+        chunkSize = buffer.getInt(address);
+        if (buffer.getLong(address + 4) != 0) return null;
+        dataOffset = address + INT_LENGTH_LONG_ADDRESS;
+      }
+      if (chunkSize < 0 || dataOffset + (long)chunkSize > mySize) throw new PersistentEnumeratorBase.CorruptedException(myFile);
+      if (dataOffset + chunkSize > buffer.limit()) return null;
+
+      final ByteBuffer slice = buffer.duplicate();
+      slice.limit(dataOffset + chunkSize);
+      slice.position(dataOffset);
+      final DataInputStream input = new DataInputStream(new ByteBufferInputStream(slice));
+      try {
+        return Ref.create(externalizer.read(input));
+      }
+      finally {
+        input.close();
+      }
+    }
+    finally {
+      // the handle keeps the cache from disposing the reader while the value is read; the reader remaps the buffer
+      // only in getMappedBuffer(), which isn't called meanwhile since the reads of the storage are serialized by its map
+      readerHandle.release();
+    }
+  }
+
   /**
    * Reads bytes pointed by tailChunkAddress into result passed, returns new address if linked list compactification have been performed
    */
   public ReadResult readBytes(long tailChunkAddress) throws IOException {
-    force();
+    if (!mySnapshot) force();
 
     long chunk = tailChunkAddress;
     int chunkCount = 0;
@@ -379,8 +458,10 @@ public class PersistentHashMapValueStorage {
   }
 
   public void dispose() {
-    ourReadersCache.remove(myPath);
-    ourAppendersCache.remove(myPath);
+    if (!mySnapshot) {
+      ourReadersCache.remove(myPath);
+      ourAppendersCache.remove(myPath);
+    }
 
     if (myCompactionModeReader != null) {
       myCompactionModeReader.dispose();
@@ -399,6 +480,14 @@ public class PersistentHashMapValueStorage {
     return new PersistentHashMapValueStorage(path);
   }
 
+  /**
+   * Creates read-only view of the values written to the storage at the path so far, it may be read concurrently with the live storage
+   * appending to the file: the view only reads the bytes existing at its creation, which are never modified later.
+   */
+  public static PersistentHashMapValueStorage createSnapshot(final String path) throws IOException {
+    return new PersistentHashMapValueStorage(path, true);
+  }
+
   private interface RAReader {
     void get(long addr, byte[] dst, int off, int len) throws IOException;
     void dispose();
@@ -431,6 +520,117 @@ public class PersistentHashMapValueStorage {
     }
   }
 
+  /**
+   * Reads values storage through memory mapped buffer. The file is append-only so the mapped region is extended (remapped) only when
+   * its unmapped tail becomes large enough, recently appended bytes are read from the file in the meantime.
+   * If the file can't be mapped (e.g. the address space is exhausted) the bytes not mapped yet are read from the file too.
+   */
+  private static class MappedReader implements RAReader {
+    private static final int MIN_TAIL_TO_REMAP = 1024 * 1024;
+    private final File myFile;
+    private final FileReader myTailReader;
+    @Nullable private ByteBufferWrapper myWrapper;
+    @Nullable private ByteBuffer myBuffer;
+    private boolean myMappingFailed;
+
+    private MappedReader(File file) {
+      myFile = file;
+      myTailReader = new FileReader(file);
+    }
+
+    /**
+     * @return buffer mapping the file from its beginning if bytes up to requiredEnd are mapped (the mapping is extended if reasonable),
+     * null otherwise
+     */
+    @Nullable
+    ByteBuffer getMappedBuffer(long requiredEnd) throws IOException {
+      ByteBuffer buffer = myBuffer;
+      final int mapped = buffer != null ? buffer.limit() : 0;
+      if (requiredEnd <= mapped) return buffer;
+
+      final long length = myFile.length();
+      if (myMappingFailed ||
+          length > Integer.MAX_VALUE || requiredEnd > length || mapped > 0 && length - mapped < Math.max(MIN_TAIL_TO_REMAP, mapped / 8)) {
+        return null;
+      }
+      final ByteBufferWrapper wrapper = ByteBufferWrapper.readOnly(myFile, 0);
+      try {
+        buffer = wrapper.getBuffer();
+      }
+      catch (IOException e) {
+        // the previous mapping stays valid for the bytes it covers
+        LOG.info("Can't map " + myFile + ", reading it from the file", e);
+        myMappingFailed = true;
+        wrapper.dispose();
+        return null;
+      }
+      if (myWrapper != null) {
+        myWrapper.dispose();
+      }
+      myWrapper = wrapper;
+      myBuffer = buffer;
+      return buffer;
+    }
+
+    public void get(final long addr, final byte[] dst, final int off, final int len) throws IOException {
+      final ByteBuffer buffer = getMappedBuffer(addr + len);
+      if (buffer == null) {
+        myTailReader.get(addr, dst, off, len);
+        return;
+      }
+      final ByteBuffer duplicate = buffer.duplicate();
+      duplicate.position((int)addr);
+      duplicate.get(dst, off, len);
+    }
+
+    public void dispose() {
+      try {
+        if (myWrapper != null) {
+          myWrapper.dispose();
+          myWrapper = null;
+          myBuffer = null;
+        }
+      }
+      finally {
+        myTailReader.dispose();
+      }
+    }
+  }
+
+  private static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer myBuffer;
+
+    private ByteBufferInputStream(ByteBuffer buffer) {
+      myBuffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return myBuffer.hasRemaining() ? myBuffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(@NotNull byte[] b, int off, int len) {
+      if (len == 0) return 0;
+      if (!myBuffer.hasRemaining()) return -1;
+      len = Math.min(len, myBuffer.remaining());
+      myBuffer.get(b, off, len);
+      return len;
+    }
+
+    @Override
+    public long skip(long n) {
+      final int skipped = (int)Math.max(0, Math.min(n, myBuffer.remaining()));
+      myBuffer.position(myBuffer.position() + skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return myBuffer.remaining();
+    }
+  }
+
   private static abstract class FileAccessorCache<T> extends SLRUCache<String, CacheValue<T>> {
     private final Object myLock = new Object();
     private FileAccessorCache(int protectedQueueSize, int probationalQueueSize) {
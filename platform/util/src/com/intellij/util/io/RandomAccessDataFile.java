@@ -22,6 +22,7 @@ package com.intellij.util.io;
 import com.intellij.openapi.Forceable;
 import com.intellij.openapi.diagnostic.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
 import java.nio.ByteBuffer;
@@ -34,6 +35,7 @@ public class RandomAccessDataFile implements Forceable, Closeable {
 
   private final int myCount = ourFilesCount++;
   private final File myFile;
+  @Nullable private final RollbackJournal myJournal;
   private final PagePool myPool;
   private long lastSeek = -1l;
 
@@ -54,6 +56,7 @@ public class RandomAccessDataFile implements Forceable, Closeable {
   public RandomAccessDataFile(final File file, final PagePool pool) throws IOException {
     myPool = pool;
     myFile = file;
+    myJournal = RollbackJournal.getJournal(file);
     if (!file.exists()) {
       throw new FileNotFoundException(file.getPath() + " does not exist");
     }
@@ -79,6 +82,7 @@ public class RandomAccessDataFile implements Forceable, Closeable {
     mySize = Math.max(mySize, addr + len);
 
     while (len > 0) {
+      // nothing is written to the page released by the pool concurrently, it's allocated anew on the next iteration
       final Page page = myPool.alloc(this, addr);
       int written = page.put(addr, bytes, off, len);
       len -= written;
@@ -280,7 +284,16 @@ public class RandomAccessDataFile implements Forceable, Closeable {
       length = (int)(mySize - fileOffset);
     }
 
-    final RandomAccessFile file = getRandomAccessFile();
+    final RollbackJournal journal = myJournal;
+    if (journal != null) journal.beforeWrite(myFile, fileOffset, ByteBuffer.wrap(buf.array(), bufOffset, length));
+    final RandomAccessFile file;
+    try {
+      file = getRandomAccessFile();
+    }
+    catch (IOException e) {
+      if (journal != null) journal.afterWrite();
+      throw e;
+    }
     try {
       synchronized (file) {
         seek(file, fileOffset);
@@ -297,6 +310,7 @@ public class RandomAccessDataFile implements Forceable, Closeable {
     }
     finally {
       releaseFile();
+      if (journal != null) journal.afterWrite();
     }
   }
 
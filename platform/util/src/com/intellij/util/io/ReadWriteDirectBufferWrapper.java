@@ -16,6 +16,7 @@
 package com.intellij.util.io;
 
 import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
@@ -25,10 +26,16 @@ import java.nio.channels.FileChannel;
 
 public class ReadWriteDirectBufferWrapper extends DirectBufferWrapper {
   @NonNls private static final String RW = "rw";
+  @Nullable private final RollbackJournal myJournal;
 
   protected ReadWriteDirectBufferWrapper(final File file, final long offset, final long length) {
+    this(file, offset, length, RollbackJournal.getJournal(file));
+  }
+
+  ReadWriteDirectBufferWrapper(final File file, final long offset, final long length, @Nullable RollbackJournal journal) {
     super(file, offset, length);
     assert length <= Integer.MAX_VALUE : length;
+    myJournal = journal;
   }
 
   @Override
@@ -56,22 +63,29 @@ public class ReadWriteDirectBufferWrapper extends DirectBufferWrapper {
     final ByteBuffer buffer = getCachedBuffer();
     if (buffer == null || !isDirty()) return;
 
+    final RollbackJournal journal = myJournal;
     try {
-      final RandomAccessFile file = new RandomAccessFile(myFile, RW);
+      buffer.rewind();
+      if (journal != null) journal.beforeWrite(myFile, myPosition, buffer);
       try {
-        final FileChannel channel = file.getChannel();
+        final RandomAccessFile file = new RandomAccessFile(myFile, RW);
         try {
-          channel.position(myPosition);
-          buffer.rewind();
-          channel.write(buffer);
-          myDirty = false;
+          final FileChannel channel = file.getChannel();
+          try {
+            channel.position(myPosition);
+            channel.write(buffer);
+            myDirty = false;
+          }
+          finally {
+            channel.close();
+          }
         }
         finally {
-          channel.close();
+          file.close();
         }
       }
       finally {
-        file.close();
+        if (journal != null) journal.afterWrite();
       }
     }
     catch (IOException e) {
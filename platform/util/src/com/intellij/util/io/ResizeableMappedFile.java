@@ -25,16 +25,19 @@ import com.intellij.openapi.util.io.FileUtil;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 public class ResizeableMappedFile implements Forceable {
   private static final Logger LOG = Logger.getInstance("#com.intellij.util.io.ResizeableMappedFile");
 
   private long myLogicalSize;
   private final PagedFileStorage myStorage;
+  @Nullable private final RollbackJournal myLengthJournal;
 
   public ResizeableMappedFile(final File file, int initialSize, @Nullable PagedFileStorage.StorageLockContext lockContext, int pageSize,
                               boolean valuesAreBufferAligned) throws IOException {
     myStorage = new PagedFileStorage(file, lockContext, pageSize, valuesAreBufferAligned);
+    myLengthJournal = RollbackJournal.getJournal(getLengthFile());
     boolean exists = file.exists();
     if (!exists || file.length() == 0) {
       if (!exists) FileUtil.createParentDirs(file);
@@ -97,6 +100,12 @@ public class ResizeableMappedFile implements Forceable {
 
   private void writeLength(final long len) {
     File lengthFile = getLengthFile();
+    final RollbackJournal journal = myLengthJournal;
+    if (journal != null) {
+      final ByteBuffer data = ByteBuffer.allocate(8);
+      data.putLong(0, len);
+      journal.beforeWrite(lengthFile, 0, data);
+    }
     DataOutputStream stream = null;
     try {
       stream = new DataOutputStream(new FileOutputStream(lengthFile));
@@ -117,6 +126,7 @@ public class ResizeableMappedFile implements Forceable {
           LOG.error(e);
         }
       }
+      if (journal != null) journal.afterWrite();
     }
   }
 
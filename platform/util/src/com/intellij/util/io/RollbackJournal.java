@@ -0,0 +1,337 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import gnu.trove.THashMap;
+import gnu.trove.THashSet;
+import gnu.trove.TLongArrayList;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Append-only journal of the storage files of one directory. Before a region of such a file is overwritten on disk
+ * (or the file is resized) the bytes being replaced are appended to the journal, so after the process dies with the storages
+ * partially flushed the files can be returned to the state they had at the last {@link #checkpoint()} by {@link #rollback(File, File)}.
+ * The owner makes a checkpoint when all storages of the directory are flushed and consistent with each other.
+ *
+ * Storages report their writes with {@link #beforeWrite(File, long, ByteBuffer)}/{@link #afterWrite()} and resizes with
+ * {@link #beforeResize(File, long)}/{@link #afterWrite()}. A storage looks up the journal of its file with {@link #getJournal(File)}
+ * once, when it's created, so the journal is to be opened before the storages of the directory.
+ * The journal is not synced to the disk, so only process crashes are covered, not OS ones.
+ */
+public class RollbackJournal {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.util.io.RollbackJournal");
+  private static final int MAGIC = 0x4a524e31;
+  private static final int CHUNK_SIZE = Page.PAGE_SIZE;
+  private static final Map<String, RollbackJournal> ourJournals = new ConcurrentHashMap<String, RollbackJournal>();
+
+  private final File myFile;
+  private final String[] myDirectoryPaths;
+  private final RandomAccessFile myJournal;
+  private final ReentrantReadWriteLock myCheckpointLock = new ReentrantReadWriteLock();
+  // guarded by this
+  private final Map<String, BitSet> myJournaledChunks = new THashMap<String, BitSet>();
+  private final Set<String> myJournaledLengths = new THashSet<String>();
+  private final byte[] myChunk = new byte[CHUNK_SIZE];
+  private boolean myBroken;
+
+  private RollbackJournal(@NotNull File file, @NotNull String[] directoryPaths) throws IOException {
+    myFile = file;
+    myDirectoryPaths = directoryPaths;
+    myJournal = new RandomAccessFile(file, "rw");
+    reset();
+  }
+
+  /**
+   * Starts journaling of the files in the directory, the current state of the files becomes the first checkpoint.
+   * Use {@link #rollback(File, File)} first if the journal file was left by the crashed process.
+   */
+  @NotNull
+  public static RollbackJournal open(@NotNull File journalFile, @NotNull File directory) throws IOException {
+    final String absolutePath = directory.getAbsolutePath();
+    final String canonicalPath = directory.getCanonicalPath();
+    final String[] paths = absolutePath.equals(canonicalPath) ? new String[]{absolutePath} : new String[]{absolutePath, canonicalPath};
+    for (String path : paths) {
+      if (ourJournals.containsKey(path)) throw new IOException("Directory is already journaled: " + path);
+    }
+
+    final RollbackJournal journal = new RollbackJournal(journalFile, paths);
+    for (String path : paths) {
+      ourJournals.put(path, journal);
+    }
+    return journal;
+  }
+
+  @Nullable
+  public static RollbackJournal getJournal(@NotNull File file) {
+    if (ourJournals.isEmpty()) return null;
+    final File parent = file.getAbsoluteFile().getParentFile();
+    return parent == null ? null : ourJournals.get(parent.getPath());
+  }
+
+  /**
+   * Restores the files of the directory to the state of the last checkpoint of the journal left in the file.
+   * An entry cut off by the crash is ignored: the write it was made for has not happened.
+   *
+   * @return true if some files have been restored, false if they have not been modified since the checkpoint
+   * @throws IOException if the journal is unusable, the files must be considered corrupted then
+   */
+  public static boolean rollback(@NotNull File journalFile, @NotNull File directory) throws IOException {
+    final RandomAccessFile journal = new RandomAccessFile(journalFile, "r");
+    final Map<String, RandomAccessFile> files = new THashMap<String, RandomAccessFile>();
+    try {
+      if (journal.length() < 4 || journal.readInt() != MAGIC) throw new IOException("Journal is broken: " + journalFile);
+
+      final TLongArrayList entries = new TLongArrayList();
+      final long journalLength = journal.length();
+      while (true) {
+        final long entryStart = journal.getFilePointer();
+        try {
+          journal.readUTF();
+          journal.readLong();
+          journal.readLong();
+          final int length = journal.readInt();
+          if (length < 0 || journal.getFilePointer() + length > journalLength) break;
+          journal.seek(journal.getFilePointer() + length);
+        }
+        catch (EOFException e) {
+          break;
+        }
+        entries.add(entryStart);
+      }
+
+      byte[] bytes = new byte[CHUNK_SIZE];
+      for (int i = entries.size() - 1; i >= 0; i--) {
+        journal.seek(entries.get(i));
+        final String name = journal.readUTF();
+        final long fileLength = journal.readLong();
+        final long offset = journal.readLong();
+        final int length = journal.readInt();
+        if (bytes.length < length) bytes = new byte[length];
+        journal.readFully(bytes, 0, length);
+
+        RandomAccessFile file = files.get(name);
+        if (file == null) {
+          file = new RandomAccessFile(new File(directory, name), "rw");
+          files.put(name, file);
+        }
+        if (length > 0) {
+          file.seek(offset);
+          file.write(bytes, 0, length);
+        }
+        file.setLength(fileLength);
+      }
+      return !entries.isEmpty();
+    }
+    finally {
+      for (RandomAccessFile file : files.values()) {
+        file.close();
+      }
+      journal.close();
+    }
+  }
+
+  /**
+   * Journals the bytes of the file to be replaced by the remaining bytes of the buffer (the buffer itself is not changed).
+   * Must be followed by {@link #afterWrite()} once the bytes have been written, unless this method throws.
+   */
+  public void beforeWrite(@NotNull File file, long offset, @NotNull ByteBuffer data) {
+    myCheckpointLock.readLock().lock();
+    boolean journaled = false;
+    try {
+      synchronized (this) {
+        if (!myBroken) {
+          try {
+            final long fileLength = file.length();
+            journalLength(file, fileLength);
+            journalChunks(file, fileLength, offset, offset + data.remaining(), data);
+          }
+          catch (IOException e) {
+            markBroken(e);
+          }
+        }
+      }
+      journaled = true;
+    }
+    finally {
+      // the caller doesn't write and doesn't call afterWrite() when this method fails
+      if (!journaled) myCheckpointLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Journals the end of the file cut off by the resize, must be followed by {@link #afterWrite()} once the file has been resized.
+   */
+  public void beforeResize(@NotNull File file, long newLength) {
+    myCheckpointLock.readLock().lock();
+    boolean journaled = false;
+    try {
+      synchronized (this) {
+        if (!myBroken) {
+          try {
+            final long fileLength = file.length();
+            journalLength(file, fileLength);
+            if (newLength < fileLength) {
+              journalChunks(file, fileLength, newLength, fileLength, null);
+            }
+          }
+          catch (IOException e) {
+            markBroken(e);
+          }
+        }
+      }
+      journaled = true;
+    }
+    finally {
+      if (!journaled) myCheckpointLock.readLock().unlock();
+    }
+  }
+
+  public void afterWrite() {
+    myCheckpointLock.readLock().unlock();
+  }
+
+  /**
+   * Makes the current state of the files the one to roll back to. The caller guarantees the files are consistent,
+   * the writes in progress are waited for.
+   */
+  public void checkpoint() {
+    myCheckpointLock.writeLock().lock();
+    try {
+      synchronized (this) {
+        reset();
+      }
+    }
+    catch (IOException e) {
+      markBroken(e);
+    }
+    finally {
+      myCheckpointLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Stops journaling, the files are expected to be flushed and consistent, so the journal is deleted.
+   */
+  public void close() {
+    for (String path : myDirectoryPaths) {
+      ourJournals.remove(path);
+    }
+    synchronized (this) {
+      try {
+        myJournal.close();
+      }
+      catch (IOException e) {
+        LOG.info(e);
+      }
+      FileUtil.delete(myFile);
+    }
+  }
+
+  private void reset() throws IOException {
+    myJournal.setLength(0);
+    myJournal.writeInt(MAGIC);
+    myJournaledChunks.clear();
+    myJournaledLengths.clear();
+    myBroken = false;
+  }
+
+  private void markBroken(@NotNull IOException e) {
+    LOG.info("Rollback journal is broken: " + myFile, e);
+    synchronized (this) {
+      myBroken = true;
+      try {
+        // rollback refuses to restore files with a broken journal
+        myJournal.setLength(0);
+      }
+      catch (IOException ignored) {
+      }
+    }
+  }
+
+  private void journalLength(@NotNull File file, long fileLength) throws IOException {
+    final String name = file.getName();
+    if (myJournaledLengths.add(name)) {
+      appendEntry(name, fileLength, 0, 0);
+    }
+  }
+
+  private void journalChunks(@NotNull File file, long fileLength, long start, long end, @Nullable ByteBuffer data) throws IOException {
+    // bytes after the end of the file are cut off anyway when the journaled length is restored
+    end = Math.min(end, fileLength);
+    if (start >= end) return;
+
+    final String name = file.getName();
+    BitSet journaled = myJournaledChunks.get(name);
+    if (journaled == null) {
+      myJournaledChunks.put(name, journaled = new BitSet());
+    }
+
+    // most writes go to the chunks already journaled since the checkpoint, the file is only opened to journal the others
+    RandomAccessFile raf = null;
+    try {
+      for (long chunkStart = start / CHUNK_SIZE * CHUNK_SIZE; chunkStart < end; chunkStart += CHUNK_SIZE) {
+        final int chunk = (int)(chunkStart / CHUNK_SIZE);
+        if (journaled.get(chunk)) continue;
+
+        if (raf == null) raf = new RandomAccessFile(file, "r");
+        final int chunkLength = (int)Math.min(CHUNK_SIZE, fileLength - chunkStart);
+        raf.seek(chunkStart);
+        raf.readFully(myChunk, 0, chunkLength);
+        if (data != null && sameBytes(data, start, Math.max(start, chunkStart), Math.min(end, chunkStart + chunkLength), chunkStart)) {
+          continue; // not modified, a later write of the chunk will journal it
+        }
+        appendEntry(name, fileLength, chunkStart, chunkLength);
+        journaled.set(chunk);
+      }
+    }
+    finally {
+      if (raf != null) raf.close();
+    }
+  }
+
+  private boolean sameBytes(@NotNull ByteBuffer data, long dataOffset, long from, long to, long chunkStart) {
+    final int base = data.position();
+    for (long i = from; i < to; i++) {
+      if (data.get(base + (int)(i - dataOffset)) != myChunk[(int)(i - chunkStart)]) return false;
+    }
+    return true;
+  }
+
+  private void appendEntry(@NotNull String name, long fileLength, long offset, int length) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(length + name.length() + 32);
+    final DataOutputStream out = new DataOutputStream(bytes);
+    out.writeUTF(name);
+    out.writeLong(fileLength);
+    out.writeLong(offset);
+    out.writeInt(length);
+    out.write(myChunk, 0, length);
+    out.close();
+
+    // the file pointer stays at the end of the journal
+    myJournal.write(bytes.toByteArray());
+  }
+}
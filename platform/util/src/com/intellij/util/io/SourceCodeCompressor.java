@@ -24,17 +24,22 @@ import org.jetbrains.annotations.NonNls;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
+/**
+ * Deflate with a preset dictionary of frequent Java/HTML fragments. Every call takes its own deflater/inflater and buffers
+ * from a small pool, so concurrent callers don't wait for each other.
+ */
 public class SourceCodeCompressor {
-  private final static VaultOutputStream OUTPUT;
   private final static byte[] PRESET_BUF;
-  private final static Deflater DEFLATER;
-  private final static Inflater INFLATER;
-  private final static byte[] INFLATE_BUFFER;
+  // idle deflaters/inflaters kept for reuse, the ones beyond the limit release their native memory right after the call
+  private final static int MAX_POOLED_STATES = Math.max(2, Runtime.getRuntime().availableProcessors());
+  private final static List<State> ourStatesPool = new ArrayList<State>(); // guarded by itself
 
   private SourceCodeCompressor() {
   }
@@ -54,72 +59,110 @@ public class SourceCodeCompressor {
       "titleframecaret<a href=\"http://</a><div </div><td </td><tr </tr><p </p><hscripttext/css<img src=" +
       "<!--><link rel=width=height=align=span=centerrightleftstyle=celljsp:rootxmlns:avascript";
     PRESET_BUF = preset_buf_string.getBytes();
-    OUTPUT = new VaultOutputStream();
-    DEFLATER = new Deflater(Deflater.BEST_COMPRESSION);
-    INFLATER = new Inflater();
-    INFLATE_BUFFER = new byte[4096];
   }
 
-  public static synchronized byte[] compress(byte[] source, int off, int len) {
+  public static byte[] compress(byte[] source, int off, int len) {
+    final State state = allocState();
+    final VaultOutputStream output = state.myOutput;
+    final Deflater deflater = state.myDeflater;
     try {
-      DEFLATER.reset();
-      DEFLATER.setDictionary(PRESET_BUF);
+      deflater.reset();
+      deflater.setDictionary(PRESET_BUF);
       try {
-        DeflaterOutputStream output = null;
+        DeflaterOutputStream stream = null;
         try {
-          output = new DeflaterOutputStream(OUTPUT, DEFLATER);
-          output.write(source, off, len);
+          stream = new DeflaterOutputStream(output, deflater);
+          stream.write(source, off, len);
         }
         finally {
-          if (output != null) {
-            output.close();
+          if (stream != null) {
+            stream.close();
           }
         }
       }
       catch (IOException e) {
         return source;
       }
-      return OUTPUT.toByteArray();
+      return output.toByteArray();
     }
     finally {
-      OUTPUT.reset();
+      output.reset();
+      recycleState(state);
     }
-
   }
 
-  public static synchronized byte[] compress(byte[] source) {
+  public static byte[] compress(byte[] source) {
     return compress(source, 0, source.length);
   }
 
-  public static synchronized byte[] decompress(byte[] compressed) throws IOException {
+  public static byte[] decompress(byte[] compressed) throws IOException {
     final int len = compressed.length;
     final int off = 0;
     return decompress(compressed, len, off);
   }
 
   public static byte[] decompress(final byte[] compressed, final int len, final int off) throws IOException {
-    INFLATER.reset();
+    final State state = allocState();
+    final VaultOutputStream output = state.myOutput;
+    final Inflater inflater = state.myInflater;
+    inflater.reset();
     InflaterInputStream input = null;
     try {
-      input = new InflaterInputStream(new ByteArrayInputStream(compressed, off, len), INFLATER);
+      input = new InflaterInputStream(new ByteArrayInputStream(compressed, off, len), inflater);
       final int b = input.read();
       if (b == -1) {
-        INFLATER.setDictionary(PRESET_BUF);
+        inflater.setDictionary(PRESET_BUF);
       }
       else {
-        OUTPUT.write(b);
+        output.write(b);
       }
       int readBytes;
-      while ((readBytes = input.read(INFLATE_BUFFER)) > 0) {
-        OUTPUT.write(INFLATE_BUFFER, 0, readBytes);
+      while ((readBytes = input.read(state.myInflateBuffer)) > 0) {
+        output.write(state.myInflateBuffer, 0, readBytes);
       }
-      return OUTPUT.toByteArray();
+      return output.toByteArray();
     }
     finally {
-      if (input != null) {
-        input.close();
+      try {
+        if (input != null) {
+          input.close();
+        }
+      }
+      finally {
+        output.reset();
+        recycleState(state);
+      }
+    }
+  }
+
+  private static State allocState() {
+    synchronized (ourStatesPool) {
+      if (!ourStatesPool.isEmpty()) {
+        return ourStatesPool.remove(ourStatesPool.size() - 1);
       }
-      OUTPUT.reset();
+    }
+    return new State();
+  }
+
+  private static void recycleState(State state) {
+    synchronized (ourStatesPool) {
+      if (ourStatesPool.size() < MAX_POOLED_STATES) {
+        ourStatesPool.add(state);
+        return;
+      }
+    }
+    state.dispose();
+  }
+
+  private static class State {
+    private final VaultOutputStream myOutput = new VaultOutputStream();
+    private final Deflater myDeflater = new Deflater(Deflater.BEST_COMPRESSION);
+    private final Inflater myInflater = new Inflater();
+    private final byte[] myInflateBuffer = new byte[4096];
+
+    private void dispose() {
+      myDeflater.end();
+      myInflater.end();
     }
   }
 
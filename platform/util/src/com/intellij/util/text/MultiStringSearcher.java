@@ -0,0 +1,201 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.text;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.ArrayUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds occurrences of the patterns of several forward {@link StringSearcher}s in one pass over the text (Aho-Corasick automaton),
+ * so the text is scanned once whatever the number of patterns. Occurrences are reported in the order of their end offsets,
+ * overlapping ones included. Immutable once created, so it may be used by several threads at once.
+ */
+public class MultiStringSearcher {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.util.text.MultiStringSearcher");
+  private static final int ASCII_SIZE = 128;
+
+  private final StringSearcher[] mySearchers;
+  private final boolean myLowerCase;
+  private final State myRoot = new State(0);
+  private final int[] myRootAsciiTransitions = new int[ASCII_SIZE];
+  private final State[] myStates;
+
+  public interface OccurrenceProcessor {
+    /**
+     * @param searcherIndex index of the searcher whose pattern occurs in the text
+     * @return false to stop the search
+     */
+    boolean execute(int searcherIndex, int offset);
+  }
+
+  public MultiStringSearcher(@NotNull List<StringSearcher> searchers) {
+    LOG.assertTrue(!searchers.isEmpty());
+    mySearchers = searchers.toArray(new StringSearcher[searchers.size()]);
+    boolean lowerCase = false;
+    for (StringSearcher searcher : mySearchers) {
+      LOG.assertTrue(searcher.isForwardDirection(), searcher.getPattern());
+      lowerCase |= !searcher.isCaseSensitive();
+    }
+    myLowerCase = lowerCase;
+
+    final List<State> states = new ArrayList<State>();
+    states.add(myRoot);
+    for (int i = 0; i < mySearchers.length; i++) {
+      final String pattern = mySearchers[i].getPattern();
+      State state = myRoot;
+      for (int j = 0; j < pattern.length(); j++) {
+        final char c = normalize(pattern.charAt(j));
+        int next = state.getTarget(c);
+        if (next < 0) {
+          next = states.size();
+          states.add(new State(next));
+          state.addTransition(c, next);
+        }
+        state = states.get(next);
+      }
+      state.myOutputs = ArrayUtil.append(state.myOutputs, i);
+    }
+    myStates = states.toArray(new State[states.size()]);
+
+    for (int i = 0; i < myRoot.myLabels.length; i++) {
+      if (myRoot.myLabels[i] < ASCII_SIZE) myRootAsciiTransitions[myRoot.myLabels[i]] = myRoot.myTargets[i];
+    }
+    buildFailureLinks();
+  }
+
+  private void buildFailureLinks() {
+    // breadth-first, so the failure state of a state is always complete by the time it's used
+    final int[] queue = new int[myStates.length];
+    int head = 0;
+    int tail = 0;
+    for (int target : myRoot.myTargets) {
+      myStates[target].myFailure = 0;
+      queue[tail++] = target;
+    }
+    while (head < tail) {
+      final State state = myStates[queue[head++]];
+      for (int i = 0; i < state.myLabels.length; i++) {
+        final char c = state.myLabels[i];
+        final State next = myStates[state.myTargets[i]];
+        next.myFailure = transition(myStates[state.myFailure], c).myIndex;
+        final int[] inherited = myStates[next.myFailure].myOutputs;
+        if (inherited.length > 0) {
+          next.myOutputs = ArrayUtil.mergeArrays(next.myOutputs, inherited);
+        }
+        queue[tail++] = next.myIndex;
+      }
+    }
+  }
+
+  @NotNull
+  public StringSearcher getSearcher(int index) {
+    return mySearchers[index];
+  }
+
+  public int getSearchersCount() {
+    return mySearchers.length;
+  }
+
+  /**
+   * Reports occurrences of the patterns lying within [start, end) of the text.
+   *
+   * @return false if the processor has stopped the search
+   */
+  public boolean processOccurrences(@NotNull CharSequence text,
+                                    @Nullable char[] textArray,
+                                    int start,
+                                    int end,
+                                    @NotNull OccurrenceProcessor processor) {
+    LOG.assertTrue(start <= end, start - end);
+    LOG.assertTrue(end <= text.length(), text.length() - end);
+
+    State state = myRoot;
+    for (int offset = start; offset < end; offset++) {
+      final char c = normalize(textArray != null ? textArray[offset] : text.charAt(offset));
+      if (state == myRoot && c < ASCII_SIZE) {
+        state = myStates[myRootAsciiTransitions[c]];
+      }
+      else {
+        state = transition(state, c);
+      }
+
+      for (int searcherIndex : state.myOutputs) {
+        final StringSearcher searcher = mySearchers[searcherIndex];
+        final int occurrence = offset - searcher.getPattern().length() + 1;
+        if (myLowerCase && searcher.isCaseSensitive() && !matchesExactly(text, textArray, occurrence, searcher.getPattern())) {
+          continue;
+        }
+        if (!processor.execute(searcherIndex, occurrence)) return false;
+      }
+    }
+    return true;
+  }
+
+  @NotNull
+  private State transition(@NotNull State state, char c) {
+    while (true) {
+      final int next = state.getTarget(c);
+      if (next >= 0) return myStates[next];
+      if (state == myRoot) return myRoot;
+      state = myStates[state.myFailure];
+    }
+  }
+
+  private char normalize(char c) {
+    return myLowerCase ? StringUtil.toLowerCase(c) : c;
+  }
+
+  private static boolean matchesExactly(@NotNull CharSequence text, @Nullable char[] textArray, int offset, @NotNull String pattern) {
+    for (int i = 0; i < pattern.length(); i++) {
+      if ((textArray != null ? textArray[offset + i] : text.charAt(offset + i)) != pattern.charAt(i)) return false;
+    }
+    return true;
+  }
+
+  private static class State {
+    private final int myIndex;
+    private char[] myLabels = ArrayUtil.EMPTY_CHAR_ARRAY;
+    private int[] myTargets = ArrayUtil.EMPTY_INT_ARRAY;
+    private int myFailure;
+    // indices of the searchers whose patterns end here, the longest patterns first
+    private int[] myOutputs = ArrayUtil.EMPTY_INT_ARRAY;
+
+    private State(int index) {
+      myIndex = index;
+    }
+
+    private int getTarget(char c) {
+      // most states have a single transition, so the linear search is the fastest one
+      for (int i = 0; i < myLabels.length; i++) {
+        if (myLabels[i] == c) return myTargets[i];
+      }
+      return -1;
+    }
+
+    private void addTransition(char c, int target) {
+      myLabels = Arrays.copyOf(myLabels, myLabels.length + 1);
+      myLabels[myLabels.length - 1] = c;
+      myTargets = ArrayUtil.append(myTargets, target);
+    }
+  }
+}
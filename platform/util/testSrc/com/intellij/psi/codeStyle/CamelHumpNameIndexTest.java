@@ -0,0 +1,99 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.codeStyle;
+
+import com.intellij.openapi.util.text.StringUtil;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class CamelHumpNameIndexTest extends TestCase {
+  private static final String[] NAMES = {
+    "NameUtilTest", "NullPointerException", "nullPointer", "ArrayIndexOutOfBoundsException", "AAClass", "ZZZZZZZZZZ",
+    "ChooseByNameBase", "__init__", "_privateField", "get_value", "IOUtil", "XMLHttpRequest", "Html2Text", "a.b.c.Dots",
+    "some-file.txt", "my:colon", "String", "StringBuilder", "stringValue", "SUBSTRING", "abcDefGhi", "iIndex", "ıdotless",
+    "", "x"
+  };
+  private static final String[] PATTERNS = {
+    "N", "n", "NU", "NPE", "npe", "nPE", "AIOOBE", "aioobe", "S", "s", "SB", "sB", "str", "Str", " str", "  Str", " b", " B", " ex",
+    "*str", "*Ex", "_", "__i", " _", " .", "get", " val", "io", "IOU", "xml", "XHR", "h2t", " 2", "a.b", " c", "some", " file",
+    " txt", "my", " colon", "I", "i", "ab", "DG", " dg", "ı", "İ", " ı", "x", "X", "ZZZ", "q", " q", "*", " ", ""
+  };
+
+  public void testCandidatesContainAllMatches() {
+    final CamelHumpNameIndex index = new CamelHumpNameIndex(NAMES);
+    for (String pattern : PATTERNS) {
+      final List<String> candidates = index.getCandidates(pattern);
+      for (String name : NAMES) {
+        if (candidates != null && StringUtil.startsWithIgnoreCase(name, pattern)) {
+          assertTrue("'" + pattern + "' is a prefix of " + name, candidates.contains(name));
+        }
+      }
+      for (NameUtil.MatchingCaseSensitivity sensitivity : NameUtil.MatchingCaseSensitivity.values()) {
+        final MinusculeMatcher matcher = NameUtil.buildMatcher(pattern, sensitivity);
+        for (String name : NAMES) {
+          if (matcher.matches(name) && candidates != null) {
+            assertTrue("'" + pattern + "' matches " + name + " with " + sensitivity, candidates.contains(name));
+          }
+        }
+      }
+
+      final List<String> middleMatchCandidates = index.getMiddleMatchCandidates(pattern);
+      if (middleMatchCandidates == null) continue;
+      final MinusculeMatcher middleMatcher = NameUtil.buildMatcher("*" + pattern + "*", NameUtil.MatchingCaseSensitivity.NONE);
+      for (String name : NAMES) {
+        if (middleMatcher.matches(name) || StringUtil.startsWithIgnoreCase(name, pattern)) {
+          assertTrue("'*" + pattern + "*' matches " + name, middleMatchCandidates.contains(name));
+        }
+      }
+      if (candidates != null) {
+        for (String name : NAMES) {
+          if (NameUtil.buildMatcher(pattern, NameUtil.MatchingCaseSensitivity.NONE).matches(name)) {
+            assertTrue("'" + pattern + "' matches " + name, middleMatchCandidates.contains(name));
+          }
+        }
+      }
+    }
+  }
+
+  public void testNarrowing() {
+    final CamelHumpNameIndex index = new CamelHumpNameIndex(NAMES);
+    assertEquals(Arrays.asList("NameUtilTest", "NullPointerException", "nullPointer"), index.getCandidates("NPE"));
+    assertEquals(Arrays.asList("some-file.txt", "String", "StringBuilder", "stringValue", "SUBSTRING"), index.getCandidates("str"));
+    assertEquals(Arrays.asList("ArrayIndexOutOfBoundsException", "ChooseByNameBase", "a.b.c.Dots", "StringBuilder"), index.getCandidates(" b"));
+    assertEquals(Arrays.asList("IOUtil", "iIndex", "ıdotless"), index.getCandidates("i"));
+    assertEquals(Arrays.asList("IOUtil", "iIndex", "ıdotless"), index.getCandidates("ı"));
+    assertTrue(index.getCandidates("q").isEmpty());
+    assertNull(index.getCandidates("*str"));
+    assertNull(index.getCandidates(" _"));
+    assertNull(index.getCandidates(" "));
+    assertNull(index.getCandidates(""));
+  }
+
+  public void testMiddleMatchNarrowing() {
+    final CamelHumpNameIndex index = new CamelHumpNameIndex(NAMES);
+    assertEquals(Arrays.asList("NullPointerException", "nullPointer", "ArrayIndexOutOfBoundsException"), index.getMiddleMatchCandidates("pointer"));
+    assertEquals(Arrays.asList("ArrayIndexOutOfBoundsException", "StringBuilder", "SUBSTRING"), index.getMiddleMatchCandidates("sub"));
+    assertEquals(Arrays.asList("StringBuilder"), index.getMiddleMatchCandidates("ing bld*"));
+    assertEquals(Arrays.asList("Html2Text"), index.getMiddleMatchCandidates("t2h"));
+    assertEquals(Arrays.asList("ArrayIndexOutOfBoundsException", "ıdotless"), index.getMiddleMatchCandidates("ıdo"));
+    assertTrue(index.getMiddleMatchCandidates("w").isEmpty());
+    assertTrue(index.getMiddleMatchCandidates("zq").isEmpty());
+    assertNull(index.getMiddleMatchCandidates(" *"));
+    assertNull(index.getMiddleMatchCandidates(""));
+  }
+}
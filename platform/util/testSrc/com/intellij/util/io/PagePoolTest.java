@@ -0,0 +1,146 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+public class PagePoolTest extends TestCase {
+  private File myDir;
+  private final List<RandomAccessDataFile> myFiles = new ArrayList<RandomAccessDataFile>();
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("pagePool", null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      for (RandomAccessDataFile file : myFiles) {
+        file.dispose();
+      }
+      FileUtil.delete(myDir);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testSegmentsKeepQueuesLong() {
+    assertEquals(1, new PagePool(100, 100, 16).getSegmentsCount());
+    assertEquals(3, new PagePool(500, 500, 16).getSegmentsCount());
+    assertEquals(2, new PagePool(1000, 300, 16).getSegmentsCount());
+    assertEquals(4, new PagePool(5000, 5000, 4).getSegmentsCount());
+  }
+
+  public void testEvictedPagesAreWritten() throws Exception {
+    final PagePool pool = new PagePool(4, 4, 1);
+    final RandomAccessDataFile file = createFile("evicted", pool);
+    final int pagesCount = 100;
+    for (int i = 0; i < pagesCount; i++) {
+      file.putInt((long)i * Page.PAGE_SIZE, i);
+    }
+    assertTrue(pool.getCacheMisses() >= pagesCount);
+
+    for (int i = 0; i < pagesCount; i++) {
+      assertEquals(i, file.getInt((long)i * Page.PAGE_SIZE));
+    }
+    assertTrue(pool.getCacheMisses() >= 2 * pagesCount - 8);
+  }
+
+  public void testRepeatedlyAccessedPagesSurviveScan() throws Exception {
+    // the pool of the same size as the shared one, split into several segments
+    final PagePool pool = new PagePool(500, 500, 16);
+    assertTrue(pool.getSegmentsCount() > 1);
+    final RandomAccessDataFile file = createFile("scan", pool);
+    final int hotPagesCount = 200;
+    for (int pass = 0; pass < 2; pass++) {
+      for (int i = 0; i < hotPagesCount; i++) {
+        file.putInt((long)i * Page.PAGE_SIZE, i);
+      }
+    }
+
+    final long scanStart = (long)hotPagesCount * Page.PAGE_SIZE;
+    for (int i = 0; i < 5000; i++) {
+      file.putInt(scanStart + (long)i * Page.PAGE_SIZE, i);
+    }
+
+    final long misses = pool.getCacheMisses();
+    for (int i = 0; i < hotPagesCount; i++) {
+      assertEquals(i, file.getInt((long)i * Page.PAGE_SIZE));
+    }
+    assertEquals(misses, pool.getCacheMisses());
+  }
+
+  public void testConcurrentAccess() throws Exception {
+    final PagePool pool = new PagePool(256, 256, 2);
+    final int threadsCount = 4;
+    final int pagesCount = 1000;
+    final ExecutorService executor = Executors.newFixedThreadPool(threadsCount);
+    try {
+      final List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (int t = 0; t < threadsCount; t++) {
+        final RandomAccessDataFile file = createFile("concurrent" + t, pool);
+        final int seed = t;
+        futures.add(executor.submit(new Callable<Object>() {
+          @Override
+          public Object call() throws Exception {
+            for (int pass = 0; pass < 3; pass++) {
+              for (int i = 0; i < pagesCount; i++) {
+                file.putInt((long)i * Page.PAGE_SIZE + (pass * 4), seed * pagesCount + i + pass);
+              }
+              for (int i = pagesCount - 1; i >= 0; i--) {
+                assertEquals(seed * pagesCount + i + pass, file.getInt((long)i * Page.PAGE_SIZE + pass * 4));
+              }
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get(60, TimeUnit.SECONDS);
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+
+    for (int t = 0; t < threadsCount; t++) {
+      final RandomAccessDataFile file = myFiles.get(t);
+      file.force();
+      for (int i = 0; i < pagesCount; i++) {
+        for (int pass = 0; pass < 3; pass++) {
+          assertEquals(t * pagesCount + i + pass, file.getInt((long)i * Page.PAGE_SIZE + pass * 4));
+        }
+      }
+    }
+  }
+
+  private RandomAccessDataFile createFile(String name, PagePool pool) throws Exception {
+    final File file = new File(myDir, name);
+    assertTrue(file.createNewFile());
+    final RandomAccessDataFile dataFile = new RandomAccessDataFile(file, pool);
+    myFiles.add(dataFile);
+    return dataFile;
+  }
+}
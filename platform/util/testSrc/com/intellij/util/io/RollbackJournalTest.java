@@ -0,0 +1,109 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.io.ByteSequence;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.storage.Storage;
+import junit.framework.TestCase;
+
+import java.io.File;
+
+public class RollbackJournalTest extends TestCase {
+  private File myDir;
+  private File myJournalFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("journaled", "storages");
+    myJournalFile = new File(myDir, "storages.journal");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testRollbackToCheckpoint() throws Exception {
+    // storages look up the journal when created
+    final RollbackJournal journal = RollbackJournal.open(myJournalFile, myDir);
+    final String storagePath = new File(myDir, "storage").getPath();
+    Storage storage = new Storage(storagePath);
+    ResizeableMappedFile mapped = new ResizeableMappedFile(new File(myDir, "mapped"), 4096, new PagedFileStorage.StorageLockContext(false), -1, false);
+
+    final int[] records = new int[1000];
+    for (int i = 0; i < records.length; i++) {
+      records[i] = storage.createNewRecord();
+      storage.writeBytes(records[i], new ByteSequence(("checkpoint " + i).getBytes()), false);
+      mapped.putInt(i * 4, i);
+    }
+    storage.force();
+    mapped.force();
+    journal.checkpoint();
+
+    for (int i = 0; i < records.length; i++) {
+      storage.writeBytes(records[i], new ByteSequence(("lost " + i + " after checkpoint").getBytes()), false);
+      mapped.putInt(i * 4, -i);
+    }
+    for (int i = 0; i < 1000; i++) {
+      storage.writeBytes(storage.createNewRecord(), new ByteSequence(("lost record " + i).getBytes()), false);
+      mapped.putInt((records.length + i) * 4, i);
+    }
+    // storages are flushed partially when the process dies, the journal covers any part of them
+    Disposer.dispose(storage);
+    mapped.close();
+
+    assertTrue(RollbackJournal.rollback(myJournalFile, myDir));
+    journal.close();
+
+    storage = new Storage(storagePath);
+    mapped = new ResizeableMappedFile(new File(myDir, "mapped"), 4096, new PagedFileStorage.StorageLockContext(false), -1, false);
+    try {
+      for (int i = 0; i < records.length; i++) {
+        assertEquals("checkpoint " + i, new String(FileUtil.loadBytes(storage.readStream(records[i]))));
+        assertEquals(i, mapped.getInt(i * 4));
+      }
+      assertEquals(records.length * 4, mapped.length());
+      assertEquals(records[records.length - 1] + 1, storage.createNewRecord());
+    }
+    finally {
+      Disposer.dispose(storage);
+      mapped.close();
+    }
+  }
+
+  public void testNothingToRollback() throws Exception {
+    final RollbackJournal journal = RollbackJournal.open(myJournalFile, myDir);
+    final ResizeableMappedFile mapped = new ResizeableMappedFile(new File(myDir, "mapped"), 4096, new PagedFileStorage.StorageLockContext(false), -1, false);
+    try {
+      mapped.putInt(0, 42);
+      mapped.force();
+      journal.checkpoint();
+      assertFalse(RollbackJournal.rollback(myJournalFile, myDir));
+      assertNull(RollbackJournal.getJournal(new File(myDir.getParentFile(), "mapped")));
+      assertSame(journal, RollbackJournal.getJournal(new File(myDir, "mapped")));
+    }
+    finally {
+      mapped.close();
+      journal.close();
+    }
+    assertFalse(myJournalFile.exists());
+    assertNull(RollbackJournal.getJournal(new File(myDir, "mapped")));
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.text;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class MultiStringSearcherTest extends TestCase {
+  public void testOverlappingPatterns() {
+    final MultiStringSearcher searcher = create(true, "he", "she", "his", "hers");
+    assertEquals(Arrays.asList("she@1", "he@2", "hers@2"), find(searcher, "ushers"));
+    assertEquals(Arrays.asList("his@0"), find(searcher, "his"));
+  }
+
+  public void testRepeatedPattern() {
+    assertEquals(Arrays.asList("aa@0", "aa@1", "aa@2"), find(create(true, "aa"), "aaaa"));
+  }
+
+  public void testMixedCaseSensitivity() {
+    final List<StringSearcher> searchers = new ArrayList<StringSearcher>();
+    searchers.add(new StringSearcher("Foo", true, true));
+    searchers.add(new StringSearcher("bar", false, true));
+    final MultiStringSearcher searcher = new MultiStringSearcher(searchers);
+    assertEquals(Arrays.asList("bar@3", "Foo@6", "bar@12"), find(searcher, "fooBARFoofoobar"));
+  }
+
+  public void testRange() {
+    final MultiStringSearcher searcher = create(true, "ab");
+    final List<String> result = new ArrayList<String>();
+    searcher.processOccurrences("ab ab ab", null, 1, 7, collector(searcher, result));
+    assertEquals(Arrays.asList("ab@3"), result);
+  }
+
+  public void testStop() {
+    final MultiStringSearcher searcher = create(true, "a");
+    final int[] count = {0};
+    assertFalse(searcher.processOccurrences("aaa", null, 0, 3, new MultiStringSearcher.OccurrenceProcessor() {
+      @Override
+      public boolean execute(int searcherIndex, int offset) {
+        return ++count[0] < 2;
+      }
+    }));
+    assertEquals(2, count[0]);
+  }
+
+  public void testSameAsStringSearcher() {
+    final Random random = new Random(42);
+    for (int round = 0; round < 100; round++) {
+      final String text = randomString(random, 200);
+      final String[] patterns = new String[1 + random.nextInt(5)];
+      for (int i = 0; i < patterns.length; i++) {
+        patterns[i] = randomString(random, 1 + random.nextInt(4));
+      }
+      final MultiStringSearcher searcher = create(round % 2 == 0, patterns);
+      final List<String> expected = new ArrayList<String>();
+      for (int end = 1; end <= text.length(); end++) {
+        for (int i = 0; i < patterns.length; i++) {
+          final StringSearcher single = searcher.getSearcher(i);
+          final int start = end - patterns[i].length();
+          if (start >= 0 && single.scan(text, start, end) == start) {
+            expected.add(patterns[i] + "@" + start);
+          }
+        }
+      }
+      final List<String> actual = find(searcher, text);
+      assertEquals(sorted(expected), sorted(actual));
+    }
+  }
+
+  private static String randomString(Random random, int length) {
+    final StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      builder.append("abAB".charAt(random.nextInt(4)));
+    }
+    return builder.toString();
+  }
+
+  private static List<String> sorted(List<String> list) {
+    final String[] array = list.toArray(new String[list.size()]);
+    Arrays.sort(array);
+    return Arrays.asList(array);
+  }
+
+  private static MultiStringSearcher create(boolean caseSensitive, String... patterns) {
+    final List<StringSearcher> searchers = new ArrayList<StringSearcher>();
+    for (String pattern : patterns) {
+      searchers.add(new StringSearcher(pattern, caseSensitive, true));
+    }
+    return new MultiStringSearcher(searchers);
+  }
+
+  private static List<String> find(MultiStringSearcher searcher, String text) {
+    final List<String> result = new ArrayList<String>();
+    assertTrue(searcher.processOccurrences(text, null, 0, text.length(), collector(searcher, result)));
+    return result;
+  }
+
+  private static MultiStringSearcher.OccurrenceProcessor collector(final MultiStringSearcher searcher, final List<String> result) {
+    return new MultiStringSearcher.OccurrenceProcessor() {
+      @Override
+      public boolean execute(int searcherIndex, int offset) {
+        result.add(searcher.getSearcher(searcherIndex).getPattern() + "@" + offset);
+        return true;
+      }
+    };
+  }
+}